@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.geometry.GeneralEnvelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.SyntheticRasters;
+import generator.components.CropMetrics;
+import generator.components.CropPipeline;
+import generator.components.MemoryBudget;
+import generator.components.ProgressTracker;
+import generator.components.RasterGenerator;
+import generator.components.TileCacheManager;
+import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
+import generator.model.RasterCropRequest;
+import generator.model.S3StoreInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.data.DataResource;
+
+/**
+ * Benchmarks the crop of the center quarter of synthetic sources, end to end through cropRasterCoverage with local
+ * files in place of S3, and stage by stage. Run with the gc profiler to report allocation per crop:
+ * 
+ * mvn -Pjmh test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CropBenchmark {
+	@Param({ "1024", "4096" })
+	public int size;
+	@Param({ "0", "256" })
+	public int tileSize;
+	@Param({ "1", "3" })
+	public int bands;
+	@Param({ SyntheticRasters.DATA_TYPE_BYTE, SyntheticRasters.DATA_TYPE_FLOAT })
+	public String dataType;
+
+	private static final String SOURCE_NAME = "synthetic.tif";
+
+	private File workDir;
+	private File sourceFile;
+	private RasterGenerator rasterGenerator;
+	private RasterCropRequest request;
+	private OutputOptions outputOptions;
+
+	/**
+	 * Writes the source and sets up a generator reading and writing local files
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		workDir = Files.createTempDirectory("crop-benchmark").toFile();
+		sourceFile = new File(workDir, SOURCE_NAME);
+		SyntheticRasters.write(sourceFile, size, tileSize, bands, dataType);
+
+		LocalFileUtility fileUtility = new LocalFileUtility();
+		fileUtility.addSource(SOURCE_NAME, sourceFile);
+		CropMetrics cropMetrics = new CropMetrics();
+		ReflectionTestUtils.setField(cropMetrics, "meterRegistry", new SimpleMeterRegistry());
+
+		rasterGenerator = new RasterGenerator();
+		ReflectionTestUtils.setField(rasterGenerator, "fileUtility", fileUtility);
+		ReflectionTestUtils.setField(rasterGenerator, "cropMetrics", cropMetrics);
+		ReflectionTestUtils.setField(rasterGenerator, "memoryBudget", new MemoryBudget());
+		ReflectionTestUtils.setField(rasterGenerator, "tileCacheManager", new TileCacheManager());
+		ReflectionTestUtils.setField(rasterGenerator, "cropPipeline", new CropPipeline());
+		ReflectionTestUtils.setField(rasterGenerator, "progressTracker", new ProgressTracker());
+		ReflectionTestUtils.setField(rasterGenerator, "RASTER_LOCAL_DIRECTORY", new File(workDir, "tmp").getAbsolutePath());
+		ReflectionTestUtils.setField(rasterGenerator, "SLEEP_DELAY", 0L);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILED", true);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILE_SIZE", 256);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_COMPRESSION", OutputOptions.COMPRESSION_DEFLATE);
+		outputOptions = rasterGenerator.resolveOutputOptions(null);
+
+		S3StoreInfo source = new S3StoreInfo();
+		source.setBucketName("benchmark");
+		source.setFileName(SOURCE_NAME);
+		source.setDomain("localdomain");
+		request = new RasterCropRequest();
+		request.setSource(source);
+		request.setFunction("crop");
+		request.setBounds(getCenterQuarter());
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		FileUtils.deleteDirectory(workDir);
+	}
+
+	/**
+	 * The whole crop: open, read, crop, encode to a local file and clean up
+	 */
+	@Benchmark
+	public DataResource cropRasterCoverage() throws Exception {
+		return rasterGenerator.cropRasterCoverage(request, UUID.randomUUID().toString(), CropMetrics.PATH_SYNC);
+	}
+
+	/**
+	 * Opening the source and decoding the crop window, without cropping or encoding
+	 */
+	@Benchmark
+	public Object readWindow() throws Exception {
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			GridCoverage2D coverage = rasterGenerator.readCoverageWindow(reader, rasterGenerator.getCropEnvelope(request.getBounds(), reader));
+			Object data = coverage.getRenderedImage().getData();
+			rasterGenerator.disposeCoverage(coverage);
+			return data;
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Reading, cropping and encoding the window, discarding the encoded bytes
+	 */
+	@Benchmark
+	public void cropAndEncode() throws Exception {
+		File cacheDir = new File(workDir, UUID.randomUUID().toString());
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			GeneralEnvelope cropEnvelope = rasterGenerator.getCropEnvelope(request.getBounds(), reader);
+			GridCoverage2D coverage = rasterGenerator.readCoverageWindow(reader, cropEnvelope);
+			GridCoverage2D cropped = rasterGenerator.cropCoverage(coverage, cropEnvelope);
+			rasterGenerator.encodeCoverage(cropped, new NullOutputStream(), cacheDir, outputOptions);
+			cropped.dispose(true);
+			rasterGenerator.disposeCoverage(coverage);
+		} finally {
+			reader.dispose();
+			FileUtils.deleteDirectory(cacheDir);
+		}
+	}
+
+	private BoundingBoxInfo getCenterQuarter() {
+		BoundingBoxInfo bounds = new BoundingBoxInfo();
+		bounds.setMinx(-90);
+		bounds.setMiny(-45);
+		bounds.setMaxx(90);
+		bounds.setMaxy(45);
+		return bounds;
+	}
+}
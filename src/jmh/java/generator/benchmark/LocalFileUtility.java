@@ -0,0 +1,63 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.benchmark;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import generator.components.S3FileUtility;
+import model.data.location.FileLocation;
+
+/**
+ * S3 file utility that serves sources from local files and leaves outputs where they were written, so benchmarks
+ * measure the generator rather than the network.
+ */
+public class LocalFileUtility extends S3FileUtility {
+	private final Map<String, File> sources = new ConcurrentHashMap<String, File>();
+
+	/**
+	 * Serves the file for requests with the given source file name
+	 */
+	public void addSource(String fileName, File file) {
+		sources.put(fileName, file);
+	}
+
+	@Override
+	public boolean isRangeReadEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isMultipartUploadEnabled() {
+		return false;
+	}
+
+	@Override
+	public File getFileFromS3(FileLocation fileLocation, String serviceId) {
+		return sources.get(fileLocation.getFileName());
+	}
+
+	@Override
+	public void releaseFile(File file) {
+		// Sources are shared by every invocation
+	}
+
+	@Override
+	public String writeFileToS3(File file, FileLocation fileLocation) {
+		return file.getName();
+	}
+}
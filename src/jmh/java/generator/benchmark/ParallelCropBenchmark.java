@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.SyntheticRasters;
+import generator.components.CropMetrics;
+import generator.components.CropPipeline;
+import generator.components.MemoryBudget;
+import generator.components.ProgressTracker;
+import generator.components.RasterGenerator;
+import generator.components.TileCacheManager;
+import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
+import generator.model.RasterCropRequest;
+import generator.model.S3StoreInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.data.DataResource;
+
+/**
+ * Benchmarks a single large crop with its tiles computed serially and on fork join pools of increasing size, to measure
+ * the speedup of the parallel mode against the number of cores. A parallelism of 0 runs the crop serially.
+ * 
+ * mvn -Pjmh test-compile exec:exec -Djmh.include=ParallelCropBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ParallelCropBenchmark {
+	@Param({ "0", "1", "2", "4", "8", "16", "32" })
+	public int parallelism;
+	@Param({ "8192" })
+	public int size;
+	@Param({ SyntheticRasters.DATA_TYPE_BYTE, SyntheticRasters.DATA_TYPE_FLOAT })
+	public String dataType;
+
+	private static final String SOURCE_NAME = "synthetic.tif";
+	private static final int TILE_SIZE = 256;
+
+	private File workDir;
+	private ForkJoinPool forkJoinPool;
+	private RasterGenerator rasterGenerator;
+	private RasterCropRequest request;
+
+	/**
+	 * Writes the source and sets up a generator reading and writing local files, with a pool of the given parallelism
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		workDir = Files.createTempDirectory("parallel-crop-benchmark").toFile();
+		File sourceFile = new File(workDir, SOURCE_NAME);
+		SyntheticRasters.write(sourceFile, size, TILE_SIZE, 1, dataType);
+
+		LocalFileUtility fileUtility = new LocalFileUtility();
+		fileUtility.addSource(SOURCE_NAME, sourceFile);
+		CropMetrics cropMetrics = new CropMetrics();
+		ReflectionTestUtils.setField(cropMetrics, "meterRegistry", new SimpleMeterRegistry());
+
+		rasterGenerator = new RasterGenerator();
+		ReflectionTestUtils.setField(rasterGenerator, "fileUtility", fileUtility);
+		ReflectionTestUtils.setField(rasterGenerator, "cropMetrics", cropMetrics);
+		ReflectionTestUtils.setField(rasterGenerator, "memoryBudget", new MemoryBudget());
+		ReflectionTestUtils.setField(rasterGenerator, "tileCacheManager", new TileCacheManager());
+		ReflectionTestUtils.setField(rasterGenerator, "cropPipeline", new CropPipeline());
+		ReflectionTestUtils.setField(rasterGenerator, "progressTracker", new ProgressTracker());
+		ReflectionTestUtils.setField(rasterGenerator, "RASTER_LOCAL_DIRECTORY", new File(workDir, "tmp").getAbsolutePath());
+		ReflectionTestUtils.setField(rasterGenerator, "SLEEP_DELAY", 0L);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILED", true);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILE_SIZE", TILE_SIZE);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_COMPRESSION", OutputOptions.COMPRESSION_DEFLATE);
+		if (parallelism > 0) {
+			forkJoinPool = new ForkJoinPool(parallelism);
+			ReflectionTestUtils.setField(rasterGenerator, "cropForkJoinPool", forkJoinPool);
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_ENABLED", true);
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_MIN_PIXELS", 0L);
+		}
+
+		S3StoreInfo source = new S3StoreInfo();
+		source.setBucketName("benchmark");
+		source.setFileName(SOURCE_NAME);
+		source.setDomain("localdomain");
+		request = new RasterCropRequest();
+		request.setSource(source);
+		request.setFunction("crop");
+		request.setBounds(getCenterQuarter());
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		if (forkJoinPool != null) {
+			forkJoinPool.shutdown();
+		}
+		FileUtils.deleteDirectory(workDir);
+	}
+
+	/**
+	 * The whole crop of the center quarter of the source: open, read, crop, encode to a local file and clean up
+	 */
+	@Benchmark
+	public DataResource cropRasterCoverage() throws Exception {
+		return rasterGenerator.cropRasterCoverage(request, UUID.randomUUID().toString(), CropMetrics.PATH_SYNC);
+	}
+
+	private BoundingBoxInfo getCenterQuarter() {
+		BoundingBoxInfo bounds = new BoundingBoxInfo();
+		bounds.setMinx(-90);
+		bounds.setMiny(-45);
+		bounds.setMaxx(90);
+		bounds.setMaxy(45);
+		return bounds;
+	}
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import generator.Application;
+import generator.SyntheticRasters;
+import generator.model.BoundingBoxInfo;
+import generator.model.RasterCropRequest;
+import generator.model.S3StoreInfo;
+import model.status.StatusUpdate;
+
+/**
+ * End to end load test. Starts the service in process against an {@link S3StubServer} seeded with a synthetic source
+ * raster, drives a configurable mix of /crop and /cropasync requests with status polling, and samples throughput,
+ * latency percentiles, heap and thread counts to a CSV file. Exits non-zero when heap or threads keep growing after the
+ * load stops, or when a configured throughput or latency threshold is missed. Configured with system properties:
+ * 
+ * <pre>
+ * loadtest.duration.seconds      Length of the load phase (300)
+ * loadtest.warmup.seconds        Load before the heap and thread baseline is taken (30)
+ * loadtest.clients               Concurrent client threads (16)
+ * loadtest.async.ratio           Fraction of requests sent to /cropasync (0.5)
+ * loadtest.distinct.boxes        Number of distinct crop boxes; fewer means more result cache hits, if enabled (200)
+ * loadtest.source.size           Width and height of the synthetic source (4096)
+ * loadtest.poll.interval.ms      Status polling interval of async jobs (250)
+ * loadtest.sample.seconds        Sampling interval of the report (5)
+ * loadtest.report                CSV report file (target/loadtest-report.csv)
+ * loadtest.max.heap.growth.mb    Allowed growth of heap after GC between warmup and the end (64)
+ * loadtest.max.thread.growth     Allowed growth of the live thread count between warmup and the end (8)
+ * loadtest.min.throughput        Minimum overall completed crops per second, or 0 to skip (0)
+ * loadtest.max.p99.ms            Maximum overall p99 latency of sync crops, or 0 to skip (0)
+ * </pre>
+ */
+public class LoadTestRunner {
+	private static final String BUCKET = "loadtest";
+	private static final String SOURCE_KEY = "source.tif";
+
+	private final long durationSeconds = Long.getLong("loadtest.duration.seconds", 300);
+	private final long warmupSeconds = Long.getLong("loadtest.warmup.seconds", 30);
+	private final int clients = Integer.getInteger("loadtest.clients", 16);
+	private final double asyncRatio = Double.parseDouble(System.getProperty("loadtest.async.ratio", "0.5"));
+	private final int distinctBoxes = Integer.getInteger("loadtest.distinct.boxes", 200);
+	private final int sourceSize = Integer.getInteger("loadtest.source.size", 4096);
+	private final long pollIntervalMillis = Long.getLong("loadtest.poll.interval.ms", 250);
+	private final long sampleSeconds = Long.getLong("loadtest.sample.seconds", 5);
+	private final File reportFile = new File(System.getProperty("loadtest.report", "target/loadtest-report.csv"));
+	private final long maxHeapGrowthMb = Long.getLong("loadtest.max.heap.growth.mb", 64);
+	private final int maxThreadGrowth = Integer.getInteger("loadtest.max.thread.growth", 8);
+	private final double minThroughput = Double.parseDouble(System.getProperty("loadtest.min.throughput", "0"));
+	private final long maxP99Millis = Long.getLong("loadtest.max.p99.ms", 0);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final ConcurrentLinkedQueue<Long> syncLatencies = new ConcurrentLinkedQueue<Long>();
+	private final ConcurrentLinkedQueue<Long> asyncLatencies = new ConcurrentLinkedQueue<Long>();
+	private final List<Long> allSyncLatencies = Collections.synchronizedList(new ArrayList<Long>());
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile boolean running = true;
+	private List<BoundingBoxInfo> boxes;
+	private RestTemplate restTemplate;
+	private String baseUrl;
+
+	public static void main(String[] args) throws Exception {
+		System.exit(new LoadTestRunner().run() ? 0 : 1);
+	}
+
+	/**
+	 * Runs the load test
+	 * 
+	 * @return true if every check passed
+	 */
+	public boolean run() throws Exception {
+		File workDirectory = new File("target/loadtest");
+		FileUtils.deleteQuietly(workDirectory);
+		workDirectory.mkdirs();
+
+		S3StubServer s3 = new S3StubServer(0);
+		s3.start();
+		File source = new File(workDirectory, SOURCE_KEY);
+		SyntheticRasters.write(source, sourceSize, 256, 1, SyntheticRasters.DATA_TYPE_BYTE);
+		s3.putObject(BUCKET, SOURCE_KEY, FileUtils.readFileToByteArray(source));
+
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).properties(
+				"server.port=0",
+				"s3.endpoint=" + s3.getEndpoint(),
+				"s3.path.style.access=true",
+				"s3.key.access=loadtest",
+				"s3.key.private=loadtest",
+				"crop.demo.delay.ms=0",
+				"raster.temp.directory=" + new File(workDirectory, "tmp").getAbsolutePath(),
+				"raster.cache.directory=" + new File(workDirectory, "raster-cache").getAbsolutePath(),
+				"jobstore.completed.ttl.seconds=60",
+				"jobstore.eviction.interval.ms=5000").run();
+
+		boolean passed;
+		try {
+			int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+			baseUrl = String.format("http://localhost:%d", port);
+			SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+			requestFactory.setConnectTimeout(10000);
+			requestFactory.setReadTimeout(300000);
+			restTemplate = new RestTemplate(requestFactory);
+			boxes = createBoxes();
+			passed = runLoad();
+		} finally {
+			context.close();
+			s3.stop();
+		}
+		System.out.println(String.format("S3 stub served %d requests, %d bytes read, %d bytes written.", s3.getRequestCount(),
+				s3.getBytesServed(), s3.getBytesStored()));
+		return passed;
+	}
+
+	private boolean runLoad() throws Exception {
+		ExecutorService clientExecutor = Executors.newFixedThreadPool(clients);
+		for (int i = 0; i < clients; i++) {
+			clientExecutor.submit(this::runClient);
+		}
+
+		long start = System.nanoTime();
+		long baselineHeap = -1;
+		int baselineThreads = -1;
+		try (PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())) {
+			report.println("elapsedSeconds,throughput,syncP50Ms,syncP99Ms,asyncP50Ms,asyncP99Ms,errors,rejected,heapUsedMb,threads");
+			long lastCompleted = 0;
+			while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(durationSeconds)) {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(sampleSeconds));
+				long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+				long completedNow = completed.get();
+				List<Long> sync = drain(syncLatencies);
+				List<Long> async = drain(asyncLatencies);
+				String row = String.format("%d,%.2f,%d,%d,%d,%d,%d,%d,%d,%d", elapsed, (completedNow - lastCompleted) / (double) sampleSeconds,
+						percentile(sync, 50), percentile(sync, 99), percentile(async, 50), percentile(async, 99), errors.get(),
+						rejected.get(), memoryBean.getHeapMemoryUsage().getUsed() >> 20, threadBean.getThreadCount());
+				report.println(row);
+				report.flush();
+				System.out.println(row);
+				lastCompleted = completedNow;
+
+				if (baselineHeap < 0 && elapsed >= warmupSeconds) {
+					baselineHeap = getHeapAfterGc();
+					baselineThreads = threadBean.getThreadCount();
+				}
+			}
+		} finally {
+			running = false;
+			clientExecutor.shutdown();
+			clientExecutor.awaitTermination(5, TimeUnit.MINUTES);
+		}
+		double seconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / 1000.0;
+
+		// Give the executors a moment to retire idle threads before comparing against the baseline
+		Thread.sleep(TimeUnit.SECONDS.toMillis(sampleSeconds));
+		long finalHeap = getHeapAfterGc();
+		int finalThreads = threadBean.getThreadCount();
+
+		boolean passed = true;
+		double throughput = completed.get() / seconds;
+		long p99 = percentile(new ArrayList<Long>(allSyncLatencies), 99);
+		System.out.println(String.format("Completed %d crops in %.1f s (%.2f/s), sync p99 %d ms, %d errors, %d rejected.", completed.get(),
+				seconds, throughput, p99, errors.get(), rejected.get()));
+		if (baselineHeap >= 0) {
+			long heapGrowthMb = (finalHeap - baselineHeap) >> 20;
+			int threadGrowth = finalThreads - baselineThreads;
+			System.out.println(String.format("Heap after GC grew by %d MB, live threads grew by %d.", heapGrowthMb, threadGrowth));
+			passed &= check(heapGrowthMb <= maxHeapGrowthMb, String.format("Heap grew by more than %d MB", maxHeapGrowthMb));
+			passed &= check(threadGrowth <= maxThreadGrowth, String.format("Threads grew by more than %d", maxThreadGrowth));
+		}
+		if (minThroughput > 0) {
+			passed &= check(throughput >= minThroughput, String.format("Throughput below %.2f/s", minThroughput));
+		}
+		if (maxP99Millis > 0) {
+			passed &= check(p99 <= maxP99Millis, String.format("Sync p99 above %d ms", maxP99Millis));
+		}
+		return passed;
+	}
+
+	/**
+	 * Sends requests until the load phase ends
+	 */
+	private void runClient() {
+		while (running) {
+			RasterCropRequest request = createRequest(boxes.get(ThreadLocalRandom.current().nextInt(boxes.size())));
+			long start = System.nanoTime();
+			try {
+				if (ThreadLocalRandom.current().nextDouble() < asyncRatio) {
+					if (runAsyncCrop(request)) {
+						asyncLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+						completed.incrementAndGet();
+					}
+				} else {
+					restTemplate.postForEntity(baseUrl + "/crop", request, String.class);
+					long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					syncLatencies.add(latency);
+					allSyncLatencies.add(latency);
+					completed.incrementAndGet();
+				}
+			} catch (HttpStatusCodeException e) {
+				if (e.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+					rejected.incrementAndGet();
+					sleep(1000);
+				} else {
+					errors.incrementAndGet();
+				}
+			} catch (Exception e) {
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Submits an async crop and polls its status until it finishes
+	 * 
+	 * @return true if the job succeeded
+	 */
+	private boolean runAsyncCrop(RasterCropRequest request) throws IOException {
+		ResponseEntity<String> response = restTemplate.postForEntity(baseUrl + "/cropasync", request, String.class);
+		String jobId = findValue(objectMapper.readValue(response.getBody(), Map.class), "jobId");
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			sleep(pollIntervalMillis);
+			String body = restTemplate.getForObject(baseUrl + "/cropasync/status/{id}", String.class, jobId);
+			String status = findValue(objectMapper.readValue(body, Map.class), "status");
+			if (StatusUpdate.STATUS_SUCCESS.equals(status)) {
+				return true;
+			}
+			if (StatusUpdate.STATUS_ERROR.equals(status) || StatusUpdate.STATUS_FAIL.equals(status)
+					|| StatusUpdate.STATUS_CANCELLED.equals(status)) {
+				errors.incrementAndGet();
+				return false;
+			}
+		}
+		errors.incrementAndGet();
+		return false;
+	}
+
+	private List<BoundingBoxInfo> createBoxes() {
+		Random random = new Random(42);
+		List<BoundingBoxInfo> boxes = new ArrayList<BoundingBoxInfo>();
+		for (int i = 0; i < distinctBoxes; i++) {
+			double width = 5 + random.nextDouble() * 40;
+			double height = 5 + random.nextDouble() * 20;
+			BoundingBoxInfo box = new BoundingBoxInfo();
+			box.setMinx(-180 + random.nextDouble() * (360 - width));
+			box.setMiny(-90 + random.nextDouble() * (180 - height));
+			box.setMaxx(box.getMinx() + width);
+			box.setMaxy(box.getMiny() + height);
+			boxes.add(box);
+		}
+		return boxes;
+	}
+
+	private RasterCropRequest createRequest(BoundingBoxInfo bounds) {
+		S3StoreInfo source = new S3StoreInfo();
+		source.setDomain("localhost");
+		source.setBucketName(BUCKET);
+		source.setFileName(SOURCE_KEY);
+		RasterCropRequest request = new RasterCropRequest();
+		request.setSource(source);
+		request.setFunction("crop");
+		request.setBounds(bounds);
+		return request;
+	}
+
+	/**
+	 * Finds the first value of the given field anywhere in a parsed JSON document
+	 */
+	@SuppressWarnings("unchecked")
+	private static String findValue(Map<String, Object> json, String field) {
+		for (Map.Entry<String, Object> entry : json.entrySet()) {
+			if (field.equals(entry.getKey()) && !(entry.getValue() instanceof Map)) {
+				return entry.getValue() == null ? null : entry.getValue().toString();
+			}
+			if (entry.getValue() instanceof Map) {
+				String value = findValue((Map<String, Object>) entry.getValue(), field);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		return null;
+	}
+
+	private long getHeapAfterGc() throws InterruptedException {
+		System.gc();
+		Thread.sleep(1000);
+		System.gc();
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+
+	private static List<Long> drain(ConcurrentLinkedQueue<Long> queue) {
+		List<Long> values = new ArrayList<Long>();
+		Long value;
+		while ((value = queue.poll()) != null) {
+			values.add(value);
+		}
+		return values;
+	}
+
+	private static long percentile(List<Long> values, int percentile) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		Collections.sort(values);
+		return values.get(Math.min(values.size() - 1, (int) Math.ceil(percentile / 100.0 * values.size()) - 1));
+	}
+
+	private static boolean check(boolean condition, String failure) {
+		if (!condition) {
+			System.out.println("FAILED: " + failure);
+		}
+		return condition;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
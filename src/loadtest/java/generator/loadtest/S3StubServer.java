@@ -0,0 +1,325 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory, S3-compatible stand-in for load tests. It serves path style requests for the calls the service makes:
+ * HEAD, GET with ranges, PUT, DELETE and multipart uploads. Objects live in memory and are lost when it stops.
+ */
+public class S3StubServer {
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesServed = new AtomicLong();
+	private final AtomicLong bytesStored = new AtomicLong();
+
+	/**
+	 * @param port
+	 *            Port to listen on, or 0 for any free port
+	 */
+	public S3StubServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getEndpoint() {
+		return String.format("http://localhost:%d", server.getAddress().getPort());
+	}
+
+	/**
+	 * Stores an object directly, for seeding source rasters
+	 */
+	public void putObject(String bucketName, String key, byte[] content) {
+		objects.put(bucketName + "/" + key, new StoredObject(content, DigestUtils.md5Hex(content)));
+	}
+
+	public int getObjectCount() {
+		return objects.size();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	public long getBytesStored() {
+		return bytesStored.get();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8").substring(1);
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String method = exchange.getRequestMethod();
+
+			if ("HEAD".equals(method)) {
+				headObject(exchange, path);
+			} else if ("GET".equals(method)) {
+				getObject(exchange, path);
+			} else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+				uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+			} else if ("PUT".equals(method)) {
+				byte[] content = readBody(exchange);
+				putObject(path.substring(0, path.indexOf('/')), path.substring(path.indexOf('/') + 1), content);
+				bytesStored.addAndGet(content.length);
+				exchange.getResponseHeaders().set("ETag", quote(objects.get(path).eTag));
+				exchange.sendResponseHeaders(200, -1);
+			} else if ("POST".equals(method) && query.containsKey("uploads")) {
+				String uploadId = UUID.randomUUID().toString();
+				uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+				sendXml(exchange, String.format("<InitiateMultipartUploadResult><Bucket>%s</Bucket><Key>%s</Key><UploadId>%s</UploadId>"
+						+ "</InitiateMultipartUploadResult>", xml(getBucket(path)), xml(getKey(path)), uploadId));
+			} else if ("POST".equals(method) && query.containsKey("uploadId")) {
+				completeUpload(exchange, path, query.get("uploadId"));
+			} else if ("DELETE".equals(method)) {
+				if (query.containsKey("uploadId")) {
+					uploads.remove(query.get("uploadId"));
+				} else {
+					objects.remove(path);
+				}
+				exchange.sendResponseHeaders(204, -1);
+			} else {
+				sendError(exchange, 501, "NotImplemented");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void headObject(HttpExchange exchange, String path) throws IOException {
+		StoredObject object = objects.get(path);
+		if (object == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("ETag", quote(object.eTag));
+		exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.content.length));
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void getObject(HttpExchange exchange, String path) throws IOException {
+		StoredObject object = objects.get(path);
+		if (object == null) {
+			sendError(exchange, 404, "NoSuchKey");
+			return;
+		}
+		int start = 0;
+		int end = object.content.length - 1;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=")) {
+			String[] bounds = range.substring("bytes=".length()).split("-");
+			start = Integer.parseInt(bounds[0]);
+			if (bounds.length > 1 && !bounds[1].isEmpty()) {
+				end = Math.min(end, Integer.parseInt(bounds[1]));
+			}
+			exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", start, end, object.content.length));
+		}
+		int length = end - start + 1;
+		exchange.getResponseHeaders().set("ETag", quote(object.eTag));
+		exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(object.content, start, length);
+		}
+		bytesServed.addAndGet(length);
+	}
+
+	private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+		Map<Integer, byte[]> parts = uploads.get(uploadId);
+		if (parts == null) {
+			sendError(exchange, 404, "NoSuchUpload");
+			return;
+		}
+		byte[] content = readBody(exchange);
+		synchronized (parts) {
+			parts.put(partNumber, content);
+		}
+		bytesStored.addAndGet(content.length);
+		exchange.getResponseHeaders().set("ETag", quote(DigestUtils.md5Hex(content)));
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void completeUpload(HttpExchange exchange, String path, String uploadId) throws IOException {
+		IOUtils.toByteArray(exchange.getRequestBody());
+		Map<Integer, byte[]> parts = uploads.remove(uploadId);
+		if (parts == null) {
+			sendError(exchange, 404, "NoSuchUpload");
+			return;
+		}
+		int length = 0;
+		StringBuilder partDigests = new StringBuilder();
+		synchronized (parts) {
+			for (byte[] part : parts.values()) {
+				length += part.length;
+				partDigests.append(DigestUtils.md5Hex(part));
+			}
+			byte[] content = new byte[length];
+			int offset = 0;
+			for (byte[] part : parts.values()) {
+				System.arraycopy(part, 0, content, offset, part.length);
+				offset += part.length;
+			}
+			String eTag;
+			try {
+				eTag = String.format("%s-%d", DigestUtils.md5Hex(Hex.decodeHex(partDigests.toString().toCharArray())), parts.size());
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			objects.put(path, new StoredObject(content, eTag));
+			sendXml(exchange, String.format("<CompleteMultipartUploadResult><Location>%s/%s</Location><Bucket>%s</Bucket><Key>%s</Key>"
+					+ "<ETag>%s</ETag></CompleteMultipartUploadResult>", getEndpoint(), xml(path), xml(getBucket(path)), xml(getKey(path)),
+					xml(quote(eTag))));
+		}
+	}
+
+	/**
+	 * Reads a request body, decoding the signed aws-chunked encoding the SDK uses for uploads over plain HTTP
+	 */
+	private byte[] readBody(HttpExchange exchange) throws IOException {
+		byte[] body;
+		try (InputStream inputStream = exchange.getRequestBody()) {
+			body = IOUtils.toByteArray(inputStream);
+		}
+		if (exchange.getRequestHeaders().getFirst("x-amz-decoded-content-length") == null) {
+			return body;
+		}
+		byte[] decoded = new byte[Integer.parseInt(exchange.getRequestHeaders().getFirst("x-amz-decoded-content-length"))];
+		int position = 0;
+		int written = 0;
+		while (position < body.length) {
+			int lineEnd = indexOfLineEnd(body, position);
+			String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+			int chunkSize = Integer.parseInt(header.split(";")[0], 16);
+			if (chunkSize == 0) {
+				break;
+			}
+			System.arraycopy(body, lineEnd + 2, decoded, written, chunkSize);
+			written += chunkSize;
+			position = lineEnd + 2 + chunkSize + 2;
+		}
+		return decoded;
+	}
+
+	private int indexOfLineEnd(byte[] bytes, int from) throws IOException {
+		for (int i = from; i < bytes.length - 1; i++) {
+			if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+				return i;
+			}
+		}
+		throw new IOException("Malformed aws-chunked body.");
+	}
+
+	private void sendXml(HttpExchange exchange, String xml) throws IOException {
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(body);
+		}
+	}
+
+	private void sendError(HttpExchange exchange, int status, String code) throws IOException {
+		byte[] body = String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>%s</Code><Message>%s</Message></Error>", code, code)
+				.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(body);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null) {
+			return query;
+		}
+		for (String parameter : rawQuery.split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator < 0) {
+				query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+			} else {
+				query.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+						URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	private static String getBucket(String path) {
+		return path.substring(0, path.indexOf('/'));
+	}
+
+	private static String getKey(String path) {
+		return path.substring(path.indexOf('/') + 1);
+	}
+
+	private static String quote(String eTag) {
+		return "\"" + eTag + "\"";
+	}
+
+	private static String xml(String value) {
+		return StringEscapeUtils.escapeXml10(value);
+	}
+
+	private static class StoredObject {
+		private final byte[] content;
+		private final String eTag;
+
+		StoredObject(byte[] content, String eTag) {
+			this.content = content;
+			this.eTag = eTag;
+		}
+	}
+}
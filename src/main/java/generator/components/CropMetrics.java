@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import generator.config.ExecutorConfiguration;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics of the crop pipeline: latency histograms of each stage and of whole jobs, source and output bytes, active
+ * jobs, executor queue depth and errors by type. Job level metrics are tagged with the path, sync for requests served
+ * on the request thread and async for queued jobs.
+ */
+@Component
+public class CropMetrics {
+	@Autowired
+	private MeterRegistry meterRegistry;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.CROP_EXECUTOR)
+	private ThreadPoolTaskExecutor cropExecutor;
+
+	public static final String PATH_SYNC = "sync";
+	public static final String PATH_ASYNC = "async";
+
+	public static final String STAGE_DOWNLOAD = "download";
+	public static final String STAGE_READ = "read";
+	public static final String STAGE_CROP = "crop";
+	public static final String STAGE_ENCODE = "encode";
+	public static final String STAGE_UPLOAD = "upload";
+	public static final String STAGE_CLEANUP = "cleanup";
+
+	private final Map<String, AtomicInteger> activeJobs = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Initializing the gauges
+	 */
+	@PostConstruct
+	public void initialize() {
+		for (String path : new String[] { PATH_SYNC, PATH_ASYNC }) {
+			activeJobs.put(path, meterRegistry.gauge("crop.jobs.active", Tags.of("path", path), new AtomicInteger()));
+		}
+		meterRegistry.gauge("crop.executor.queue.size", cropExecutor, executor -> executor.getThreadPoolExecutor().getQueue().size());
+		meterRegistry.gauge("crop.executor.active", cropExecutor, ThreadPoolTaskExecutor::getActiveCount);
+	}
+
+	/**
+	 * Records the duration of one stage of a crop
+	 * 
+	 * @param stage
+	 *            One of the STAGE_ constants
+	 * @param path
+	 *            PATH_SYNC or PATH_ASYNC
+	 * @param startNanos
+	 *            System.nanoTime() at the start of the stage
+	 */
+	public void recordStage(String stage, String path, long startNanos) {
+		Timer.builder("crop.stage.duration").tags("stage", stage, "path", path).publishPercentileHistogram().register(meterRegistry)
+				.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Marks a job as started
+	 */
+	public void jobStarted(String path) {
+		activeJobs.get(path).incrementAndGet();
+	}
+
+	/**
+	 * Marks a job as finished, however it ended, and records its duration
+	 * 
+	 * @param startNanos
+	 *            System.nanoTime() when the job started
+	 */
+	public void jobFinished(String path, long startNanos) {
+		activeJobs.get(path).decrementAndGet();
+		Timer.builder("crop.job.duration").tags("path", path).publishPercentileHistogram().register(meterRegistry)
+				.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Counts a failed job by the type of its error
+	 */
+	public void recordError(String path, Throwable error) {
+		meterRegistry.counter("crop.errors", "path", path, "type", error.getClass().getSimpleName()).increment();
+	}
+
+	/**
+	 * Records the bytes of the source raster read by a job: the whole file when it is downloaded, or the fetched ranges
+	 */
+	public void recordBytesIn(String path, long bytes) {
+		DistributionSummary.builder("crop.bytes.in").baseUnit("bytes").tags("path", path).register(meterRegistry).record(bytes);
+	}
+
+	/**
+	 * Records the bytes of an encoded output
+	 */
+	public void recordBytesOut(String path, long bytes) {
+		DistributionSummary.builder("crop.bytes.out").baseUnit("bytes").tags("path", path).register(meterRegistry).record(bytes);
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import exception.InvalidInputException;
+import generator.config.ExecutorConfiguration;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Runs the stages of a crop job on the executor suited to them: network-bound stages on the I/O executor and
+ * CPU-bound stages on the CPU executor. The job thread hands each stage over and waits for it, so with more jobs in
+ * flight than threads in either executor, transfers of some jobs overlap with decodes of others.
+ * 
+ * If the job is cancelled while it waits, the stage is interrupted or, if it has not started yet, taken off the queue.
+ * The job still waits for a running stage to stop, and a result the stage produces anyway is discarded, so no source
+ * stays pinned and no output is left behind.
+ */
+@Component
+public class CropPipeline {
+	@Autowired
+	private MeterRegistry meterRegistry;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.CROP_IO_EXECUTOR)
+	private ThreadPoolTaskExecutor ioExecutor;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.CROP_CPU_EXECUTOR)
+	private ThreadPoolTaskExecutor cpuExecutor;
+
+	@Value("${crop.pipeline.enabled:true}")
+	private boolean PIPELINE_ENABLED;
+
+	public static final String EXECUTOR_IO = "io";
+	public static final String EXECUTOR_CPU = "cpu";
+	private static final Logger LOGGER = LoggerFactory.getLogger(CropPipeline.class);
+
+	private Timer ioQueueWait;
+	private Timer cpuQueueWait;
+
+	/**
+	 * One stage of a crop
+	 */
+	public interface StageTask<T> {
+		T call() throws Exception;
+	}
+
+	/**
+	 * Releases the result of a stage whose job was cancelled before it could take the result
+	 */
+	public interface Discard<T> {
+		void discard(T result);
+	}
+
+	/**
+	 * Initializing the metrics of both stage queues
+	 */
+	@PostConstruct
+	public void initialize() {
+		ioQueueWait = registerMetrics(EXECUTOR_IO, ioExecutor);
+		cpuQueueWait = registerMetrics(EXECUTOR_CPU, cpuExecutor);
+	}
+
+	/**
+	 * Runs a network-bound stage on the I/O executor and waits for its result
+	 * 
+	 * @param task
+	 *            The stage
+	 * @param discard
+	 *            Releases the result if the job is cancelled before taking it, may be null
+	 * @return the result of the stage
+	 */
+	public <T> T runIo(StageTask<T> task, Discard<T> discard) throws InvalidInputException, IOException, InterruptedException {
+		return run(ioExecutor, ioQueueWait, task, discard);
+	}
+
+	/**
+	 * Runs a CPU-bound stage on the CPU executor and waits for its result
+	 * 
+	 * @param task
+	 *            The stage
+	 * @param discard
+	 *            Releases the result if the job is cancelled before taking it, may be null
+	 * @return the result of the stage
+	 */
+	public <T> T runCpu(StageTask<T> task, Discard<T> discard) throws InvalidInputException, IOException, InterruptedException {
+		return run(cpuExecutor, cpuQueueWait, task, discard);
+	}
+
+	private <T> T run(ThreadPoolTaskExecutor executor, Timer queueWait, StageTask<T> task, Discard<T> discard)
+			throws InvalidInputException, IOException, InterruptedException {
+		if (!PIPELINE_ENABLED) {
+			try {
+				return task.call();
+			} catch (InvalidInputException | IOException | InterruptedException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Crop stage failed.", e);
+			}
+		}
+
+		Stage<T> stage = new Stage<T>(task, queueWait);
+		ThreadPoolExecutor threadPoolExecutor = executor.getThreadPoolExecutor();
+		try {
+			threadPoolExecutor.execute(stage);
+		} catch (RejectedExecutionException e) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException("Crop cancelled while waiting for room in the stage queue.");
+			}
+			throw e;
+		}
+
+		try {
+			stage.done.await();
+		} catch (InterruptedException e) {
+			stage.cancel();
+			if (!threadPoolExecutor.remove(stage)) {
+				awaitUninterruptibly(stage.done);
+				if (stage.error == null && stage.result != null && discard != null) {
+					try {
+						discard.discard(stage.result);
+					} catch (RuntimeException discardError) {
+						LOGGER.error("Error discarding the result of a cancelled crop stage.", discardError);
+					}
+				}
+			}
+			throw e;
+		}
+		return getResult(stage);
+	}
+
+	/**
+	 * Returns the result of a completed stage, or rethrows its error
+	 */
+	private <T> T getResult(Stage<T> stage) throws InvalidInputException, IOException, InterruptedException {
+		Throwable error = stage.error;
+		if (error == null) {
+			return stage.result;
+		}
+		if (error instanceof InvalidInputException) {
+			throw (InvalidInputException) error;
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error instanceof InterruptedException) {
+			throw (InterruptedException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		if (error instanceof Error) {
+			throw (Error) error;
+		}
+		throw new IOException("Crop stage failed.", error);
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Timer registerMetrics(String name, ThreadPoolTaskExecutor executor) {
+		Tags tags = Tags.of("executor", name);
+		meterRegistry.gauge("crop.pipeline.queue.size", tags, executor, e -> e.getThreadPoolExecutor().getQueue().size());
+		meterRegistry.gauge("crop.pipeline.queue.remaining", tags, executor, e -> e.getThreadPoolExecutor().getQueue().remainingCapacity());
+		meterRegistry.gauge("crop.pipeline.active", tags, executor, ThreadPoolTaskExecutor::getActiveCount);
+		meterRegistry.gauge("crop.pipeline.threads", tags, executor, ThreadPoolTaskExecutor::getMaxPoolSize);
+		return Timer.builder("crop.pipeline.queue.wait").tags(tags).publishPercentileHistogram().register(meterRegistry);
+	}
+
+	/**
+	 * A stage handed to an executor. The job thread reads the result or error once done has counted down.
+	 */
+	private static class Stage<T> implements Runnable {
+		private final StageTask<T> task;
+		private final Timer queueWait;
+		private final long queued = System.nanoTime();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Thread thread;
+		private boolean cancelled = false;
+		private T result;
+		private Throwable error;
+
+		Stage(StageTask<T> task, Timer queueWait) {
+			this.task = task;
+			this.queueWait = queueWait;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (cancelled) {
+					done.countDown();
+					return;
+				}
+				thread = Thread.currentThread();
+			}
+			queueWait.record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+			try {
+				result = task.call();
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				synchronized (this) {
+					thread = null;
+				}
+				// Do not leave a cancellation interrupt behind on the pooled thread
+				Thread.interrupted();
+				done.countDown();
+			}
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+}
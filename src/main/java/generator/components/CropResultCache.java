@@ -0,0 +1,329 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import exception.InvalidInputException;
+import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import model.data.DataResource;
+
+/**
+ * Cache of crop results, so that repeated identical crops return the output that was already uploaded instead of
+ * cropping and uploading it again. Entries are keyed by the S3 domain, the source object and its ETag, the normalized
+ * bounds and the resolved output options, and expire after a TTL. The cache is off by default: keying a request costs a
+ * HEAD of the source, and every identical request is handed the same output object, so deleting or overwriting that
+ * object affects every client that was given it.
+ * 
+ * Identical crops that arrive while one is running are coalesced onto it: synchronous crops wait for the running crop's
+ * result, and asynchronous jobs each get their own job, which waits on one shared crop. The shared crop is cancelled
+ * only once every job waiting on it has been deleted. Jobs are only known to the instance running them, so
+ * asynchronous jobs are not coalesced when a shared job queue is configured; they still reuse finished results.
+ */
+@Component
+public class CropResultCache {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${crop.result.cache.enabled:false}")
+	private boolean CACHE_ENABLED;
+	@Value("${crop.result.cache.ttl.seconds:300}")
+	private long TTL_SECONDS;
+	@Value("${crop.result.cache.max.entries:1000}")
+	private int MAX_ENTRIES;
+
+	/**
+	 * Results in least recently used order. Guarded by this.
+	 */
+	private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true);
+	private final ConcurrentMap<String, FutureTask<DataResource>> inFlight = new ConcurrentHashMap<String, FutureTask<DataResource>>();
+	/**
+	 * Asynchronous crops shared by identical jobs, by result key, and the shared crop each job waits on, by job Id.
+	 * Guarded by this.
+	 */
+	private final Map<String, SharedJob> sharedJobs = new HashMap<String, SharedJob>();
+	private final Map<String, SharedJob> waiterJobs = new HashMap<String, SharedJob>();
+
+	private Counter hits;
+	private Counter misses;
+	private Counter coalesced;
+
+	/**
+	 * Produces the result of a crop on a miss
+	 */
+	public interface ResultLoader {
+		DataResource load() throws Exception;
+	}
+
+	/**
+	 * Initializing metrics
+	 */
+	@PostConstruct
+	public void initialize() {
+		hits = meterRegistry.counter("crop.result.cache.hits");
+		misses = meterRegistry.counter("crop.result.cache.misses");
+		coalesced = meterRegistry.counter("crop.result.cache.coalesced");
+		meterRegistry.gauge("crop.result.cache.entries", results, Map::size);
+	}
+
+	public boolean isEnabled() {
+		return CACHE_ENABLED;
+	}
+
+	/**
+	 * Builds the cache key of a crop. Bounds are normalized so that the same box written with different precision or
+	 * corner order maps to the same key.
+	 * 
+	 * @param domain
+	 *            S3 domain of the source raster
+	 * @param bucketName
+	 *            Bucket of the source raster
+	 * @param key
+	 *            Key of the source raster
+	 * @param eTag
+	 *            Current ETag of the source raster
+	 * @param bounds
+	 *            Requested bounding box
+	 * @param outputOptions
+	 *            Resolved output options
+	 * @return String cache key
+	 */
+	public String getKey(String domain, String bucketName, String key, String eTag, BoundingBoxInfo bounds, OutputOptions outputOptions) {
+		return DigestUtils.sha256Hex(String.format("%s/%s/%s@%s|%s,%s,%s,%s|%s,%d,%s", domain, bucketName, key, eTag,
+				normalize(Math.min(bounds.getMinx(), bounds.getMaxx())), normalize(Math.min(bounds.getMiny(), bounds.getMaxy())),
+				normalize(Math.max(bounds.getMinx(), bounds.getMaxx())), normalize(Math.max(bounds.getMiny(), bounds.getMaxy())),
+				outputOptions.getTiled(), outputOptions.getTileSize(), outputOptions.getCompression()));
+	}
+
+	/**
+	 * Returns the cached result for the key, or null if there is none or it has expired
+	 */
+	public synchronized DataResource get(String key) {
+		CachedResult cached = results.get(key);
+		if (cached == null || cached.isExpired()) {
+			if (cached != null) {
+				results.remove(key);
+			}
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return cached.result;
+	}
+
+	/**
+	 * Stores the result of a completed crop, evicting the least recently used results when the cache is full
+	 */
+	public synchronized void put(String key, DataResource result) {
+		results.put(key, new CachedResult(result, System.currentTimeMillis() + TTL_SECONDS * 1000));
+		Iterator<CachedResult> iterator = results.values().iterator();
+		while (results.size() > MAX_ENTRIES && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the cached result for the key, or runs the loader and caches its result. Concurrent calls for the same
+	 * key share one run of the loader. If the shared run is cancelled, the waiting callers run it again themselves.
+	 * 
+	 * @param key
+	 *            Key from {@link #getKey(String, String, String, String, BoundingBoxInfo, OutputOptions)}
+	 * @param loader
+	 *            Crops and uploads on a miss
+	 * @return DataResource of the cropped output
+	 */
+	public DataResource getOrLoad(String key, ResultLoader loader) throws InvalidInputException, IOException, InterruptedException {
+		while (true) {
+			DataResource cached = get(key);
+			if (cached != null) {
+				return cached;
+			}
+
+			FutureTask<DataResource> load = new FutureTask<DataResource>(() -> {
+				DataResource result = loader.load();
+				put(key, result);
+				return result;
+			});
+			FutureTask<DataResource> existing = inFlight.putIfAbsent(key, load);
+			if (existing == null) {
+				try {
+					load.run();
+					return getResult(load, false);
+				} finally {
+					inFlight.remove(key, load);
+				}
+			}
+
+			coalesced.increment();
+			DataResource shared = getResult(existing, true);
+			if (shared != null) {
+				return shared;
+			}
+			// The running crop was cancelled rather than this one; try again
+		}
+	}
+
+	/**
+	 * Adds a job as a waiter on the asynchronous crop producing the result for the key, starting a shared crop under
+	 * the given Id if none is running
+	 * 
+	 * @param waiterId
+	 *            Id of the job handed to the client
+	 * @param sharedJobId
+	 *            Id to run the crop under, if it has to be started
+	 * @return String Id of the shared crop the waiter was added to; the given sharedJobId if the caller must start it
+	 */
+	public synchronized String addWaiter(String key, String waiterId, String sharedJobId) {
+		SharedJob sharedJob = sharedJobs.get(key);
+		if (sharedJob == null) {
+			sharedJob = new SharedJob(key, sharedJobId);
+			sharedJobs.put(key, sharedJob);
+		} else {
+			coalesced.increment();
+		}
+		sharedJob.waiters.add(waiterId);
+		waiterJobs.put(waiterId, sharedJob);
+		return sharedJob.jobId;
+	}
+
+	/**
+	 * Removes a waiter, for a job deleted by its client
+	 * 
+	 * @return String Id of the shared crop if the waiter was its last, so that the crop should be cancelled; null if
+	 *         other waiters remain or the job was not waiting on a shared crop
+	 */
+	public synchronized String removeWaiter(String waiterId) {
+		SharedJob sharedJob = waiterJobs.remove(waiterId);
+		if (sharedJob == null) {
+			return null;
+		}
+		sharedJob.waiters.remove(waiterId);
+		if (!sharedJob.waiters.isEmpty()) {
+			return null;
+		}
+		sharedJobs.remove(sharedJob.key, sharedJob);
+		return sharedJob.jobId;
+	}
+
+	/**
+	 * Returns the Ids of the jobs waiting on a shared crop
+	 */
+	public synchronized List<String> getWaiters(String key, String sharedJobId) {
+		SharedJob sharedJob = sharedJobs.get(key);
+		if (sharedJob == null || !sharedJob.jobId.equals(sharedJobId)) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(sharedJob.waiters);
+	}
+
+	/**
+	 * Forgets a shared crop once it has completed. Its waiters keep the results they were given.
+	 */
+	public synchronized void removeSharedJob(String key, String sharedJobId) {
+		SharedJob sharedJob = sharedJobs.get(key);
+		if (sharedJob == null || !sharedJob.jobId.equals(sharedJobId)) {
+			return;
+		}
+		sharedJobs.remove(key);
+		for (String waiterId : sharedJob.waiters) {
+			waiterJobs.remove(waiterId, sharedJob);
+		}
+	}
+
+	/**
+	 * Returns the result of a load, rethrowing its failure. A load cancelled by the interruption of the thread running it
+	 * returns null when the caller is only waiting on it, so that the caller can run it again.
+	 */
+	private DataResource getResult(FutureTask<DataResource> load, boolean waiting)
+			throws InvalidInputException, IOException, InterruptedException {
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof InvalidInputException) {
+				throw (InvalidInputException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InterruptedException) {
+				if (waiting) {
+					return null;
+				}
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Error cropping raster.", cause);
+		}
+	}
+
+	private static String normalize(double coordinate) {
+		// Adding 0.0 turns -0.0 into 0.0
+		return String.format(Locale.ROOT, "%.9f", coordinate + 0.0);
+	}
+
+	/**
+	 * Asynchronous crop run once for the jobs of identical requests
+	 */
+	private static class SharedJob {
+		private final String key;
+		private final String jobId;
+		private final Set<String> waiters = new LinkedHashSet<String>();
+
+		SharedJob(String key, String jobId) {
+			this.key = key;
+			this.jobId = jobId;
+		}
+	}
+
+	private static class CachedResult {
+		private final DataResource result;
+		private final long expiresAt;
+
+		CachedResult(DataResource result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
@@ -15,31 +15,142 @@
  **/
 package generator.components;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.ResourceAccessException;
 
+import generator.model.CropProgress;
+import generator.model.JobStatusResponse;
 import generator.model.ServiceResource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import model.job.JobProgress;
+import model.status.StatusUpdate;
 
 /**
- * In-memory data store for testing Piazza Service features.
+ * Data store for testing Piazza Service features.
+ * 
+ * Records are immutable snapshots indexed by a concurrent map, so status polling never blocks on, or observes a half
+ * applied update from, the worker threads. The snapshots themselves are held by a {@link JobStore}, which may keep them
+ * off the heap and on disk; jobs left in a durable store by a previous run are recovered at startup, and the store is
+ * compacted periodically. The store is bounded: completed jobs are evicted once they are older than
+ * the configured TTL, and the oldest completed jobs are evicted first when the maximum entry count is exceeded. Jobs are
+ * queued in the order they complete, so both evictions take them from the head of the queue instead of scanning or
+ * sorting the store. Running jobs are never evicted; their number is already bounded by the crop executor.
+ * 
+ * Every stored snapshot is stamped with a version from a store-wide sequence, and listeners registered for a job are
+ * called with each new snapshot as it is stored, so status changes can be pushed to clients instead of polled. Many
+ * jobs can be read at once as of a single version of the store, which serves as the cursor for the next read.
  * 
  * @see pz-jobmanager implementation as main reference.
  * 
  */
 @Component
 public class DataAccessor {
+	@Autowired
+	private MeterRegistry meterRegistry;
+	@Autowired
+	private JobStore jobStore;
+
+	@Value("${jobstore.max.entries:10000}")
+	private int MAX_ENTRIES;
+	@Value("${jobstore.completed.ttl.seconds:3600}")
+	private long COMPLETED_TTL_SECONDS;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataAccessor.class);
+
+	/**
+	 * Latest stored snapshot of each job
+	 */
+	private final Map<String, JobStore.Entry> data = new ConcurrentHashMap<String, JobStore.Entry>();
+	private final ConcurrentMap<String, JobWatch> listeners = new ConcurrentHashMap<String, JobWatch>();
 	/**
-	 * In-memory data store.
+	 * Completed snapshots in the order they were stored. A queued snapshot is stale once its job has been changed or
+	 * removed, and is dropped when it reaches the head. Only polled while holding the queue's monitor.
 	 */
-	private Map<String, ServiceResource> data = new HashMap<String, ServiceResource>();
+	private final Queue<CompletedJob> completed = new ConcurrentLinkedQueue<CompletedJob>();
+	private final AtomicLong sequence = new AtomicLong();
+	/**
+	 * Held shared by every change to the store, and exclusively while a snapshot of many jobs is read, so that the
+	 * snapshot sees the store as of a single version
+	 */
+	private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+	private Counter ttlEvictions;
+	private Counter capacityEvictions;
+
+	/**
+	 * Called with every new snapshot of a watched job. Listeners are called on the thread that stored the snapshot, so
+	 * they must not block. The snapshots of a job are passed in version order; one that reaches the listeners after a
+	 * newer snapshot of the same job is dropped.
+	 */
+	public interface JobListener {
+		/**
+		 * @param resource
+		 *            The new snapshot of the job, or null if the job has been removed
+		 */
+		void jobChanged(ServiceResource resource);
+	}
 
 	public DataAccessor() {
 		// Expected for Component instantiation
 	}
 
+	/**
+	 * Initializing metrics and recovering the jobs left in the store by a previous run. Jobs that had not completed
+	 * were stopped by the restart, and are recovered as failed so clients resubmit only those.
+	 */
+	@PostConstruct
+	public void initialize() {
+		meterRegistry.gauge("jobstore.size", data, Map::size);
+		ttlEvictions = meterRegistry.counter("jobstore.evictions", "reason", "ttl");
+		capacityEvictions = meterRegistry.counter("jobstore.evictions", "reason", "capacity");
+		meterRegistry.gauge("jobstore.watched", listeners, Map::size);
+		meterRegistry.gauge("jobstore.stored.bytes", jobStore, JobStore::getStoredBytes);
+
+		List<String> interrupted = new ArrayList<String>();
+		List<JobStore.Entry> recovered = new ArrayList<JobStore.Entry>(jobStore.recover());
+		recovered.sort(Comparator.comparingLong(JobStore.Entry::getUpdatedAt));
+		for (JobStore.Entry entry : recovered) {
+			data.put(entry.getServiceResourceId(), entry);
+			sequence.accumulateAndGet(entry.getVersion(), Math::max);
+			if (entry.isCompleted()) {
+				trackCompleted(entry);
+			} else {
+				interrupted.add(entry.getServiceResourceId());
+			}
+		}
+		for (String serviceResourceId : interrupted) {
+			ServiceResource resource = new ServiceResource();
+			resource.setServiceResourceId(serviceResourceId);
+			resource.setStatus(new StatusUpdate(StatusUpdate.STATUS_ERROR));
+			update(resource);
+		}
+		if (!data.isEmpty()) {
+			LOGGER.info(String.format("Recovered %d jobs, %d of which were interrupted by the restart.", data.size(), interrupted.size()));
+		}
+	}
+
 	/**
 	 * Returns a Job that matches the specified Id.
 	 * 
@@ -49,23 +160,69 @@ public class DataAccessor {
 	 * @throws InterruptedException
 	 */
 	public ServiceResource getServiceResourceById(String serviceResourceId) throws ResourceAccessException, InterruptedException {
-		if (data.containsKey(serviceResourceId)) {
-			return data.get(serviceResourceId);
-		} else {
-			return null;
-		}
+		JobStore.Entry entry = data.get(serviceResourceId);
+		return entry == null ? null : entry.read();
 	}
 
 	/**
+	 * Updates an existing Job. Jobs that have been deleted are not recreated.
 	 * 
 	 * @param sMetadata
 	 * @return
 	 */
 	public String update(ServiceResource serviceResource) {
-		data.put(serviceResource.getServiceResourceId(), serviceResource);
+		JobStore.Entry updated;
+		snapshotLock.readLock().lock();
+		try {
+			updated = data.computeIfPresent(serviceResource.getServiceResourceId(),
+					(id, entry) -> store(serviceResource, sequence.incrementAndGet()));
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+		if (updated != null) {
+			trackCompleted(updated);
+			notifyListeners(updated.getServiceResourceId(), updated.read());
+		}
 		return serviceResource.getServiceResourceId();
 	}
 
+	/**
+	 * Stores the progress of a running Job, as its running status and percentage. Progress that arrives once the job
+	 * has completed is dropped, so it never overwrites the final status.
+	 * 
+	 * @param serviceResourceId
+	 *            The Id of the job
+	 * @param progress
+	 *            The current progress of the job
+	 */
+	public void updateProgress(String serviceResourceId, CropProgress progress) {
+		JobStore.Entry updated;
+		snapshotLock.readLock().lock();
+		try {
+			updated = data.computeIfPresent(serviceResourceId, (id, entry) -> {
+				if (entry.isCompleted()) {
+					return entry;
+				}
+				ServiceResource current = entry.read();
+				ServiceResource resource = new ServiceResource();
+				resource.setServiceResourceId(id);
+				StatusUpdate status = new StatusUpdate(StatusUpdate.STATUS_RUNNING);
+				status.setProgress(new JobProgress(progress.getPercentComplete()));
+				resource.setStatus(status);
+				resource.setResult(current.getResult());
+				resource.setResults(current.getResults());
+				resource.setProgress(progress);
+				return store(resource, sequence.incrementAndGet());
+			});
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+		// A completed job was left as it was; anything else is a new running snapshot
+		if (updated != null && !updated.isCompleted()) {
+			notifyListeners(serviceResourceId, updated.read());
+		}
+	}
+
 	/**
 	 * Deletes a Job entry.
 	 * 
@@ -73,7 +230,9 @@ public class DataAccessor {
 	 *            The Id of the job to delete
 	 */
 	public void removeJob(String serviceResourceId) {
-		data.remove(serviceResourceId);
+		if (removeEntry(serviceResourceId, null)) {
+			notifyListeners(serviceResourceId, null);
+		}
 	}
 
 	/**
@@ -83,6 +242,279 @@ public class DataAccessor {
 	 *            The Job
 	 */
 	public void addServiceResource(ServiceResource resource) {
-		data.put(resource.getServiceResourceId(), resource);
+		JobStore.Entry entry;
+		snapshotLock.readLock().lock();
+		try {
+			entry = data.compute(resource.getServiceResourceId(), (id, existing) -> store(resource, sequence.incrementAndGet()));
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+		trackCompleted(entry);
+		notifyListeners(resource.getServiceResourceId(), entry.read());
+		if (data.size() > MAX_ENTRIES) {
+			evictOldestCompleted(data.size() - MAX_ENTRIES);
+		}
+	}
+
+	/**
+	 * Returns the given Jobs as of a single version of the store. Changes wait only while the cursor and the stored
+	 * entries are captured, so no job in it reflects a change that the returned cursor does not cover. Entries are
+	 * immutable, so they are deserialized after the lock is released.
+	 * 
+	 * @param serviceResourceIds
+	 *            The Ids of the jobs to read
+	 * @param changedSince
+	 *            Cursor of an earlier snapshot; only jobs changed after it are returned. 0 returns every job.
+	 * @return JobStatusResponse the jobs, the Ids that were not found, and the cursor of this snapshot
+	 */
+	public JobStatusResponse getSnapshot(Collection<String> serviceResourceIds, long changedSince) {
+		List<JobStore.Entry> entries = new ArrayList<JobStore.Entry>();
+		List<String> notFound = new ArrayList<String>();
+		long cursor;
+		snapshotLock.writeLock().lock();
+		try {
+			cursor = sequence.get();
+			for (String serviceResourceId : serviceResourceIds) {
+				JobStore.Entry entry = data.get(serviceResourceId);
+				if (entry == null) {
+					notFound.add(serviceResourceId);
+				} else if (entry.getVersion() > changedSince) {
+					entries.add(entry);
+				}
+			}
+		} finally {
+			snapshotLock.writeLock().unlock();
+		}
+
+		List<ServiceResource> jobs = new ArrayList<ServiceResource>(entries.size());
+		for (JobStore.Entry entry : entries) {
+			jobs.add(entry.read());
+		}
+		return new JobStatusResponse(cursor, jobs, notFound);
+	}
+
+	/**
+	 * Returns the number of stored jobs
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * Registers a listener for the changes of a job. Register before reading the current snapshot, so that no change
+	 * is missed between the read and the registration.
+	 * 
+	 * @param serviceResourceId
+	 *            The Id of the job to watch
+	 * @param listener
+	 *            Called with each new snapshot of the job
+	 */
+	public void addListener(String serviceResourceId, JobListener listener) {
+		listeners.compute(serviceResourceId, (id, watch) -> {
+			JobWatch updated = watch == null ? new JobWatch() : watch;
+			updated.listeners.add(listener);
+			return updated;
+		});
+	}
+
+	/**
+	 * Unregisters a listener added with {@link #addListener(String, JobListener)}
+	 */
+	public void removeListener(String serviceResourceId, JobListener listener) {
+		listeners.computeIfPresent(serviceResourceId, (id, watch) -> {
+			watch.listeners.remove(listener);
+			return watch.listeners.isEmpty() ? null : watch;
+		});
+	}
+
+	/**
+	 * Returns true if the status is final, so the job will not change again
+	 */
+	public static boolean isCompleted(StatusUpdate status) {
+		if (status == null) {
+			return false;
+		}
+		return StatusUpdate.STATUS_SUCCESS.equals(status.getStatus()) || StatusUpdate.STATUS_ERROR.equals(status.getStatus())
+				|| StatusUpdate.STATUS_FAIL.equals(status.getStatus()) || StatusUpdate.STATUS_CANCELLED.equals(status.getStatus());
+	}
+
+	/**
+	 * Calls the listeners of a job with a new snapshot. Changes to a job are stored in order, but are passed on after
+	 * the map's lock on the job is released, so concurrent changes can get here out of order. Listeners are called under
+	 * the lock of the job's watch, and a snapshot older than the last one passed on is dropped, as it is superseded.
+	 * 
+	 * @param resource
+	 *            The new snapshot, or null once the job has been removed
+	 */
+	private void notifyListeners(String serviceResourceId, ServiceResource resource) {
+		JobWatch watch = listeners.get(serviceResourceId);
+		if (watch == null) {
+			return;
+		}
+		synchronized (watch) {
+			// A removal supersedes every snapshot stored before it, but not those of a job added again under the Id
+			long version = resource == null ? sequence.get() : resource.getVersion();
+			if (version <= watch.notifiedVersion) {
+				return;
+			}
+			watch.notifiedVersion = version;
+			for (JobListener listener : watch.listeners) {
+				try {
+					listener.jobChanged(resource);
+				} catch (RuntimeException e) {
+					LOGGER.warn(String.format("Listener of job %s failed.", serviceResourceId), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evicts completed jobs that are older than the TTL, from the head of the completed queue
+	 */
+	@Scheduled(fixedDelayString = "${jobstore.eviction.interval.ms:60000}")
+	public void evictExpired() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(COMPLETED_TTL_SECONDS);
+		List<String> evicted = new ArrayList<String>();
+		synchronized (completed) {
+			CompletedJob head;
+			while ((head = completed.peek()) != null) {
+				JobStore.Entry entry = getCurrentEntry(head);
+				if (entry != null && entry.getUpdatedAt() >= cutoff) {
+					break;
+				}
+				completed.poll();
+				if (entry != null && removeEntry(entry.getServiceResourceId(), entry)) {
+					evicted.add(entry.getServiceResourceId());
+				}
+			}
+		}
+		// Listeners are called outside the queue's monitor, as they may add jobs themselves
+		for (String serviceResourceId : evicted) {
+			ttlEvictions.increment();
+			notifyListeners(serviceResourceId, null);
+		}
+	}
+
+	/**
+	 * Compacts the job store, if it holds enough replaced and deleted snapshots. Changes go on while it runs: every
+	 * change made after the store marks the start of the compaction is copied by the store as well, so the live entries
+	 * are read without a lock, and each moved entry is swapped in only if the job has not changed again since.
+	 */
+	@Scheduled(fixedDelayString = "${jobstore.compaction.interval.ms:60000}")
+	public void compact() {
+		Map<String, JobStore.Entry> moved = jobStore.compact(() -> new ArrayList<JobStore.Entry>(data.values()));
+		snapshotLock.readLock().lock();
+		try {
+			for (JobStore.Entry entry : moved.values()) {
+				data.computeIfPresent(entry.getServiceResourceId(),
+						(id, current) -> current.getVersion() == entry.getVersion() ? entry : current);
+			}
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Evicts up to the given number of completed jobs, oldest first
+	 */
+	private void evictOldestCompleted(int count) {
+		List<String> evicted = new ArrayList<String>();
+		synchronized (completed) {
+			CompletedJob head;
+			while (evicted.size() < count && (head = completed.poll()) != null) {
+				JobStore.Entry entry = getCurrentEntry(head);
+				if (entry != null && removeEntry(entry.getServiceResourceId(), entry)) {
+					evicted.add(entry.getServiceResourceId());
+				}
+			}
+		}
+		for (String serviceResourceId : evicted) {
+			capacityEvictions.increment();
+			notifyListeners(serviceResourceId, null);
+		}
+		if (evicted.size() < count) {
+			LOGGER.warn(String.format("Job store holds %d entries, above its maximum of %d, because jobs are still running.", data.size(),
+					MAX_ENTRIES));
+		}
+	}
+
+	/**
+	 * Queues a stored snapshot for eviction, if it is completed
+	 */
+	private void trackCompleted(JobStore.Entry entry) {
+		if (entry.isCompleted()) {
+			completed.offer(new CompletedJob(entry));
+		}
+	}
+
+	/**
+	 * Returns the stored entry of a queued completed snapshot, or null if the snapshot is stale. Compaction may have
+	 * moved the entry, so it is matched by version.
+	 */
+	private JobStore.Entry getCurrentEntry(CompletedJob job) {
+		JobStore.Entry entry = data.get(job.serviceResourceId);
+		return entry != null && entry.getVersion() == job.version ? entry : null;
+	}
+
+	/**
+	 * Stores an immutable copy of the given job, stamped with the version. Caller must hold the map's lock on the job,
+	 * so that the store sees the snapshots of a job in order.
+	 */
+	private JobStore.Entry store(ServiceResource source, long version) {
+		ServiceResource resource = new ServiceResource();
+		resource.setVersion(version);
+		resource.setServiceResourceId(source.getServiceResourceId());
+		resource.setStatus(source.getStatus());
+		resource.setResult(source.getResult());
+		resource.setResults(source.getResults());
+		resource.setProgress(source.getProgress());
+		return jobStore.write(resource, System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes a job and records the removal in the store
+	 * 
+	 * @param expected
+	 *            The job is only removed if this is still its latest entry; null removes any entry
+	 * @return true if the job was removed
+	 */
+	private boolean removeEntry(String serviceResourceId, JobStore.Entry expected) {
+		boolean[] removed = new boolean[1];
+		snapshotLock.readLock().lock();
+		try {
+			data.computeIfPresent(serviceResourceId, (id, entry) -> {
+				if (expected != null && entry != expected) {
+					return entry;
+				}
+				jobStore.delete(id);
+				removed[0] = true;
+				return null;
+			});
+		} finally {
+			snapshotLock.readLock().unlock();
+		}
+		return removed[0];
+	}
+
+	/**
+	 * Listeners of a job, and the version of the last snapshot they were called with. Guarded by itself.
+	 */
+	private static class JobWatch {
+		private final List<JobListener> listeners = new CopyOnWriteArrayList<JobListener>();
+		private long notifiedVersion = 0;
+	}
+
+	/**
+	 * A completed snapshot queued for eviction. Holds the Id and version rather than the entry, so that an entry moved
+	 * by compaction does not keep its old segment reachable.
+	 */
+	private static class CompletedJob {
+		private final String serviceResourceId;
+		private final long version;
+
+		private CompletedJob(JobStore.Entry entry) {
+			this.serviceResourceId = entry.getServiceResourceId();
+			this.version = entry.getVersion();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import generator.model.QueuedJob;
+import generator.model.ServiceResource;
+import model.status.StatusUpdate;
+
+/**
+ * Job queue held in a directory shared by the instances, one JSON file per job. Every change is made under an
+ * exclusive lock on a lock file in the directory, which the operating system holds across processes, and each file is
+ * replaced with an atomic rename, so lookups read files without the lock and never see a partial write.
+ * 
+ * Claims scan every file in the directory, so this queue suits local multi-process testing and small deployments
+ * rather than large backlogs.
+ */
+public class FileJobQueue implements JobQueue {
+	private static final String JOB_SUFFIX = ".json";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String LOCK_FILE = "queue.lock";
+	private static final Pattern SERVICE_ID = Pattern.compile("[\\w-]+");
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileJobQueue.class);
+
+	private final File directory;
+	private final int maxAttempts;
+	private final int maxQueued;
+	private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	/**
+	 * A change to the queue, made under the directory lock
+	 */
+	private interface QueueOperation<T> {
+		T apply() throws IOException;
+	}
+
+	/**
+	 * @param directory
+	 *            Directory shared by the instances
+	 * @param maxAttempts
+	 *            Claims of a job after which an expired lease fails the job instead of delivering it again
+	 * @param maxQueued
+	 *            Jobs waiting to be claimed after which new jobs are rejected
+	 */
+	public FileJobQueue(File directory, int maxAttempts, int maxQueued) {
+		this.directory = directory;
+		this.maxAttempts = maxAttempts;
+		this.maxQueued = maxQueued;
+		directory.mkdirs();
+	}
+
+	@Override
+	public void submit(QueuedJob job) {
+		withLock(() -> {
+			if (job.getState() == null) {
+				job.setState(QueuedJob.STATE_QUEUED);
+			}
+			if (QueuedJob.STATE_QUEUED.equals(job.getState()) && countQueued() >= maxQueued) {
+				throw new TaskRejectedException(String.format("Job queue %s already holds %d waiting jobs.", directory.getAbsolutePath(),
+						maxQueued));
+			}
+			job.setSubmittedAt(System.currentTimeMillis());
+			write(job);
+			return null;
+		});
+	}
+
+	@Override
+	public QueuedJob claim(String owner, long leaseMillis) {
+		return withLock(() -> {
+			long now = System.currentTimeMillis();
+			QueuedJob next = null;
+			for (File file : listJobs()) {
+				QueuedJob job = read(file);
+				if (job == null || !isClaimable(job, now)) {
+					continue;
+				}
+				if (job.getAttempts() >= maxAttempts) {
+					fail(job, now);
+				} else if (next == null || job.getSubmittedAt() < next.getSubmittedAt()) {
+					next = job;
+				}
+			}
+			if (next == null) {
+				return null;
+			}
+
+			if (QueuedJob.STATE_LEASED.equals(next.getState())) {
+				LOGGER.info(String.format("Delivering job %s again; the lease of %s expired.", next.getServiceId(), next.getOwner()));
+			}
+			next.setState(QueuedJob.STATE_LEASED);
+			next.setOwner(owner);
+			next.setLeaseId(UUID.randomUUID().toString());
+			next.setLeaseExpiresAt(now + leaseMillis);
+			next.setAttempts(next.getAttempts() + 1);
+			write(next);
+			return next;
+		});
+	}
+
+	@Override
+	public boolean renew(QueuedJob lease, ServiceResource snapshot, long leaseMillis) {
+		return withLock(() -> {
+			QueuedJob job = getLeased(lease);
+			if (job == null) {
+				return false;
+			}
+			job.setLeaseExpiresAt(System.currentTimeMillis() + leaseMillis);
+			if (snapshot != null) {
+				job.setSnapshot(snapshot);
+			}
+			write(job);
+			return true;
+		});
+	}
+
+	@Override
+	public void complete(QueuedJob lease, ServiceResource snapshot) {
+		withLock(() -> {
+			QueuedJob job = getLeased(lease);
+			if (job != null) {
+				job.setState(QueuedJob.STATE_DONE);
+				job.setLeaseId(null);
+				job.setCompletedAt(System.currentTimeMillis());
+				if (snapshot != null) {
+					job.setSnapshot(snapshot);
+				}
+				write(job);
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public void release(QueuedJob lease) {
+		withLock(() -> {
+			QueuedJob job = getLeased(lease);
+			if (job != null) {
+				job.setState(QueuedJob.STATE_QUEUED);
+				job.setOwner(null);
+				job.setLeaseId(null);
+				job.setAttempts(job.getAttempts() - 1);
+				write(job);
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public ServiceResource getJob(String serviceId) {
+		try {
+			QueuedJob job = read(getFile(serviceId));
+			return job == null ? null : job.getSnapshot();
+		} catch (IOException e) {
+			throw new ResourceAccessException(String.format("Unable to read job %s from the job queue.", serviceId), e);
+		}
+	}
+
+	@Override
+	public boolean cancel(String serviceId) {
+		File file = getFile(serviceId);
+		if (file == null) {
+			return false;
+		}
+		return withLock(() -> Files.deleteIfExists(file.toPath()));
+	}
+
+	@Override
+	public int purge(long completedBefore) {
+		return withLock(() -> {
+			int purged = 0;
+			for (File file : listJobs()) {
+				QueuedJob job = read(file);
+				if (job != null && QueuedJob.STATE_DONE.equals(job.getState()) && job.getCompletedAt() < completedBefore
+						&& file.delete()) {
+					purged++;
+				}
+			}
+			return purged;
+		});
+	}
+
+	/**
+	 * Returns the number of jobs waiting to be claimed. Caller must hold the directory lock.
+	 */
+	private int countQueued() throws IOException {
+		int queued = 0;
+		for (File file : listJobs()) {
+			QueuedJob job = read(file);
+			if (job != null && QueuedJob.STATE_QUEUED.equals(job.getState())) {
+				queued++;
+			}
+		}
+		return queued;
+	}
+
+	private static boolean isClaimable(QueuedJob job, long now) {
+		return QueuedJob.STATE_QUEUED.equals(job.getState())
+				|| (QueuedJob.STATE_LEASED.equals(job.getState()) && job.getLeaseExpiresAt() < now);
+	}
+
+	/**
+	 * Marks a job that has used up its attempts as failed
+	 */
+	private void fail(QueuedJob job, long now) throws IOException {
+		LOGGER.warn(String.format("Failing job %s after %d attempts.", job.getServiceId(), job.getAttempts()));
+		ServiceResource snapshot = job.getSnapshot() != null ? job.getSnapshot() : new ServiceResource();
+		snapshot.setServiceResourceId(job.getServiceId());
+		snapshot.setStatus(new StatusUpdate(StatusUpdate.STATUS_ERROR));
+		job.setSnapshot(snapshot);
+		job.setState(QueuedJob.STATE_DONE);
+		job.setLeaseId(null);
+		job.setCompletedAt(now);
+		write(job);
+	}
+
+	/**
+	 * Returns the current record of a job if the given lease still holds it, otherwise null
+	 */
+	private QueuedJob getLeased(QueuedJob lease) throws IOException {
+		QueuedJob job = read(getFile(lease.getServiceId()));
+		if (job == null || !QueuedJob.STATE_LEASED.equals(job.getState()) || !lease.getLeaseId().equals(job.getLeaseId())) {
+			return null;
+		}
+		return job;
+	}
+
+	private <T> T withLock(QueueOperation<T> operation) {
+		// File locks are held by the process, so threads of this process are serialized first
+		synchronized (this) {
+			try (FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+				return operation.apply();
+			} catch (IOException e) {
+				throw new ResourceAccessException(String.format("Unable to update job queue %s", directory.getAbsolutePath()), e);
+			}
+		}
+	}
+
+	private File[] listJobs() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(JOB_SUFFIX));
+		if (files == null) {
+			throw new IOException(String.format("Unable to list job queue directory %s", directory.getAbsolutePath()));
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the job in the file, or null if it no longer exists
+	 */
+	private QueuedJob read(File file) throws IOException {
+		if (file == null) {
+			return null;
+		}
+		try {
+			return objectMapper.readValue(file, QueuedJob.class);
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void write(QueuedJob job) throws IOException {
+		File file = getFile(job.getServiceId());
+		File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+		objectMapper.writeValue(temp, job);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns the file of a job, or null if the Id could name a file outside the directory
+	 */
+	private File getFile(String serviceId) {
+		if (serviceId == null || !SERVICE_ID.matcher(serviceId).matches()) {
+			return null;
+		}
+		return new File(directory, serviceId + JOB_SUFFIX);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.web.client.ResourceAccessException;
+
+import generator.model.QueuedJob;
+import generator.model.ServiceResource;
+
+/**
+ * Work queue shared by all instances of the service. Any instance submits the jobs it receives, and instances claim
+ * jobs under a lease that they renew with a heartbeat while the job runs. A job whose lease expires, because its
+ * instance stopped or lost contact, is delivered again to the next instance that claims a job, up to a maximum number
+ * of attempts. The queue also keeps the latest snapshot of each job, so any instance can answer for it.
+ * 
+ * Queues report I/O failures as a ResourceAccessException.
+ */
+public interface JobQueue {
+	/**
+	 * Adds a job to the queue. A job submitted in the done state is only recorded, for status lookups.
+	 * 
+	 * @param job
+	 *            The job, with its request and initial snapshot
+	 * @throws TaskRejectedException
+	 *             if the job would wait to be claimed and the queue already holds its maximum of waiting jobs
+	 */
+	void submit(QueuedJob job) throws ResourceAccessException, TaskRejectedException;
+
+	/**
+	 * Claims the oldest job that is queued or whose lease has expired
+	 * 
+	 * @param owner
+	 *            Name of the claiming instance
+	 * @param leaseMillis
+	 *            Duration of the lease
+	 * @return The claimed job, holding its lease, or null if no job is available
+	 */
+	QueuedJob claim(String owner, long leaseMillis) throws ResourceAccessException;
+
+	/**
+	 * Extends a lease and publishes the latest snapshot of the job
+	 * 
+	 * @param lease
+	 *            A job returned by {@link #claim(String, long)}
+	 * @param snapshot
+	 *            The latest snapshot, or null to keep the published one
+	 * @return false if the lease is no longer held, because it expired and the job was claimed again, or the job was
+	 *         cancelled. The job should then be stopped.
+	 */
+	boolean renew(QueuedJob lease, ServiceResource snapshot, long leaseMillis) throws ResourceAccessException;
+
+	/**
+	 * Marks a claimed job as done with its final snapshot. Ignored if the lease is no longer held.
+	 */
+	void complete(QueuedJob lease, ServiceResource snapshot) throws ResourceAccessException;
+
+	/**
+	 * Returns a claimed job to the queue without counting the attempt, for an instance that cannot run it
+	 */
+	void release(QueuedJob lease) throws ResourceAccessException;
+
+	/**
+	 * Returns the latest published snapshot of a job, or null if the queue does not hold the job
+	 */
+	ServiceResource getJob(String serviceId) throws ResourceAccessException;
+
+	/**
+	 * Removes a job. The instance running it is told to stop at its next heartbeat.
+	 * 
+	 * @return true if the queue held the job
+	 */
+	boolean cancel(String serviceId) throws ResourceAccessException;
+
+	/**
+	 * Removes the done jobs completed before the given time
+	 * 
+	 * @return The number of jobs removed
+	 */
+	int purge(long completedBefore) throws ResourceAccessException;
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import generator.model.QueuedJob;
+import generator.model.ServiceResource;
+import model.status.StatusUpdate;
+
+/**
+ * Runs jobs from the shared job queue on this instance. While it has room, the worker claims queued jobs and starts
+ * them on the crop executor. A heartbeat renews the lease of each running job and publishes its latest snapshot to the
+ * queue, and the final snapshot is published when the job ends. A job whose lease is lost has been handed to another
+ * instance, so it is stopped and dropped here.
+ * 
+ * Idle unless a job queue is configured.
+ */
+@Component
+public class JobQueueWorker {
+	@Autowired(required = false)
+	private JobQueue jobQueue;
+	@Autowired
+	private DataAccessor dataAccessor;
+	@Autowired
+	private RasterGenerator rasterGenerator;
+
+	@Value("${jobqueue.max.claimed:8}")
+	private int MAX_CLAIMED;
+	@Value("${jobqueue.lease.seconds:30}")
+	private long LEASE_SECONDS;
+	@Value("${jobstore.completed.ttl.seconds:3600}")
+	private long COMPLETED_TTL_SECONDS;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobQueueWorker.class);
+
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName();
+	/**
+	 * Jobs claimed by this instance, by Id
+	 */
+	private final Map<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+
+	/**
+	 * Claims and starts queued jobs until this instance holds the maximum, or the queue or the crop executor is full
+	 */
+	@Scheduled(fixedDelayString = "${jobqueue.poll.interval.ms:1000}")
+	public void poll() {
+		if (jobQueue == null) {
+			return;
+		}
+		while (claims.size() < MAX_CLAIMED) {
+			QueuedJob lease = jobQueue.claim(owner, TimeUnit.SECONDS.toMillis(LEASE_SECONDS));
+			if (lease == null || !start(lease)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Renews the lease of every running job, publishing its latest snapshot
+	 */
+	@Scheduled(fixedDelayString = "${jobqueue.heartbeat.interval.ms:10000}")
+	public void heartbeat() {
+		if (jobQueue == null) {
+			return;
+		}
+		for (Map.Entry<String, Claim> entry : claims.entrySet()) {
+			String id = entry.getKey();
+			Claim claim = entry.getValue();
+			try {
+				if (!jobQueue.renew(claim.lease, getSnapshot(id), TimeUnit.SECONDS.toMillis(LEASE_SECONDS)) && claims.remove(id, claim)) {
+					LOGGER.warn(String.format("Lost the lease of job %s; stopping it.", id));
+					stop(id, claim);
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error(String.format("Unable to renew the lease of job %s.", id), e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the done jobs that are older than the completed job TTL from the queue
+	 */
+	@Scheduled(fixedDelayString = "${jobqueue.purge.interval.ms:60000}")
+	public void purge() {
+		if (jobQueue == null) {
+			return;
+		}
+		int purged = jobQueue.purge(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(COMPLETED_TTL_SECONDS));
+		if (purged > 0) {
+			LOGGER.info(String.format("Purged %d completed jobs from the job queue.", purged));
+		}
+	}
+
+	/**
+	 * Stops the jobs of this instance and returns them to the queue, so other instances pick them up without waiting
+	 * for the leases to expire
+	 */
+	@PreDestroy
+	public void shutdown() {
+		if (jobQueue == null) {
+			return;
+		}
+		for (Map.Entry<String, Claim> entry : claims.entrySet()) {
+			if (claims.remove(entry.getKey(), entry.getValue())) {
+				stop(entry.getKey(), entry.getValue());
+				try {
+					jobQueue.release(entry.getValue().lease);
+				} catch (RuntimeException e) {
+					LOGGER.warn(String.format("Unable to release job %s; it is delivered again when its lease expires.", entry.getKey()), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops a job that this instance runs, for a job deleted by its client. The caller removes the job from the queue,
+	 * which stops it on the instance running it otherwise, once that instance fails to renew its lease.
+	 * 
+	 * @return true if the job was running here
+	 */
+	public boolean cancel(String id) {
+		Claim claim = claims.remove(id);
+		if (claim == null) {
+			return false;
+		}
+		stop(id, claim);
+		return true;
+	}
+
+	/**
+	 * Starts a claimed job
+	 * 
+	 * @return false if the crop executor is full, in which case the job is returned to the queue
+	 */
+	private boolean start(QueuedJob lease) {
+		String id = lease.getServiceId();
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		dataAccessor.addServiceResource(serviceResource);
+
+		Claim claim = new Claim(lease);
+		claims.put(id, claim);
+		ListenableFuture<String> future;
+		try {
+			future = lease.getBatchRequest() != null ? rasterGenerator.runBatch(lease.getBatchRequest(), id)
+					: rasterGenerator.run(lease.getCropRequest(), id);
+		} catch (TaskRejectedException e) {
+			claims.remove(id, claim);
+			dataAccessor.removeJob(id);
+			jobQueue.release(lease);
+			return false;
+		} catch (Exception e) {
+			LOGGER.error(String.format("Unable to start job %s.", id), e);
+			serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_ERROR));
+			dataAccessor.update(serviceResource);
+			finish(id, claim);
+			return true;
+		}
+		claim.future = future;
+		// The job may have been stopped before its future was set
+		if (claim.stopped) {
+			future.cancel(true);
+		}
+		future.addCallback(result -> finish(id, claim), failure -> finish(id, claim));
+		LOGGER.info(String.format("Started job %s from the job queue, attempt %d.", id, lease.getAttempts()));
+		return true;
+	}
+
+	/**
+	 * Publishes the final snapshot of a job, unless its lease was lost in the meantime
+	 */
+	private void finish(String id, Claim claim) {
+		if (!claims.remove(id, claim)) {
+			return;
+		}
+		try {
+			jobQueue.complete(claim.lease, getSnapshot(id));
+		} catch (RuntimeException e) {
+			LOGGER.error(String.format("Unable to complete job %s in the job queue.", id), e);
+		}
+	}
+
+	/**
+	 * Cancels a job and drops it from the local job store, which would otherwise answer for a job run elsewhere
+	 */
+	private void stop(String id, Claim claim) {
+		claim.stopped = true;
+		Future<?> future = claim.future;
+		if (future != null) {
+			future.cancel(true);
+		}
+		dataAccessor.removeJob(id);
+	}
+
+	private ServiceResource getSnapshot(String id) {
+		try {
+			return dataAccessor.getServiceResourceById(id);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * A job claimed by this instance
+	 */
+	private static class Claim {
+		private final QueuedJob lease;
+		private volatile Future<?> future;
+		private volatile boolean stopped = false;
+
+		Claim(QueuedJob lease) {
+			this.lease = lease;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.springframework.web.client.ResourceAccessException;
+
+import generator.model.ServiceResource;
+
+/**
+ * Storage of job snapshots behind the {@link DataAccessor}. The accessor keeps the index of the latest entry of each
+ * job and decides what is stored and when; the store only holds the snapshots themselves, so an implementation can
+ * keep them off the heap or on disk. Writes to the store are made under the accessor's lock on the job, so entries of
+ * the same job are written in order.
+ * 
+ * Stores report I/O failures as a ResourceAccessException.
+ */
+public interface JobStore extends Closeable {
+	/**
+	 * Stores a new snapshot of a job
+	 * 
+	 * @param resource
+	 *            The snapshot, already stamped with its version
+	 * @param updatedAt
+	 *            Time of the change in milliseconds
+	 * @return Entry used to read the snapshot back
+	 */
+	Entry write(ServiceResource resource, long updatedAt) throws ResourceAccessException;
+
+	/**
+	 * Records that a job has been removed, so it is not recovered
+	 */
+	void delete(String serviceResourceId) throws ResourceAccessException;
+
+	/**
+	 * Returns the latest entry of every job left in the store by a previous run. Called once, before any write.
+	 */
+	Collection<Entry> recover() throws ResourceAccessException;
+
+	/**
+	 * Reclaims the space of replaced and deleted snapshots, if there is enough of it to be worth the copy. Writes go on
+	 * while this runs; a store that copies snapshots must also copy those written in the meantime.
+	 * 
+	 * @param live
+	 *            Returns the latest entry of every job in the accessor. Called once the store has marked where the
+	 *            compaction starts, so that any entry the returned ones miss was written after the mark.
+	 * @return The latest moved entry of each job still stored, by job Id. The accessor swaps each in for the entry of
+	 *         the same version. Empty if nothing was compacted.
+	 */
+	Map<String, Entry> compact(Supplier<Collection<Entry>> live) throws ResourceAccessException;
+
+	/**
+	 * Returns the number of bytes held by the store, including snapshots that have not been compacted away yet
+	 */
+	long getStoredBytes();
+
+	@Override
+	void close();
+
+	/**
+	 * Reference to one stored snapshot of a job, with the fields the accessor needs without reading the snapshot
+	 */
+	abstract class Entry {
+		private final String serviceResourceId;
+		private final long version;
+		private final long updatedAt;
+		private final boolean completed;
+
+		protected Entry(String serviceResourceId, long version, long updatedAt, boolean completed) {
+			this.serviceResourceId = serviceResourceId;
+			this.version = version;
+			this.updatedAt = updatedAt;
+			this.completed = completed;
+		}
+
+		/**
+		 * Returns the stored snapshot. Callers must not modify it.
+		 */
+		public abstract ServiceResource read() throws ResourceAccessException;
+
+		public String getServiceResourceId() {
+			return serviceResourceId;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public long getUpdatedAt() {
+			return updatedAt;
+		}
+
+		/**
+		 * Returns true if the snapshot has a final status
+		 */
+		public boolean isCompleted() {
+			return completed;
+		}
+	}
+}
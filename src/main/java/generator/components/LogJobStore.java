@@ -0,0 +1,539 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import generator.model.ServiceResource;
+
+/**
+ * Job store that appends snapshots to a log of memory-mapped segment files. Snapshots are read straight from the
+ * mapped segments, so they live in the page cache rather than on the heap, and the log is replayed at startup to
+ * recover the jobs of the previous run. Replaced and deleted snapshots stay in the log until it is compacted, which
+ * copies the live snapshots into new segments and deletes the old ones.
+ * 
+ * Each record holds its length, a CRC32 of the rest of the record, the record type, the version, update time and
+ * completed flag of the job, the job Id and, for a snapshot, its JSON. Segments are created at full size and zero
+ * filled, so a zero length marks the end of a segment, and a record with a bad checksum, left by a crash in the middle
+ * of a write, ends the replay.
+ * 
+ * Mapped pages are written back by the operating system, so a crash of the service loses nothing. Segments are forced
+ * to disk when they are filled, compacted or closed; snapshots written since are lost if the host itself fails.
+ * 
+ * Compaction does not copy the delete records of jobs removed before it started, so an old segment that outlived a crash in the middle of a compaction could
+ * bring back deleted jobs. Once the new segments are on disk, compaction atomically replaces a marker file holding the
+ * Id of the first of them, and recovery deletes any segment below that Id before replaying the log.
+ * 
+ * Writes go on while the live snapshots are copied. The records appended meanwhile are then copied after them, with
+ * appends held off only for that copy and the switch to the new segments, which are only given their Ids then so that
+ * they follow every segment of the old log. The accessor swaps in the moved entries afterwards.
+ * 
+ * Retired segments are not unmapped explicitly, as readers may still be deserializing entries of them. Their mappings,
+ * and the disk space of their deleted files, are released once the garbage collector reclaims their buffers, after the
+ * last entry referencing them is gone, so until then the store can hold both the old and the new log.
+ */
+public class LogJobStore implements JobStore {
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String COMPACTION_SUFFIX = ".compacting";
+	private static final String MARKER_FILE = "compacted.marker";
+	private static final String MARKER_TEMP_FILE = "compacted.marker.tmp";
+	private static final byte TYPE_SNAPSHOT = 1;
+	private static final byte TYPE_DELETE = 2;
+	/**
+	 * Length and checksum
+	 */
+	private static final int FRAME_BYTES = 8;
+	/**
+	 * Type, version, update time, completed flag and Id length
+	 */
+	private static final int HEADER_BYTES = 1 + 8 + 8 + 1 + 2;
+	private static final Logger LOGGER = LoggerFactory.getLogger(LogJobStore.class);
+
+	private final File directory;
+	private final int segmentBytes;
+	private final double compactionRatio;
+	private final long compactionMinBytes;
+	private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	/**
+	 * Segments in write order; records are appended to the last one. Guarded by this.
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long nextSegmentId = 0;
+	private volatile long storedBytes = 0;
+	/**
+	 * Held for the whole of a compaction, so that only one runs at a time
+	 */
+	private final Object compactionLock = new Object();
+
+	/**
+	 * @param directory
+	 *            Directory of the segment files
+	 * @param segmentBytes
+	 *            Size of each segment file
+	 * @param compactionRatio
+	 *            The log is compacted once it is this many times the size of the live snapshots
+	 * @param compactionMinBytes
+	 *            The log is not compacted while it is smaller than this
+	 */
+	public LogJobStore(File directory, int segmentBytes, double compactionRatio, long compactionMinBytes) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.compactionRatio = compactionRatio;
+		this.compactionMinBytes = compactionMinBytes;
+		directory.mkdirs();
+	}
+
+	@Override
+	public Entry write(ServiceResource resource, long updatedAt) {
+		byte[] payload;
+		try {
+			payload = objectMapper.writeValueAsBytes(resource);
+		} catch (JsonProcessingException e) {
+			throw new ResourceAccessException(String.format("Unable to serialize job %s.", resource.getServiceResourceId()), e);
+		}
+		return append(TYPE_SNAPSHOT, resource.getServiceResourceId(), resource.getVersion(), updatedAt,
+				DataAccessor.isCompleted(resource.getStatus()), payload);
+	}
+
+	@Override
+	public void delete(String serviceResourceId) {
+		append(TYPE_DELETE, serviceResourceId, 0, System.currentTimeMillis(), false, new byte[0]);
+	}
+
+	@Override
+	public synchronized Collection<Entry> recover() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			throw new ResourceAccessException(String.format("Unable to list job store directory %s", directory.getAbsolutePath()));
+		}
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		deleteFile(new File(directory, MARKER_TEMP_FILE));
+		// Left behind by a crash in the middle of a compaction, before the marker was written
+		File[] compactionFiles = directory.listFiles((dir, name) -> name.endsWith(COMPACTION_SUFFIX));
+		if (compactionFiles != null) {
+			for (File file : compactionFiles) {
+				deleteFile(file);
+			}
+		}
+		long firstLiveSegmentId = readMarker();
+
+		Map<String, Entry> latest = new HashMap<String, Entry>();
+		for (File file : files) {
+			if (getSegmentId(file) < firstLiveSegmentId) {
+				// Left behind by a crash after a compaction superseded it
+				LOGGER.warn(String.format("Deleting job store segment %s superseded by a compaction.", file.getName()));
+				deleteFile(file);
+				continue;
+			}
+			Segment segment = new Segment(file, 0);
+			segments.add(segment);
+			nextSegmentId = Math.max(nextSegmentId, getSegmentId(file) + 1);
+			replay(segment, latest);
+			storedBytes += segment.position;
+		}
+		if (files.length > 0) {
+			LOGGER.info(String.format("Replayed %d job store segments, %d bytes, holding %d jobs.", files.length, storedBytes,
+					latest.size()));
+		}
+		return latest.values();
+	}
+
+	@Override
+	public Map<String, Entry> compact(Supplier<Collection<Entry>> liveEntries) {
+		synchronized (compactionLock) {
+			Segment markSegment;
+			int markPosition;
+			synchronized (this) {
+				// Records appended from here on are copied again once the live snapshots are
+				markSegment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+				markPosition = markSegment == null ? 0 : markSegment.position;
+			}
+			Collection<Entry> live = liveEntries.get();
+			long liveBytes = 0;
+			for (Entry entry : live) {
+				liveBytes += ((LogEntry) entry).recordLength;
+			}
+			if (storedBytes < compactionMinBytes || storedBytes < liveBytes * compactionRatio) {
+				return Collections.emptyMap();
+			}
+
+			// The new segments get their Ids once they are complete, so that they follow every segment of the old log
+			List<Segment> compacted = new ArrayList<Segment>();
+			Supplier<File> compactionFile = () -> new File(directory, String.format("%020d%s", compacted.size(), COMPACTION_SUFFIX));
+			Map<String, Entry> moved = new HashMap<String, Entry>();
+			List<Segment> retired;
+			long retiredBytes;
+			try {
+				for (Entry entry : live) {
+					moved.put(entry.getServiceResourceId(), copy((LogEntry) entry, compacted, compactionFile));
+				}
+				synchronized (this) {
+					copyTail(markSegment, markPosition, compacted, compactionFile, moved);
+					for (Segment segment : compacted) {
+						segment.buffer.force();
+					}
+					long firstSegmentId = nextSegmentId;
+					for (Segment segment : compacted) {
+						rename(segment, getSegmentFile(nextSegmentId++));
+					}
+					writeMarker(firstSegmentId);
+
+					retired = new ArrayList<Segment>(segments);
+					retiredBytes = storedBytes;
+					segments.clear();
+					segments.addAll(compacted);
+					storedBytes = 0;
+					for (Segment segment : compacted) {
+						storedBytes += segment.position;
+					}
+				}
+			} catch (ResourceAccessException e) {
+				// Keep appending to the old segments; the accessor still references them
+				for (Segment segment : compacted) {
+					deleteFile(segment.file);
+				}
+				throw e;
+			}
+
+			// The marker now supersedes the old segments, so a crash from here on cannot bring them back. Readers may
+			// still hold entries of the old segments; their mappings stay valid after the files are deleted.
+			for (Segment segment : retired) {
+				deleteFile(segment.file);
+			}
+			LOGGER.info(String.format("Compacted job store from %d to %d bytes.", retiredBytes, storedBytes));
+			return moved;
+		}
+	}
+
+	@Override
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!segments.isEmpty()) {
+			segments.get(segments.size() - 1).buffer.force();
+		}
+	}
+
+	private synchronized LogEntry append(byte type, String serviceResourceId, long version, long updatedAt, boolean completed,
+			byte[] payload) {
+		byte[] id = serviceResourceId.getBytes(StandardCharsets.UTF_8);
+		if (id.length > 0xffff) {
+			throw new ResourceAccessException(String.format("Job Id of %d bytes is too long for the job store.", id.length));
+		}
+		int length = HEADER_BYTES + id.length + payload.length;
+		Segment segment = getSegmentFor(segments, FRAME_BYTES + length, () -> getSegmentFile(nextSegmentId++));
+		int position = segment.position;
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(position + FRAME_BYTES);
+		buffer.put(type).putLong(version).putLong(updatedAt).put((byte) (completed ? 1 : 0)).putShort((short) id.length).put(id)
+				.put(payload);
+		buffer.putInt(position + 4, checksum(buffer, position + FRAME_BYTES, length));
+		buffer.putInt(position, length);
+
+		segment.position += FRAME_BYTES + length;
+		storedBytes += FRAME_BYTES + length;
+		return new LogEntry(serviceResourceId, version, updatedAt, completed, segment, position, FRAME_BYTES + length,
+				position + FRAME_BYTES + HEADER_BYTES + id.length, payload.length);
+	}
+
+	/**
+	 * Returns the segment of the log to append a record of the given size to, starting a new segment in the given file
+	 * if the last one is full. Caller must hold the lock on this, or own the log.
+	 */
+	private Segment getSegmentFor(List<Segment> log, int recordBytes, Supplier<File> newFile) {
+		Segment last = log.isEmpty() ? null : log.get(log.size() - 1);
+		if (last != null && last.position + recordBytes <= last.buffer.capacity()) {
+			return last;
+		}
+		if (last != null) {
+			last.buffer.force();
+		}
+		Segment segment = new Segment(newFile.get(), Math.max(segmentBytes, recordBytes));
+		log.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Copies a record to the end of the given log
+	 * 
+	 * @return LogEntry of the copy
+	 */
+	private LogEntry copy(LogEntry source, List<Segment> log, Supplier<File> newFile) {
+		Segment segment = getSegmentFor(log, source.recordLength, newFile);
+		ByteBuffer from = source.segment.buffer.duplicate();
+		from.limit(source.recordOffset + source.recordLength);
+		from.position(source.recordOffset);
+		ByteBuffer to = segment.buffer.duplicate();
+		to.position(segment.position);
+		to.put(from);
+		LogEntry copy = new LogEntry(source, segment, segment.position);
+		segment.position += source.recordLength;
+		return copy;
+	}
+
+	/**
+	 * Copies the records appended to the log since the given position, snapshots and deletes alike, to the end of the
+	 * compacted log, updating the moved entries with them. Caller must hold the lock on this.
+	 */
+	private void copyTail(Segment markSegment, int markPosition, List<Segment> compacted, Supplier<File> newFile,
+			Map<String, Entry> moved) {
+		int index = markSegment == null ? 0 : segments.indexOf(markSegment);
+		int position = markPosition;
+		for (; index < segments.size(); index++, position = 0) {
+			Segment segment = segments.get(index);
+			while (position < segment.position) {
+				LogEntry record = readRecord(segment, position, segment.buffer.getInt(position));
+				LogEntry copy = copy(record, compacted, newFile);
+				if (segment.buffer.get(position + FRAME_BYTES) == TYPE_SNAPSHOT) {
+					moved.put(copy.getServiceResourceId(), copy);
+				} else {
+					moved.remove(copy.getServiceResourceId());
+				}
+				position += record.recordLength;
+			}
+		}
+	}
+
+	/**
+	 * Moves the file of a complete segment of the compacted log to its place in the log
+	 */
+	private void rename(Segment segment, File file) {
+		try {
+			Files.move(segment.file.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new ResourceAccessException(String.format("Unable to rename job store segment %s", segment.file.getAbsolutePath()), e);
+		}
+		segment.file = file;
+	}
+
+	private File getSegmentFile(long segmentId) {
+		return new File(directory, String.format("%020d%s", segmentId, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Reads the records of a segment into the latest entry of each job, and sets the append position to the end of the
+	 * last intact record
+	 */
+	private void replay(Segment segment, Map<String, Entry> latest) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = 0;
+		while (position + FRAME_BYTES <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				break;
+			}
+			if (length < HEADER_BYTES || position + FRAME_BYTES + length > buffer.capacity()
+					|| checksum(buffer, position + FRAME_BYTES, length) != buffer.getInt(position + 4)) {
+				LOGGER.warn(String.format("Discarding the incomplete record at %d of job store segment %s.", position,
+						segment.file.getName()));
+				// Clear the remains of the record, so records appended over it are not misread
+				for (int index = position; index < buffer.capacity(); index++) {
+					buffer.put(index, (byte) 0);
+				}
+				break;
+			}
+
+			LogEntry record = readRecord(segment, position, length);
+			if (buffer.get(position + FRAME_BYTES) == TYPE_SNAPSHOT) {
+				latest.put(record.getServiceResourceId(), record);
+			} else {
+				latest.remove(record.getServiceResourceId());
+			}
+			position += FRAME_BYTES + length;
+		}
+		segment.position = position;
+	}
+
+	/**
+	 * Reads the header of the intact record of the given length at a position of a segment
+	 * 
+	 * @return LogEntry of the record; the entry of a delete record has no snapshot to read
+	 */
+	private LogEntry readRecord(Segment segment, int position, int length) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int start = position + FRAME_BYTES;
+		long version = buffer.getLong(start + 1);
+		long updatedAt = buffer.getLong(start + 9);
+		boolean completed = buffer.get(start + 17) != 0;
+		int idLength = buffer.getShort(start + 18) & 0xffff;
+		byte[] id = new byte[idLength];
+		buffer.position(start + HEADER_BYTES);
+		buffer.get(id);
+		return new LogEntry(new String(id, StandardCharsets.UTF_8), version, updatedAt, completed, segment, position,
+				FRAME_BYTES + length, start + HEADER_BYTES + idLength, length - HEADER_BYTES - idLength);
+	}
+
+	/**
+	 * Returns the Id of the first segment written by the last compaction, or 0 if the log was never compacted
+	 */
+	private long readMarker() {
+		File marker = new File(directory, MARKER_FILE);
+		if (!marker.exists()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim());
+		} catch (IOException | NumberFormatException e) {
+			throw new ResourceAccessException(String.format("Unable to read job store marker %s", marker.getAbsolutePath()), e);
+		}
+	}
+
+	/**
+	 * Forces the Id of the first segment written by a compaction to a temp file and renames it over the marker, so the
+	 * marker always holds either the old or the new Id
+	 */
+	private void writeMarker(long firstSegmentId) {
+		File temp = new File(directory, MARKER_TEMP_FILE);
+		try {
+			try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+				file.setLength(0);
+				file.write(Long.toString(firstSegmentId).getBytes(StandardCharsets.UTF_8));
+				file.getChannel().force(true);
+			}
+			Files.move(temp.toPath(), new File(directory, MARKER_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			deleteFile(temp);
+			throw new ResourceAccessException(String.format("Unable to write job store marker in %s", directory.getAbsolutePath()), e);
+		}
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		CRC32 crc = new CRC32();
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	private static long getSegmentId(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			LOGGER.warn(String.format("Unable to delete job store segment %s", file.getAbsolutePath()));
+		}
+	}
+
+	/**
+	 * One mapped segment file
+	 */
+	private static class Segment {
+		/**
+		 * File of the segment; a segment of a compacted log is renamed once it is complete. Guarded by the store.
+		 */
+		private File file;
+		private final MappedByteBuffer buffer;
+		/**
+		 * End of the last record. Guarded by the store.
+		 */
+		private int position = 0;
+
+		/**
+		 * Maps a segment file, creating it at the given size, or at its existing size if the size is 0
+		 */
+		Segment(File file, int size) {
+			this.file = file;
+			MappedByteBuffer mapped;
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"); FileChannel channel = randomAccessFile.getChannel()) {
+				if (size > 0) {
+					randomAccessFile.setLength(size);
+				}
+				mapped = channel.map(MapMode.READ_WRITE, 0, channel.size());
+			} catch (IOException e) {
+				throw new ResourceAccessException(String.format("Unable to map job store segment %s", file.getAbsolutePath()), e);
+			}
+			this.buffer = mapped;
+		}
+	}
+
+	/**
+	 * Snapshot stored in a segment, deserialized from the mapped bytes on every read
+	 */
+	private class LogEntry extends Entry {
+		private final Segment segment;
+		private final int recordOffset;
+		private final int recordLength;
+		private final int payloadOffset;
+		private final int payloadLength;
+
+		LogEntry(String serviceResourceId, long version, long updatedAt, boolean completed, Segment segment, int recordOffset,
+				int recordLength, int payloadOffset, int payloadLength) {
+			super(serviceResourceId, version, updatedAt, completed);
+			this.segment = segment;
+			this.recordOffset = recordOffset;
+			this.recordLength = recordLength;
+			this.payloadOffset = payloadOffset;
+			this.payloadLength = payloadLength;
+		}
+
+		/**
+		 * Entry of a record copied to the given offset of another segment
+		 */
+		LogEntry(LogEntry source, Segment segment, int recordOffset) {
+			this(source.getServiceResourceId(), source.getVersion(), source.getUpdatedAt(), source.isCompleted(), segment, recordOffset,
+					source.recordLength, recordOffset + source.payloadOffset - source.recordOffset, source.payloadLength);
+		}
+
+		@Override
+		public ServiceResource read() {
+			byte[] payload = new byte[payloadLength];
+			ByteBuffer view = segment.buffer.duplicate();
+			view.position(payloadOffset);
+			view.get(payload);
+			try {
+				return objectMapper.readValue(payload, ServiceResource.class);
+			} catch (IOException e) {
+				throw new ResourceAccessException(String.format("Unable to read job %s from the job store.", getServiceResourceId()), e);
+			}
+		}
+	}
+}
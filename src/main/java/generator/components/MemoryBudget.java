@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import exception.InvalidInputException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Admits crops against a heap budget, so that the rasters decoded at the same time fit in memory together.
+ * 
+ * Each crop reserves the bytes it is estimated to decode, times a working set factor for the cropped copy and the
+ * encoder, before it decodes anything, and releases them once its output is written. A crop that does not fit waits,
+ * while smaller crops that do fit are admitted ahead of it. Once a crop has waited longer than the overtake limit, no
+ * later crop is admitted ahead of it, so large crops are not starved. Bytes a crop holds besides its rasters, such as
+ * upload buffers, are reserved as they are, without the working set factor. A crop larger than the whole budget is
+ * rejected, as running it could exhaust the heap whatever else is running.
+ */
+@Component
+public class MemoryBudget {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${crop.memory.budget.enabled:true}")
+	private boolean BUDGET_ENABLED;
+	@Value("${crop.memory.budget.bytes:0}")
+	private long BUDGET_BYTES;
+	@Value("${crop.memory.budget.heap.fraction:0.5}")
+	private double BUDGET_HEAP_FRACTION;
+	@Value("${crop.memory.working.set.factor:2.0}")
+	private double WORKING_SET_FACTOR;
+	@Value("${crop.memory.max.overtake.seconds:30}")
+	private long MAX_OVERTAKE_SECONDS;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryBudget.class);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	/**
+	 * Crops waiting for room, in arrival order. Guarded by lock.
+	 */
+	private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+	private final AtomicLong reservedBytes = new AtomicLong();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private long budget;
+
+	private Timer waitTimer;
+	private DistributionSummary reservationSize;
+
+	/**
+	 * A reservation of part of the budget, released when it is closed
+	 */
+	public class Reservation implements AutoCloseable {
+		private final long bytes;
+		private boolean closed = false;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(bytes);
+			}
+		}
+	}
+
+	@PostConstruct
+	public void initialize() {
+		budget = BUDGET_BYTES > 0 ? BUDGET_BYTES : (long) (Runtime.getRuntime().maxMemory() * BUDGET_HEAP_FRACTION);
+		waitTimer = Timer.builder("crop.memory.wait").publishPercentileHistogram().register(meterRegistry);
+		reservationSize = DistributionSummary.builder("crop.memory.reservation.bytes").baseUnit("bytes").register(meterRegistry);
+		meterRegistry.gauge("crop.memory.budget.bytes", reservedBytes, reserved -> budget);
+		meterRegistry.gauge("crop.memory.reserved.bytes", reservedBytes);
+		meterRegistry.gauge("crop.memory.waiting", waiting);
+		if (BUDGET_ENABLED) {
+			LOGGER.info(String.format("Admitting crops against a heap budget of %d bytes.", budget));
+		}
+	}
+
+	/**
+	 * Reserves room for a crop, waiting until the budget allows it
+	 * 
+	 * @param decodedBytes
+	 *            Estimated bytes the crop decodes from the source
+	 * @return Reservation to close once the crop has released its rasters
+	 * @throws InvalidInputException
+	 *             if the crop needs more than the whole budget
+	 * @throws InterruptedException
+	 *             if the crop is cancelled while it waits
+	 */
+	public Reservation reserve(long decodedBytes) throws InvalidInputException, InterruptedException {
+		return reserve(decodedBytes, 0);
+	}
+
+	/**
+	 * Reserves room for a crop that also holds buffers besides its rasters, waiting until the budget allows it
+	 * 
+	 * @param decodedBytes
+	 *            Estimated bytes the crop decodes from the source
+	 * @param bufferBytes
+	 *            Bytes of the buffers the crop holds, such as multipart upload parts
+	 * @return Reservation to close once the crop has released its rasters and buffers
+	 * @throws InvalidInputException
+	 *             if the crop needs more than the whole budget
+	 * @throws InterruptedException
+	 *             if the crop is cancelled while it waits
+	 */
+	public Reservation reserve(long decodedBytes, long bufferBytes) throws InvalidInputException, InterruptedException {
+		if (!BUDGET_ENABLED) {
+			return new Reservation(0);
+		}
+		long bytes = getRequiredBytes(decodedBytes, bufferBytes);
+		if (bytes > budget) {
+			throw new InvalidInputException(String.format(
+					"The crop needs an estimated %d bytes of heap, more than the budget of %d bytes. Request a smaller area.", bytes, budget));
+		}
+		long start = System.nanoTime();
+		Waiter waiter = new Waiter(bytes, start);
+		lock.lockInterruptibly();
+		try {
+			waiters.add(waiter);
+			waiting.incrementAndGet();
+			try {
+				while (!canAdmit(waiter)) {
+					released.await();
+				}
+			} finally {
+				waiters.remove(waiter);
+				waiting.decrementAndGet();
+				// Leaving the queue may let a crop that was held back behind this one in
+				released.signalAll();
+			}
+			reservedBytes.addAndGet(bytes);
+		} finally {
+			lock.unlock();
+		}
+		waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		reservationSize.record(bytes);
+		return new Reservation(bytes);
+	}
+
+	/**
+	 * Returns true if a crop of the given size can be admitted at all, as it is no larger than the whole budget
+	 */
+	public boolean fits(long decodedBytes, long bufferBytes) {
+		return !BUDGET_ENABLED || getRequiredBytes(decodedBytes, bufferBytes) <= budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	private long getRequiredBytes(long decodedBytes, long bufferBytes) {
+		return Math.max(0, (long) (decodedBytes * WORKING_SET_FACTOR)) + Math.max(0, bufferBytes);
+	}
+
+	private void release(long bytes) {
+		if (bytes == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			reservedBytes.addAndGet(-bytes);
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the crop fits in the remaining budget, and no crop ahead of it has waited past the overtake
+	 * limit. Caller must hold the lock.
+	 */
+	private boolean canAdmit(Waiter waiter) {
+		if (waiter.bytes > budget - reservedBytes.get()) {
+			return false;
+		}
+		long overtakeLimit = System.nanoTime() - TimeUnit.SECONDS.toNanos(MAX_OVERTAKE_SECONDS);
+		Iterator<Waiter> iterator = waiters.iterator();
+		while (iterator.hasNext()) {
+			Waiter ahead = iterator.next();
+			if (ahead == waiter) {
+				return true;
+			}
+			if (ahead.arrived < overtakeLimit) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class Waiter {
+		private final long bytes;
+		private final long arrived;
+
+		Waiter(long bytes, long arrived) {
+			this.bytes = bytes;
+			this.arrived = arrived;
+		}
+	}
+}
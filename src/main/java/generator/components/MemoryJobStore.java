@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import generator.model.ServiceResource;
+
+/**
+ * Job store that holds snapshots on the heap. Nothing survives a restart.
+ */
+public class MemoryJobStore implements JobStore {
+	@Override
+	public Entry write(ServiceResource resource, long updatedAt) {
+		return new MemoryEntry(resource, updatedAt);
+	}
+
+	@Override
+	public void delete(String serviceResourceId) {
+		// The accessor drops its reference to the snapshot
+	}
+
+	@Override
+	public Collection<Entry> recover() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public Map<String, Entry> compact(Supplier<Collection<Entry>> live) {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public long getStoredBytes() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release
+	}
+
+	private static class MemoryEntry extends Entry {
+		private final ServiceResource resource;
+
+		MemoryEntry(ServiceResource resource, long updatedAt) {
+			super(resource.getServiceResourceId(), resource.getVersion(), updatedAt, DataAccessor.isCompleted(resource.getStatus()));
+			this.resource = resource;
+		}
+
+		@Override
+		public ServiceResource read() {
+			return resource;
+		}
+	}
+}
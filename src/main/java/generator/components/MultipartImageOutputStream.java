@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Image output stream that feeds a multipart S3 upload as it is written, for encoders that seek back to patch offsets
+ * near the start of their output. The first part is kept in memory, where it can be read, overwritten and patched
+ * until the stream is closed, and is then handed to the upload as part 1. Everything written past the first part is
+ * passed straight on to the upload, so its parts go out while the encoder is still writing.
+ *
+ * Bytes past the first part can only be written in order. An encoder that seeks back into them, for example to patch
+ * an offset table larger than one part, gets an IOException, and {@link #isRewoundPastFirstPart()} tells the caller
+ * to encode through a file cache instead.
+ */
+public class MultipartImageOutputStream extends ImageOutputStreamImpl {
+	private final S3MultipartOutputStream outputStream;
+	private final byte[] firstPart;
+	/**
+	 * Extent of the bytes written to the first part
+	 */
+	private int firstPartLength = 0;
+	/**
+	 * Bytes passed on to the upload after the first part
+	 */
+	private long passedOn = 0;
+	private boolean rewoundPastFirstPart = false;
+	private boolean streamClosed = false;
+
+	/**
+	 * @param outputStream
+	 *            Upload to write to; its first part is held back, and it is not closed
+	 */
+	public MultipartImageOutputStream(S3MultipartOutputStream outputStream) {
+		this.outputStream = outputStream;
+		this.firstPart = new byte[outputStream.getPartSize()];
+		outputStream.holdFirstPart();
+	}
+
+	/**
+	 * Returns true if the encoder tried to revisit bytes already passed on to the upload
+	 */
+	public boolean isRewoundPastFirstPart() {
+		return rewoundPastFirstPart;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		checkClosed();
+		flushBits();
+		while (length > 0) {
+			int count;
+			if (streamPos < firstPart.length) {
+				count = (int) Math.min(length, firstPart.length - streamPos);
+				System.arraycopy(bytes, offset, firstPart, (int) streamPos, count);
+				firstPartLength = (int) Math.max(firstPartLength, streamPos + count);
+			} else {
+				if (firstPartLength < firstPart.length || streamPos != firstPart.length + passedOn) {
+					rewoundPastFirstPart = true;
+					throw new IOException(String.format("Cannot write at %d; the upload has been written up to %d.", streamPos,
+							firstPartLength + passedOn));
+				}
+				count = length;
+				outputStream.write(bytes, offset, count);
+				passedOn += count;
+			}
+			streamPos += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (length == 0) {
+			return 0;
+		}
+		if (streamPos >= length()) {
+			return -1;
+		}
+		if (streamPos >= firstPartLength) {
+			rewoundPastFirstPart = true;
+			throw new IOException(String.format("Cannot read at %d; it has been passed on to the upload.", streamPos));
+		}
+		int count = (int) Math.min(length, firstPartLength - streamPos);
+		System.arraycopy(firstPart, (int) streamPos, bytes, offset, count);
+		streamPos += count;
+		return count;
+	}
+
+	@Override
+	public long length() {
+		return firstPartLength + passedOn;
+	}
+
+	/**
+	 * Hands the first part to the upload. The upload itself is completed by closing it.
+	 */
+	@Override
+	public void close() throws IOException {
+		// The writer may close the stream on dispose as well
+		if (streamClosed) {
+			return;
+		}
+		streamClosed = true;
+		super.close();
+		outputStream.setFirstPart(firstPart, firstPartLength);
+	}
+}
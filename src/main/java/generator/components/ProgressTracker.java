@@ -0,0 +1,330 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import generator.model.CropProgress;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Tracks the progress of running crop jobs through their download, decode, encode and upload stages.
+ * 
+ * Jobs only bump counters on their progress as they go, and the encoded bytes are sampled from the output rather than
+ * counted, so tracking costs the job next to nothing. The progress of every running job is published into its record
+ * in the job store on a fixed interval, and only when its percentage or stage has changed.
+ * 
+ * The time remaining is estimated from a rolling model of the throughput of recently completed jobs, in decoded bytes
+ * per second, blended with the rate of the job itself as it gets further along.
+ */
+@Component
+public class ProgressTracker {
+	@Autowired
+	private DataAccessor dataAccessor;
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${progress.throughput.window:50}")
+	private int THROUGHPUT_WINDOW;
+
+	private static final String[] STAGES = { CropProgress.STAGE_QUEUED, CropProgress.STAGE_DOWNLOAD, CropProgress.STAGE_DECODE,
+			CropProgress.STAGE_ENCODE, CropProgress.STAGE_UPLOAD, CropProgress.STAGE_COMPLETE };
+	private static final int DOWNLOAD = 1;
+	private static final int DECODE = 2;
+	private static final int ENCODE = 3;
+	private static final int UPLOAD = 4;
+	private static final double DOWNLOAD_WEIGHT = 0.3;
+	private static final double DECODE_WEIGHT = 0.3;
+	private static final double ENCODE_WEIGHT = 0.3;
+	private static final double UPLOAD_WEIGHT = 0.1;
+	/**
+	 * Fraction of the job below which its own rate is too noisy to extrapolate from
+	 */
+	private static final double MIN_EXTRAPOLATION_FRACTION = 0.05;
+	/**
+	 * Keeps sums of the stage weights that land just below a whole percentage from being rounded down
+	 */
+	private static final double ROUNDING_TOLERANCE = 1e-6;
+
+	private final Map<String, Progress> jobs = new ConcurrentHashMap<String, Progress>();
+	/**
+	 * Decoded bytes and duration in nanoseconds of recently completed jobs. Guarded by itself.
+	 */
+	private final Deque<long[]> samples = new ArrayDeque<long[]>();
+	private long sampleBytes = 0;
+	private long sampleNanos = 0;
+
+	/**
+	 * Progress of one job. Updated by the threads running the job, read by the publisher.
+	 */
+	public static class Progress {
+		private final long startNanos = System.nanoTime();
+		private volatile int stage = 0;
+		private volatile boolean batch = false;
+		private volatile long workBytes = 0;
+		private volatile long bytesToDownload = 0;
+		private final AtomicLong bytesDownloaded = new AtomicLong();
+		private volatile long tilesToDecode = 0;
+		private final AtomicLong tilesDecoded = new AtomicLong();
+		private volatile long bytesToEncode = 0;
+		private volatile LongSupplier bytesEncoded = () -> 0;
+		private volatile long bytesUploaded = 0;
+		private int publishedStage = -1;
+		private int publishedPercent = -1;
+
+		/**
+		 * Moves the job on to the given stage. A job never moves back to an earlier stage.
+		 */
+		public void setStage(String stage) {
+			this.stage = Math.max(this.stage, Arrays.asList(STAGES).indexOf(stage));
+		}
+
+		/**
+		 * Sets the estimated bytes decoded by the job, which is the size the throughput model works in
+		 */
+		public void setWorkBytes(long workBytes) {
+			this.workBytes = workBytes;
+		}
+
+		public void setBytesToDownload(long bytesToDownload) {
+			this.bytesToDownload = bytesToDownload;
+		}
+
+		public void addBytesDownloaded(long bytes) {
+			bytesDownloaded.addAndGet(bytes);
+		}
+
+		public void setTilesToDecode(long tilesToDecode) {
+			this.tilesToDecode = tilesToDecode;
+		}
+
+		public void addTilesDecoded(long tiles) {
+			tilesDecoded.addAndGet(tiles);
+		}
+
+		/**
+		 * Tracks a batch job by the crops it has completed, in place of its decode, encode and upload stages
+		 */
+		public void setCropsToComplete(long crops) {
+			batch = true;
+			tilesToDecode = crops;
+			setStage(CropProgress.STAGE_DECODE);
+		}
+
+		/**
+		 * Starts the encode stage
+		 * 
+		 * @param bytesToEncode
+		 *            Uncompressed size of the output, an upper bound of the encoded size
+		 * @param bytesEncoded
+		 *            Returns the bytes encoded so far; sampled by the publisher, so it must be cheap and thread safe
+		 */
+		public void setEncoding(long bytesToEncode, LongSupplier bytesEncoded) {
+			this.bytesToEncode = bytesToEncode;
+			this.bytesEncoded = bytesEncoded;
+			setStage(CropProgress.STAGE_ENCODE);
+		}
+
+		public void setBytesUploaded(long bytesUploaded) {
+			this.bytesUploaded = bytesUploaded;
+		}
+
+		/**
+		 * Returns the completed fraction of the job, from 0 to 1
+		 */
+		double getFraction() {
+			int current = stage;
+			double download = getStageFraction(current, DOWNLOAD, getRatio(bytesDownloaded.get(), bytesToDownload));
+			if (batch) {
+				return DOWNLOAD_WEIGHT * download + (1 - DOWNLOAD_WEIGHT) * getRatio(tilesDecoded.get(), tilesToDecode);
+			}
+			double encode = getStageFraction(current, ENCODE, getRatio(bytesEncoded.getAsLong(), bytesToEncode));
+			// Unless tiles are computed ahead of the encoder, they are decoded as the encoder pulls them
+			double decode = encode;
+			if (tilesDecoded.get() > 0 || current < ENCODE) {
+				decode = getStageFraction(current, DECODE, getRatio(tilesDecoded.get(), tilesToDecode));
+			}
+			double upload = getStageFraction(current, UPLOAD, 0);
+			return DOWNLOAD_WEIGHT * download + DECODE_WEIGHT * decode + ENCODE_WEIGHT * encode + UPLOAD_WEIGHT * upload;
+		}
+
+		private static double getStageFraction(int current, int stage, double fraction) {
+			if (current > stage) {
+				return 1;
+			}
+			return current == stage ? fraction : 0;
+		}
+
+		private static double getRatio(long done, long total) {
+			return total > 0 ? Math.min(1, (double) done / total) : 0;
+		}
+	}
+
+	/**
+	 * Initializing metrics
+	 */
+	@PostConstruct
+	public void initialize() {
+		meterRegistry.gauge("crop.progress.jobs", jobs, Map::size);
+		meterRegistry.gauge("crop.progress.remaining.seconds", this, ProgressTracker::getTotalSecondsRemaining);
+		meterRegistry.gauge("crop.progress.throughput.bytes.per.second", this, ProgressTracker::getThroughput);
+	}
+
+	/**
+	 * Starts tracking a job
+	 * 
+	 * @param id
+	 *            Id of the job
+	 * @return Progress of the job, to be passed to {@link #finish(String, boolean)} once it ends
+	 */
+	public Progress start(String id) {
+		Progress progress = new Progress();
+		jobs.put(id, progress);
+		return progress;
+	}
+
+	/**
+	 * Returns the progress of a tracked job, or a progress that is not published for a job that is not tracked, such
+	 * as a synchronous crop
+	 */
+	public Progress get(String id) {
+		Progress progress = id != null ? jobs.get(id) : null;
+		return progress != null ? progress : new Progress();
+	}
+
+	/**
+	 * Stops tracking a job, adding it to the throughput model if it succeeded
+	 */
+	public void finish(String id, boolean succeeded) {
+		Progress progress = jobs.remove(id);
+		if (progress == null || !succeeded || progress.workBytes <= 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - progress.startNanos;
+		synchronized (samples) {
+			samples.addLast(new long[] { progress.workBytes, nanos });
+			sampleBytes += progress.workBytes;
+			sampleNanos += nanos;
+			while (samples.size() > Math.max(1, THROUGHPUT_WINDOW)) {
+				long[] oldest = samples.removeFirst();
+				sampleBytes -= oldest[0];
+				sampleNanos -= oldest[1];
+			}
+		}
+	}
+
+	/**
+	 * Returns the throughput of recently completed jobs in decoded bytes per second, or 0 before any has completed
+	 */
+	public double getThroughput() {
+		synchronized (samples) {
+			return sampleNanos > 0 ? sampleBytes / (sampleNanos / (double) TimeUnit.SECONDS.toNanos(1)) : 0;
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the progress of a job, with its estimated time remaining
+	 */
+	public CropProgress getSnapshot(Progress progress) {
+		double fraction = progress.getFraction();
+		CropProgress snapshot = new CropProgress(STAGES[progress.stage], (int) Math.floor(fraction * 100 + ROUNDING_TOLERANCE));
+		if (progress.bytesToDownload > 0) {
+			snapshot.setBytesToDownload(progress.bytesToDownload);
+			snapshot.setBytesDownloaded(progress.bytesDownloaded.get());
+		}
+		if (progress.tilesToDecode > 0) {
+			snapshot.setTilesToDecode(progress.tilesToDecode);
+			snapshot.setTilesDecoded(progress.tilesDecoded.get());
+		}
+		if (progress.stage >= ENCODE && !progress.batch) {
+			snapshot.setBytesEncoded(progress.bytesEncoded.getAsLong());
+		}
+		if (progress.bytesUploaded > 0) {
+			snapshot.setBytesUploaded(progress.bytesUploaded);
+		}
+		double elapsedSeconds = (System.nanoTime() - progress.startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		snapshot.setElapsedSeconds((long) elapsedSeconds);
+		Double remaining = getSecondsRemaining(progress, fraction, elapsedSeconds);
+		if (remaining != null) {
+			snapshot.setEstimatedSecondsRemaining(Math.round(remaining));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the snapshot of a job that has completed
+	 */
+	public CropProgress getCompletedSnapshot(Progress progress) {
+		CropProgress snapshot = getSnapshot(progress);
+		snapshot.setStage(CropProgress.STAGE_COMPLETE);
+		snapshot.setPercentComplete(100);
+		snapshot.setEstimatedSecondsRemaining(0L);
+		return snapshot;
+	}
+
+	/**
+	 * Publishes the progress of the running jobs whose percentage or stage has changed into the job store
+	 */
+	@Scheduled(fixedDelayString = "${progress.publish.interval.ms:1000}")
+	public void publish() {
+		for (Map.Entry<String, Progress> job : jobs.entrySet()) {
+			Progress progress = job.getValue();
+			CropProgress snapshot = getSnapshot(progress);
+			if (progress.publishedStage != progress.stage || progress.publishedPercent != snapshot.getPercentComplete()) {
+				progress.publishedStage = progress.stage;
+				progress.publishedPercent = snapshot.getPercentComplete();
+				dataAccessor.updateProgress(job.getKey(), snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the seconds remaining: from the throughput model early on, shifting to the job's own rate as it
+	 * progresses. Returns null when neither is known yet.
+	 */
+	private Double getSecondsRemaining(Progress progress, double fraction, double elapsedSeconds) {
+		double throughput = getThroughput();
+		Double modelled = throughput > 0 && progress.workBytes > 0 ? progress.workBytes / throughput * (1 - fraction) : null;
+		Double extrapolated = fraction >= MIN_EXTRAPOLATION_FRACTION ? elapsedSeconds * (1 - fraction) / fraction : null;
+		if (modelled != null && extrapolated != null) {
+			return (1 - fraction) * modelled + fraction * extrapolated;
+		}
+		return modelled != null ? modelled : extrapolated;
+	}
+
+	private double getTotalSecondsRemaining() {
+		double total = 0;
+		for (Progress progress : jobs.values()) {
+			Long remaining = getSnapshot(progress).getEstimatedSecondsRemaining();
+			total += remaining != null ? remaining : 0;
+		}
+		return total;
+	}
+}
@@ -15,35 +15,90 @@
  **/
 package generator.components;
 
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.security.SecureRandom;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileCacheImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.media.jai.ImageLayout;
 import javax.media.jai.PlanarImage;
+import javax.media.jai.TileCache;
+import javax.media.jai.TiledImage;
 
+import org.apache.commons.io.output.CountingOutputStream;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
 import org.geotools.coverage.processing.CoverageProcessor;
 import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
 import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.referencing.CRS;
 import org.geotools.resources.image.ImageUtilities;
-import org.opengis.coverage.grid.GridCoverageReader;
 import org.opengis.coverage.grid.GridCoverageWriter;
 import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import com.amazonaws.AbortedException;
 import com.amazonaws.AmazonClientException;
 
 import exception.InvalidInputException;
+import generator.config.ExecutorConfiguration;
+import generator.model.BoundingBoxInfo;
+import generator.model.CropProgress;
+import generator.model.CropResult;
+import generator.model.OutputOptions;
+import generator.model.PreviewOptions;
+import generator.model.RasterBatchCropRequest;
 import generator.model.RasterCropRequest;
+import generator.model.RasterPreviewRequest;
 import generator.model.ServiceResource;
 import model.data.DataResource;
 import model.data.location.FileLocation;
@@ -70,116 +125,868 @@ public class RasterGenerator {
 	private S3FileUtility fileUtility;
 	@Autowired
 	private PiazzaLogger piazzaLogger;
+	@Autowired
+	private CropResultCache resultCache;
+	@Autowired
+	private CropMetrics cropMetrics;
+	@Autowired
+	private MemoryBudget memoryBudget;
+	@Autowired
+	private TileCacheManager tileCacheManager;
+	@Autowired
+	private CropPipeline cropPipeline;
+	@Autowired
+	private ProgressTracker progressTracker;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.CROP_FORK_JOIN_POOL)
+	private ForkJoinPool cropForkJoinPool;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.CROP_WORKER_EXECUTOR)
+	private ThreadPoolTaskExecutor cropWorkerExecutor;
 	
 	@Value("${raster.temp.directory}")
 	private String RASTER_LOCAL_DIRECTORY;
+	@Value("${raster.output.tiled:false}")
+	private boolean OUTPUT_TILED;
+	@Value("${raster.output.tile.size:256}")
+	private int OUTPUT_TILE_SIZE;
+	@Value("${raster.output.compression:NONE}")
+	private String OUTPUT_COMPRESSION;
+	@Value("${raster.preview.default.size:512}")
+	private int PREVIEW_DEFAULT_SIZE;
+	@Value("${raster.preview.max.size:4096}")
+	private int PREVIEW_MAX_SIZE;
+
+	@Value("${crop.parallel.enabled:false}")
+	private boolean PARALLEL_ENABLED;
+	@Value("${crop.parallel.min.pixels:16777216}")
+	private long PARALLEL_MIN_PIXELS;
+
+	@Value("${crop.batch.read.overhead:2}")
+	private double BATCH_READ_OVERHEAD;
+
+	@Value("${crop.demo.delay.ms:15000}")
+	private long SLEEP_DELAY;
 
+	/**
+	 * Bytes per pixel assumed when the header does not describe the sample layout
+	 */
+	private static final long DEFAULT_BYTES_PER_PIXEL = 8;
 	private final static Logger LOGGER = LoggerFactory.getLogger(RasterGenerator.class);
-	private long SLEEP_DELAY = 15000;
 
 	/**
 	 * Asynchronous handler for cropping the image demonstrating service monitor capabilities of piazza.
 	 * 
+	 * The returned future can be cancelled with interruption; the crop stops at its next checkpoint and cleans up after
+	 * itself.
+	 * 
 	 * @return Future
 	 */
-	@Async
-	public Future<String> run(RasterCropRequest payload, String id)
+	@Async(ExecutorConfiguration.CROP_EXECUTOR)
+	public ListenableFuture<String> run(RasterCropRequest payload, String id)
 			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
-		
+		executeJob(id, serviceResource -> serviceResource.setResult(getCroppedRaster(payload, id, CropMetrics.PATH_ASYNC)));
+		return new AsyncResult<String>("crop raster thread");
+	}
+
+	/**
+	 * Asynchronous handler for cropping one source raster to many bounding boxes.
+	 * 
+	 * @return Future
+	 */
+	@Async(ExecutorConfiguration.CROP_EXECUTOR)
+	public ListenableFuture<String> runBatch(RasterBatchCropRequest payload, String id)
+			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
+		executeJob(id, serviceResource -> serviceResource.setResults(cropRasterCoverageBatch(payload, id)));
+		return new AsyncResult<String>("batch crop raster thread");
+	}
+
+	/**
+	 * Runs a job, recording its running, final status and result in the job store.
+	 */
+	private void executeJob(String id, CropTask task) throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
 		// persist ServiceResource pre-run
 		ServiceResource serviceResource = new ServiceResource();
 		serviceResource.setServiceResourceId(id);
-		int percent = (new SecureRandom()).nextInt(101);
+		ProgressTracker.Progress progress = progressTracker.start(id);
 		
-		JobProgress jobProgress = new JobProgress(percent);
 		StatusUpdate statusUpdate = new StatusUpdate(StatusUpdate.STATUS_RUNNING);
-		statusUpdate.setProgress(jobProgress);
+		statusUpdate.setProgress(new JobProgress(0));
 		serviceResource.setStatus(statusUpdate);
-		dataAccessor.addServiceResource(serviceResource);
+		serviceResource.setProgress(progressTracker.getSnapshot(progress));
+		dataAccessor.update(serviceResource);
 		LOGGER.info("Updating DB with running status PRIOR to run.");
 		
-		// Crop raster
-		DataResource dataResource = cropRasterCoverage(payload, id);
+		// Crop raster, the stages of the crop reporting their progress as they go
+		long jobStart = System.nanoTime();
+		cropMetrics.jobStarted(CropMetrics.PATH_ASYNC);
+		boolean succeeded = false;
+		try {
+			task.execute(serviceResource);
+			succeeded = true;
+		} catch (InterruptedException e) {
+			LOGGER.info(String.format("Crop job %s was cancelled.", id));
+			cropMetrics.recordError(CropMetrics.PATH_ASYNC, e);
+			serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_CANCELLED));
+			serviceResource.setProgress(progressTracker.getSnapshot(progress));
+			dataAccessor.update(serviceResource);
+			throw e;
+		} catch (Exception e) {
+			LOGGER.error(String.format("Crop job %s failed.", id), e);
+			cropMetrics.recordError(CropMetrics.PATH_ASYNC, e);
+			serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_ERROR));
+			serviceResource.setProgress(progressTracker.getSnapshot(progress));
+			dataAccessor.update(serviceResource);
+			throw e;
+		} finally {
+			progressTracker.finish(id, succeeded);
+			cropMetrics.jobFinished(CropMetrics.PATH_ASYNC, jobStart);
+		}
 
 		LOGGER.info("Updating DB with complete status AFTER crop.");
 		// Create storage model
-		//ServiceResource newServiceResource = new ServiceResource();
-		percent = 100;
-		jobProgress = new JobProgress(percent);
 		statusUpdate = new StatusUpdate(StatusUpdate.STATUS_SUCCESS);
-		statusUpdate.setProgress(jobProgress);
+		statusUpdate.setProgress(new JobProgress(100));
 		serviceResource.setStatus(statusUpdate);
-		serviceResource.setResult(dataResource);
+		serviceResource.setProgress(progressTracker.getCompletedSnapshot(progress));
 
 		// update ServiceResource record
 		dataAccessor.update(serviceResource);
-		return new AsyncResult<String>("crop raster thread");
+	}
+
+	/**
+	 * Body of a job, which stores its result in the given ServiceResource
+	 */
+	private interface CropTask {
+		void execute(ServiceResource serviceResource) throws AmazonClientException, InvalidInputException, IOException, InterruptedException;
+	}
+
+	/**
+	 * Returns the cropped raster, reusing the output of an identical earlier crop when the result cache has one, and
+	 * waiting for an identical crop that is already running instead of starting another.
+	 * 
+	 * @param RasterCropRequest
+	 *            Payload to Describe the Resource Location and Bounding Box.
+	 * @param path
+	 *            CropMetrics.PATH_SYNC or CropMetrics.PATH_ASYNC, for the metrics of the crop
+	 */
+	public DataResource getCroppedRaster(RasterCropRequest payload, String serviceId, String path)
+			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
+		if (!resultCache.isEnabled()) {
+			return cropRasterCoverage(payload, serviceId, path);
+		}
+		return resultCache.getOrLoad(getResultKey(payload), () -> cropRasterCoverage(payload, serviceId, path));
+	}
+
+	/**
+	 * Returns the result cache key of the crop, which depends on the current ETag of the source
+	 * 
+	 * @param RasterCropRequest
+	 *            Payload to Describe the Resource Location and Bounding Box.
+	 * @return String cache key
+	 */
+	public String getResultKey(RasterCropRequest payload) throws AmazonClientException, InvalidInputException {
+		if (payload.getSource() == null || payload.getBounds() == null) {
+			throw new InvalidInputException("A crop request requires a source and a bounding box.");
+		}
+		FileLocation fileLocation = getFileLocation(payload);
+		return resultCache.getKey(payload.getSource().getDomain(), payload.getSource().getBucketName(), payload.getSource().getFileName(),
+				fileUtility.getETag(fileLocation), payload.getBounds(), resolveOutputOptions(payload.getOutput()));
 	}
 
 	/**
 	 * Create a cropped coverage.
 	 * 
+	 * The crop runs as a pipeline of stages: the source is downloaded or opened on the I/O executor, decoded, cropped
+	 * and encoded on the CPU executor within the heap budget, and the upload is completed on the I/O executor. The crop
+	 * checks for cancellation between the download, decode, crop, encode and upload stages. Temp files, readers and
+	 * coverages are released however the crop ends, and an output that was already uploaded when the job was cancelled
+	 * is deleted again.
+	 * 
 	 * @param RasterCropRequest
 	 *            Payload to Describe the Resource Location and Bounding Box.
+	 * @param path
+	 *            CropMetrics.PATH_SYNC or CropMetrics.PATH_ASYNC, for the metrics of the stages
 	 */
-	public DataResource cropRasterCoverage(RasterCropRequest payload, String serviceId)
+	public DataResource cropRasterCoverage(RasterCropRequest payload, String serviceId, String path)
 			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
 
-		// sleeping for 15 seconds for demo and test purposes
+		// sleeping for demo and test purposes, 15 seconds by default
 		Thread.sleep(SLEEP_DELAY);
 
-		// Read Original File to From S3
-		Long fileSize = Long.valueOf(0);
-		FileLocation fileLocation = new S3FileStore(payload.getSource().getBucketName(), payload.getSource().getFileName(), fileSize,
-				payload.getSource().getDomain());
-		File tiff = fileUtility.getFileFromS3(fileLocation, serviceId);
-
 		// Create Temporary Local Write Directory
 		String tempTopFolder = String.format("%s_%s", RASTER_LOCAL_DIRECTORY, serviceId);
 		File localWriteDir = new File(String.format("%s%s%s", tempTopFolder, File.separator, "writeDir"));
-		localWriteDir.mkdir();
 
-		// Create Format and Reader
-		GeoTiffFormat format = new GeoTiffFormat();
-		GridCoverageReader reader = format.getReader(tiff);
+		FileLocation fileLocation = getFileLocation(payload);
+		OutputOptions outputOptions = resolveOutputOptions(payload.getOutput());
+		ProgressTracker.Progress progress = progressTracker.get(serviceId);
+		String fileName = null;
+		try {
+			// Read Original File to From S3
+			long stageStart = System.nanoTime();
+			progress.setStage(CropProgress.STAGE_DOWNLOAD);
+			try (SourceRaster source = cropPipeline.runIo(() -> openSource(fileLocation, serviceId), SourceRaster::close)) {
+				cropMetrics.recordStage(CropMetrics.STAGE_DOWNLOAD, path, stageStart);
+				checkCancelled();
+
+				// Set the Crop Envelope, and wait until the heap budget has room for the window it decodes and the upload
+				// buffers of its output
+				final GeneralEnvelope cropEnvelope = getCropEnvelope(payload.getBounds(), source.getReader());
+				long decodedBytes = estimateDecodedBytes(source.getReader(), cropEnvelope);
+				progress.setWorkBytes(decodedBytes);
+				EncodedCoverage encoded;
+				try (MemoryBudget.Reservation reservation = memoryBudget.reserve(
+						decodedBytes + estimateComputedTileBytes(source.getReader(), cropEnvelope), fileUtility.getUploadBufferBytes())) {
+					encoded = cropPipeline.runCpu(() -> cropAndEncode(source, cropEnvelope, localWriteDir, outputOptions, path, progress),
+							EncodedCoverage::discard);
+				}
+
+				// Persist the encoded crop to the S3 Bucket
+				fileName = cropPipeline.runIo(() -> completeUpload(encoded, fileLocation, path, progress), fileUtility::deleteFileFromS3);
+				checkCancelled();
+			}
+		} catch (AbortedException | InterruptedIOException e) {
+			// The S3 client and the upload stream abort transfers when the thread is interrupted
+			throw (InterruptedException) new InterruptedException("Crop cancelled during S3 transfer.").initCause(e);
+		} catch (InterruptedException e) {
+			if (fileName != null) {
+				fileUtility.deleteFileFromS3(fileName);
+			}
+			throw e;
+		} finally {
+			// Delete local temp folder recursively
+			long cleanupStart = System.nanoTime();
+			try {
+				deleteDirectoryRecursive(new File(tempTopFolder));
+			} catch (IOException e) {
+				LOGGER.error(String.format("Error deleting temp folder %s", tempTopFolder), e);
+			}
+			cropMetrics.recordStage(CropMetrics.STAGE_CLEANUP, path, cleanupStart);
+		}
+
+		return getDataSource(fileName, payload);
+	}
+
+	/**
+	 * Decodes the window of the source covered by the crop envelope, crops it and encodes it for upload. The CPU stage
+	 * of a crop.
+	 */
+	private EncodedCoverage cropAndEncode(SourceRaster source, GeneralEnvelope cropEnvelope, File writeDir, OutputOptions outputOptions,
+			String path, ProgressTracker.Progress progress) throws InvalidInputException, IOException, InterruptedException {
+		GridCoverage2D gridCoverage = null;
+		GridCoverage2D cropped = null;
+		try {
+			// Read only the window of the Original Coverage covered by the Crop Envelope.
+			long stageStart = System.nanoTime();
+			progress.setStage(CropProgress.STAGE_DECODE);
+			gridCoverage = readCoverageWindow(source.getReader(), cropEnvelope);
+			cropMetrics.recordStage(CropMetrics.STAGE_READ, path, stageStart);
+			checkCancelled();
+
+			// Crop the Raster, computing the tiles of a large crop in parallel
+			stageStart = System.nanoTime();
+			cropped = computeTiles(cropCoverage(gridCoverage, cropEnvelope), outputOptions, progress);
+			cropMetrics.recordStage(CropMetrics.STAGE_CROP, path, stageStart);
+			checkCancelled();
+
+			// Encode the Cropped Image
+			return encodeForUpload(cropped, writeDir, outputOptions, path, progress);
+		} finally {
+			cropMetrics.recordBytesIn(path, source.getBytesRead());
+			if (cropped != null) {
+				cropped.dispose(true);
+			}
+			disposeCoverage(gridCoverage);
+		}
+	}
+
+	/**
+	 * Crops the raster and writes the encoded GeoTIFF to the given stream, for clients that want the bytes in the
+	 * response rather than a pointer to an S3 object. Nothing is written to S3, but the output is not streamed either:
+	 * the GeoTIFF writer seeks back to patch the offsets in its header after writing the image data, and a response
+	 * cannot be rewound the way a multipart upload takes its first part last. The whole GeoTIFF is spooled to a local
+	 * cache file and copied to the stream once encoding completes, so the first byte arrives only after the decode and
+	 * encode time, and the cache directory needs room for the output.
+	 * 
+	 * Errors in the request or the source are raised before anything is written to the stream.
+	 * 
+	 * @param payload
+	 *            Payload to Describe the Resource Location and Bounding Box.
+	 * @param outputStream
+	 *            Stream to write the GeoTIFF to; it is not closed
+	 */
+	public void downloadRasterCoverage(RasterCropRequest payload, String serviceId, OutputStream outputStream)
+			throws AmazonClientException, InvalidInputException, IOException {
+		String tempTopFolder = String.format("%s_%s", RASTER_LOCAL_DIRECTORY, serviceId);
+		File cacheDir = new File(String.format("%s%s%s", tempTopFolder, File.separator, "encodeCache"));
+
+		FileLocation fileLocation = getFileLocation(payload);
+		OutputOptions outputOptions = resolveOutputOptions(payload.getOutput());
+		String path = CropMetrics.PATH_SYNC;
+		long stageStart = System.nanoTime();
+		try (SourceRaster source = openSource(fileLocation, serviceId)) {
+			cropMetrics.recordStage(CropMetrics.STAGE_DOWNLOAD, path, stageStart);
+			final GeneralEnvelope cropEnvelope = getCropEnvelope(payload.getBounds(), source.getReader());
+			MemoryBudget.Reservation reservation = reserveMemory(
+					estimateDecodedBytes(source.getReader(), cropEnvelope) + estimateComputedTileBytes(source.getReader(), cropEnvelope));
+			GridCoverage2D gridCoverage = null;
+			GridCoverage2D cropped = null;
+			try {
+				stageStart = System.nanoTime();
+				gridCoverage = readCoverageWindow(source.getReader(), cropEnvelope);
+				cropMetrics.recordStage(CropMetrics.STAGE_READ, path, stageStart);
+
+				stageStart = System.nanoTime();
+				cropped = computeTiles(cropCoverage(gridCoverage, cropEnvelope), outputOptions, progressTracker.get(serviceId));
+				cropMetrics.recordStage(CropMetrics.STAGE_CROP, path, stageStart);
+
+				stageStart = System.nanoTime();
+				CountingOutputStream countingStream = new CountingOutputStream(outputStream);
+				encodeCoverage(cropped, countingStream, cacheDir, outputOptions);
+				cropMetrics.recordStage(CropMetrics.STAGE_ENCODE, path, stageStart);
+				cropMetrics.recordBytesOut(path, countingStream.getByteCount());
+			} finally {
+				cropMetrics.recordBytesIn(path, source.getBytesRead());
+				if (cropped != null) {
+					cropped.dispose(true);
+				}
+				disposeCoverage(gridCoverage);
+				reservation.close();
+			}
+		} finally {
+			long cleanupStart = System.nanoTime();
+			try {
+				deleteDirectoryRecursive(new File(tempTopFolder));
+			} catch (IOException e) {
+				LOGGER.error(String.format("Error deleting temp folder %s", tempTopFolder), e);
+			}
+			cropMetrics.recordStage(CropMetrics.STAGE_CLEANUP, path, cleanupStart);
+		}
+	}
+
+	/**
+	 * Generates an 8-bit PNG or JPEG preview of the source raster, or of the requested bounds within it.
+	 * 
+	 * The reader is asked for the preview resolution rather than the native one, so it decodes from the closest internal
+	 * overview of the GeoTIFF, subsampling it as it reads. The decode cost follows the preview size, not the source
+	 * size. The read and the rendering are admitted against the heap budget like a crop.
+	 * 
+	 * @param payload
+	 *            Payload describing the source, the optional bounds and the preview options
+	 * @return byte[] the encoded preview
+	 */
+	public byte[] generatePreview(RasterPreviewRequest payload, String serviceId)
+			throws AmazonClientException, InvalidInputException, IOException {
+		String tempTopFolder = String.format("%s_%s", RASTER_LOCAL_DIRECTORY, serviceId);
+		FileLocation fileLocation = getFileLocation(payload);
+		PreviewOptions previewOptions = resolvePreviewOptions(payload.getPreview());
+		String path = CropMetrics.PATH_SYNC;
+		long stageStart = System.nanoTime();
+		try (SourceRaster source = openSource(fileLocation, serviceId)) {
+			cropMetrics.recordStage(CropMetrics.STAGE_DOWNLOAD, path, stageStart);
+			GridCoverage2DReader reader = source.getReader();
+			GeneralEnvelope envelope = payload.getBounds() == null ? new GeneralEnvelope(reader.getOriginalEnvelope())
+					: getCropEnvelope(payload.getBounds(), reader);
+
+			try (MemoryBudget.Reservation reservation = reserveMemory(estimatePreviewBytes(reader, envelope, previewOptions))) {
+				stageStart = System.nanoTime();
+				GridCoverage2D coverage = readCoverageWindow(reader, envelope, previewOptions.getWidth(), previewOptions.getHeight());
+				cropMetrics.recordStage(CropMetrics.STAGE_READ, path, stageStart);
+				try {
+					stageStart = System.nanoTime();
+					BufferedImage preview = renderPreview(coverage, previewOptions);
+					ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+					if (!ImageIO.write(preview, previewOptions.getFormat(), encoded)) {
+						throw new IOException(String.format("No image writer for format %s", previewOptions.getFormat()));
+					}
+					cropMetrics.recordStage(CropMetrics.STAGE_ENCODE, path, stageStart);
+					cropMetrics.recordBytesOut(path, encoded.size());
+					LOGGER.info(String.format("Generated %dx%d %s preview of %s from a %dx%d read, %d bytes.", preview.getWidth(),
+							preview.getHeight(), previewOptions.getFormat(), fileLocation.getFileName(),
+							coverage.getRenderedImage().getWidth(), coverage.getRenderedImage().getHeight(), encoded.size()));
+					return encoded.toByteArray();
+				} finally {
+					cropMetrics.recordBytesIn(path, source.getBytesRead());
+					disposeCoverage(coverage);
+				}
+			}
+		} finally {
+			try {
+				deleteDirectoryRecursive(new File(tempTopFolder));
+			} catch (IOException e) {
+				LOGGER.error(String.format("Error deleting temp folder %s", tempTopFolder), e);
+			}
+		}
+	}
+
+	/**
+	 * Renders a coverage read at preview resolution as an 8-bit image of the preview size. The selected bands are
+	 * stretched to 0-255 between their minimum and maximum, unless they already are 8-bit, and the image is then scaled
+	 * to fit the preview size.
+	 * 
+	 * @param coverage
+	 *            Coverage read at or above the preview resolution
+	 * @param previewOptions
+	 *            Resolved preview options
+	 * @return BufferedImage grayscale for one band, RGB for three
+	 */
+	public BufferedImage renderPreview(GridCoverage2D coverage, PreviewOptions previewOptions) throws InvalidInputException {
+		Raster data = coverage.getRenderedImage().getData();
+		int[] bands = getPreviewBands(previewOptions.getBands(), data.getNumBands());
+		int width = data.getWidth();
+		int height = data.getHeight();
+		boolean isByte = data.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE;
+
+		BufferedImage decoded = new BufferedImage(width, height, bands.length == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+		WritableRaster target = decoded.getRaster();
+		for (int i = 0; i < bands.length; i++) {
+			double[] samples = data.getSamples(data.getMinX(), data.getMinY(), width, height, bands[i], (double[]) null);
+			target.setSamples(0, 0, width, height, i, isByte ? toIntSamples(samples) : stretchToByte(samples));
+		}
+
+		double scale = Math.min(1.0, Math.min((double) previewOptions.getWidth() / width, (double) previewOptions.getHeight() / height));
+		int previewWidth = Math.max(1, (int) Math.round(width * scale));
+		int previewHeight = Math.max(1, (int) Math.round(height * scale));
+		if (previewWidth == width && previewHeight == height) {
+			return decoded;
+		}
+		BufferedImage preview = new BufferedImage(previewWidth, previewHeight, decoded.getType());
+		Graphics2D graphics = preview.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(decoded, 0, 0, previewWidth, previewHeight, null);
+		} finally {
+			graphics.dispose();
+		}
+		return preview;
+	}
+
+	/**
+	 * Merges the requested preview options with the server defaults and validates them.
+	 * 
+	 * @param requested
+	 *            Options from the request, may be null
+	 * @return PreviewOptions with size and format set
+	 */
+	public PreviewOptions resolvePreviewOptions(PreviewOptions requested) throws InvalidInputException {
+		PreviewOptions resolved = new PreviewOptions();
+		resolved.setWidth(requested != null && requested.getWidth() != null ? requested.getWidth() : PREVIEW_DEFAULT_SIZE);
+		resolved.setHeight(requested != null && requested.getHeight() != null ? requested.getHeight() : PREVIEW_DEFAULT_SIZE);
+		String format = requested != null && requested.getFormat() != null ? requested.getFormat().toLowerCase() : PreviewOptions.FORMAT_PNG;
+		resolved.setFormat("jpg".equals(format) ? PreviewOptions.FORMAT_JPEG : format);
+		resolved.setBands(requested != null ? requested.getBands() : null);
+
+		if (resolved.getWidth() < 1 || resolved.getWidth() > PREVIEW_MAX_SIZE || resolved.getHeight() < 1
+				|| resolved.getHeight() > PREVIEW_MAX_SIZE) {
+			throw new InvalidInputException(String.format("Preview width and height must be between 1 and %d.", PREVIEW_MAX_SIZE));
+		}
+		if (!PreviewOptions.FORMAT_PNG.equals(resolved.getFormat()) && !PreviewOptions.FORMAT_JPEG.equals(resolved.getFormat())) {
+			throw new InvalidInputException(String.format("Unsupported preview format %s; use png or jpeg.", resolved.getFormat()));
+		}
+		if (resolved.getBands() != null && resolved.getBands().size() != 1 && resolved.getBands().size() != 3) {
+			throw new InvalidInputException("Preview bands must list one band, or three bands for red, green and blue.");
+		}
+		return resolved;
+	}
+
+	/**
+	 * Returns the 0-based source bands for the preview: the requested 1-based bands, or the first three bands of a
+	 * multi-band source and the first band otherwise.
+	 */
+	private int[] getPreviewBands(List<Integer> requested, int numBands) throws InvalidInputException {
+		if (requested == null) {
+			return numBands >= 3 ? new int[] { 0, 1, 2 } : new int[] { 0 };
+		}
+		int[] bands = new int[requested.size()];
+		for (int i = 0; i < bands.length; i++) {
+			Integer band = requested.get(i);
+			if (band == null || band < 1 || band > numBands) {
+				throw new InvalidInputException(String.format("Preview band %s does not exist; the source has %d bands.", band, numBands));
+			}
+			bands[i] = band - 1;
+		}
+		return bands;
+	}
+
+	private int[] toIntSamples(double[] samples) {
+		int[] values = new int[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			values[i] = (int) samples[i];
+		}
+		return values;
+	}
+
+	/**
+	 * Linearly stretches samples to 0-255 between their finite minimum and maximum. Non-finite samples become 0.
+	 */
+	private int[] stretchToByte(double[] samples) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double sample : samples) {
+			if (!Double.isNaN(sample) && !Double.isInfinite(sample)) {
+				min = Math.min(min, sample);
+				max = Math.max(max, sample);
+			}
+		}
+		double scale = max > min ? 255.0 / (max - min) : 0;
+		int[] values = new int[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			double sample = samples[i];
+			values[i] = Double.isNaN(sample) || Double.isInfinite(sample) ? 0 : (int) Math.round((sample - min) * scale);
+		}
+		return values;
+	}
+
+	/**
+	 * Crops one source raster to many bounding boxes.
+	 * 
+	 * The source is opened once. Boxes close to each other are grouped, and one coverage covering each group is read
+	 * from the source, one group at a time; boxes far apart are read as separate windows rather than as one window
+	 * spanning the raster between them. Tiles of a coverage are only decoded when a crop touches them. The crops of a
+	 * group are cropped, encoded and uploaded in parallel on the crop worker executor. A group whose window and upload
+	 * buffers do not fit the heap budget is read box by box, and a box that does not fit on its own is reported as
+	 * failed. A crop that fails is reported in its result without failing the others.
+	 * 
+	 * @param payload
+	 *            Payload describing the source and the bounding boxes
+	 * @return List of results, in the order of the bounding boxes
+	 */
+	public List<CropResult> cropRasterCoverageBatch(RasterBatchCropRequest payload, String serviceId)
+			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
+
+		// sleeping for demo and test purposes, 15 seconds by default
+		Thread.sleep(SLEEP_DELAY);
+
+		String tempTopFolder = String.format("%s_%s", RASTER_LOCAL_DIRECTORY, serviceId);
+		FileLocation fileLocation = getFileLocation(payload);
+		final OutputOptions outputOptions = resolveOutputOptions(payload.getOutput());
+		List<Future<CropResult>> futures = new ArrayList<Future<CropResult>>();
+		ProgressTracker.Progress progress = progressTracker.get(serviceId);
+		progress.setStage(CropProgress.STAGE_DOWNLOAD);
+		long stageStart = System.nanoTime();
+		try (SourceRaster source = cropPipeline.runIo(() -> openSource(fileLocation, serviceId), SourceRaster::close)) {
+			cropMetrics.recordStage(CropMetrics.STAGE_DOWNLOAD, CropMetrics.PATH_ASYNC, stageStart);
+			checkCancelled();
+
+			List<GeneralEnvelope> cropEnvelopes = new ArrayList<GeneralEnvelope>();
+			for (BoundingBoxInfo bounds : payload.getBoundsList()) {
+				cropEnvelopes.add(getCropEnvelope(bounds, source.getReader()));
+			}
+			// Boxes close together share one read window; a box far from the others is read on its own
+			List<List<Integer>> groups = new ArrayList<List<Integer>>();
+			for (List<Integer> group : groupByProximity(cropEnvelopes, BATCH_READ_OVERHEAD)) {
+				if (group.size() > 1 && !memoryBudget.fits(estimateDecodedBytes(source.getReader(), getReadEnvelope(cropEnvelopes, group)),
+						getBatchUploadBufferBytes(group.size()))) {
+					// A window too large for the heap budget is read box by box instead
+					for (int index : group) {
+						groups.add(Arrays.asList(index));
+					}
+				} else {
+					groups.add(group);
+				}
+			}
+
+			CropResult[] results = new CropResult[cropEnvelopes.size()];
+			List<GeneralEnvelope> readEnvelopes = new ArrayList<GeneralEnvelope>();
+			List<Long> groupBytes = new ArrayList<Long>();
+			long decodedBytes = 0;
+			int cropsToRead = 0;
+			Iterator<List<Integer>> iterator = groups.iterator();
+			while (iterator.hasNext()) {
+				List<Integer> group = iterator.next();
+				GeneralEnvelope readEnvelope = getReadEnvelope(cropEnvelopes, group);
+				long bytes = estimateDecodedBytes(source.getReader(), readEnvelope);
+				if (!memoryBudget.fits(bytes, getBatchUploadBufferBytes(group.size()))) {
+					// Only single boxes are left too large, and they cannot be cropped within the budget at all
+					int index = group.get(0);
+					LOGGER.warn(String.format("Crop %d of batch job %s is larger than the heap budget.", index, serviceId));
+					results[index] = new CropResult(payload.getBoundsList().get(index), null, String.format(
+							"The crop is larger than the heap budget of %d bytes. Request a smaller area.", memoryBudget.getBudget()));
+					iterator.remove();
+					continue;
+				}
+				readEnvelopes.add(readEnvelope);
+				groupBytes.add(bytes);
+				decodedBytes += bytes;
+				cropsToRead += group.size();
+			}
+			progress.setWorkBytes(decodedBytes);
+			progress.setCropsToComplete(cropsToRead);
+			if (groups.size() > 1) {
+				LOGGER.info(String.format("Reading the %d crops of batch job %s in %d windows.", cropsToRead, serviceId, groups.size()));
+			}
+
+			// Groups are read one after the other, so the batch holds one window at a time
+			try {
+				for (int group = 0; group < groups.size(); group++) {
+					MemoryBudget.Reservation reservation = memoryBudget.reserve(groupBytes.get(group),
+							getBatchUploadBufferBytes(groups.get(group).size()));
+					final GridCoverage2D gridCoverage;
+					try {
+						stageStart = System.nanoTime();
+						gridCoverage = readCoverageWindow(source.getReader(), readEnvelopes.get(group));
+						cropMetrics.recordStage(CropMetrics.STAGE_READ, CropMetrics.PATH_ASYNC, stageStart);
+					} catch (InvalidInputException | IOException | RuntimeException e) {
+						reservation.close();
+						throw e;
+					}
+					try {
+						checkCancelled();
+
+						// Crop, encode and upload every box of the group in parallel against the shared coverage
+						List<Integer> indices = groups.get(group);
+						int first = futures.size();
+						for (int i : indices) {
+							final BoundingBoxInfo bounds = payload.getBoundsList().get(i);
+							final GeneralEnvelope cropEnvelope = cropEnvelopes.get(i);
+							final File writeDir = new File(String.format("%s%swriteDir_%d", tempTopFolder, File.separator, i));
+							futures.add(submitCrop(
+									() -> cropAndUpload(gridCoverage, bounds, cropEnvelope, writeDir, outputOptions, fileLocation, payload)));
+						}
+
+						for (int j = 0; j < indices.size(); j++) {
+							int i = indices.get(j);
+							try {
+								results[i] = futures.get(first + j).get();
+							} catch (ExecutionException e) {
+								LOGGER.error(String.format("Crop %d of batch job %s failed.", i, serviceId), e.getCause());
+								cropMetrics.recordError(CropMetrics.PATH_ASYNC, e.getCause());
+								results[i] = new CropResult(payload.getBoundsList().get(i), null, e.getCause().getMessage());
+							}
+							progress.addTilesDecoded(1);
+						}
+					} finally {
+						disposeCoverage(gridCoverage);
+						reservation.close();
+					}
+				}
+				return Arrays.asList(results);
+			} finally {
+				cropMetrics.recordBytesIn(CropMetrics.PATH_ASYNC, source.getBytesRead());
+			}
+		} catch (InterruptedException e) {
+			cancelBatch(futures);
+			throw e;
+		} finally {
+			// Delete local temp folder recursively
+			long cleanupStart = System.nanoTime();
+			try {
+				deleteDirectoryRecursive(new File(tempTopFolder));
+			} catch (IOException e) {
+				LOGGER.error(String.format("Error deleting temp folder %s", tempTopFolder), e);
+			}
+			cropMetrics.recordStage(CropMetrics.STAGE_CLEANUP, CropMetrics.PATH_ASYNC, cleanupStart);
+		}
+	}
+
+	/**
+	 * Crops, encodes and uploads one box of a batch
+	 */
+	private CropResult cropAndUpload(GridCoverage2D coverage, BoundingBoxInfo bounds, GeneralEnvelope cropEnvelope, File writeDir,
+			OutputOptions outputOptions, FileLocation fileLocation, RasterCropRequest payload) throws IOException {
+		long stageStart = System.nanoTime();
+		GridCoverage2D cropped = cropCoverage(coverage, cropEnvelope);
+		cropMetrics.recordStage(CropMetrics.STAGE_CROP, CropMetrics.PATH_ASYNC, stageStart);
+		try {
+			String fileName = uploadCoverage(cropped, writeDir, outputOptions, fileLocation, CropMetrics.PATH_ASYNC);
+			if (Thread.currentThread().isInterrupted()) {
+				fileUtility.deleteFileFromS3(fileName);
+				return new CropResult(bounds, null, "Cancelled");
+			}
+			return new CropResult(bounds, getDataSource(fileName, payload), null);
+		} finally {
+			cropped.dispose(true);
+		}
+	}
+
+	/**
+	 * Returns the envelope covering all the boxes of a group, read as one window
+	 */
+	private GeneralEnvelope getReadEnvelope(List<GeneralEnvelope> cropEnvelopes, List<Integer> group) {
+		GeneralEnvelope readEnvelope = new GeneralEnvelope(cropEnvelopes.get(group.get(0)));
+		for (int index : group) {
+			readEnvelope.add(cropEnvelopes.get(index));
+		}
+		return readEnvelope;
+	}
+
+	/**
+	 * Returns the upload buffers held by the crops of a group, of which at most one per crop worker upload at a time
+	 */
+	private long getBatchUploadBufferBytes(int crops) {
+		return fileUtility.getUploadBufferBytes() * Math.min(crops, Math.max(1, cropWorkerExecutor.getMaxPoolSize()));
+	}
+
+	/**
+	 * Runs a crop of a batch on the crop worker executor, or on the batch thread itself when the executor's queue is
+	 * full, so that a burst of batches slows down rather than fails
+	 */
+	private Future<CropResult> submitCrop(Callable<CropResult> crop) {
+		try {
+			return cropWorkerExecutor.submit(crop);
+		} catch (TaskRejectedException e) {
+			FutureTask<CropResult> task = new FutureTask<CropResult>(crop);
+			task.run();
+			return task;
+		}
+	}
+
+	/**
+	 * Groups the boxes of a batch into the windows to read. A box joins the first group whose window, grown to cover it,
+	 * is at most maxOverhead times the summed area of the boxes in the group, so that boxes scattered over a large raster
+	 * do not make the batch decode everything between them. A box that fits no group starts a group of its own.
+	 * 
+	 * @param envelopes
+	 *            Envelopes of the boxes, in request order
+	 * @param maxOverhead
+	 *            Largest ratio of the area of a window to the summed area of its boxes
+	 * @return List of the indices of the boxes in each group
+	 */
+	public static List<List<Integer>> groupByProximity(List<GeneralEnvelope> envelopes, double maxOverhead) {
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		List<GeneralEnvelope> windows = new ArrayList<GeneralEnvelope>();
+		List<Double> boxAreas = new ArrayList<Double>();
+		for (int i = 0; i < envelopes.size(); i++) {
+			GeneralEnvelope envelope = envelopes.get(i);
+			double area = envelope.getSpan(0) * envelope.getSpan(1);
+			int group = 0;
+			for (; group < groups.size(); group++) {
+				GeneralEnvelope grown = new GeneralEnvelope(windows.get(group));
+				grown.add(envelope);
+				if (grown.getSpan(0) * grown.getSpan(1) <= maxOverhead * (boxAreas.get(group) + area)) {
+					windows.set(group, grown);
+					boxAreas.set(group, boxAreas.get(group) + area);
+					groups.get(group).add(i);
+					break;
+				}
+			}
+			if (group == groups.size()) {
+				groups.add(new ArrayList<Integer>(Arrays.asList(i)));
+				windows.add(new GeneralEnvelope(envelope));
+				boxAreas.add(area);
+			}
+		}
+		return groups;
+	}
 
-		// Read Original Coverage.
-		GridCoverage2D gridCoverage = (GridCoverage2D) reader.read(null);
+	/**
+	 * Cancels the crops of a cancelled batch, and deletes the outputs of those that were already uploaded
+	 */
+	private void cancelBatch(List<Future<CropResult>> futures) {
+		for (Future<CropResult> future : futures) {
+			if (!future.cancel(true)) {
+				try {
+					CropResult result = future.get();
+					if (result.getResult() != null) {
+						RasterDataType dataType = (RasterDataType) result.getResult().getDataType();
+						fileUtility.deleteFileFromS3(((S3FileStore) dataType.getLocation()).getFileName());
+					}
+				} catch (InterruptedException | ExecutionException | CancellationException e) {
+					LOGGER.debug("Crop of cancelled batch did not complete.", e);
+				}
+			}
+		}
+	}
 
-		// Set the Crop Envelope
-		double xmin = payload.getBounds().getMinx();
-		double ymin = payload.getBounds().getMiny();
-		double xmax = payload.getBounds().getMaxx();
-		double ymax = payload.getBounds().getMaxy();
+	/**
+	 * Opens a reader on the source raster, either streaming it with ranged GETs or downloading it to local disk.
+	 * 
+	 * @param fileLocation
+	 *            Location of the source raster
+	 * @param serviceId
+	 *            Id of the job
+	 * @return SourceRaster the opened source, to be closed by the caller
+	 */
+	public SourceRaster openSource(FileLocation fileLocation, String serviceId) throws AmazonClientException, InvalidInputException, IOException {
+		ImageInputStream sourceStream = null;
+		File sourceFile = null;
+		Object source;
+		if (fileUtility.isRangeReadEnabled()) {
+			sourceStream = fileUtility.getImageInputStreamFromS3(fileLocation);
+			source = sourceStream;
+		} else {
+			sourceFile = fileUtility.getFileFromS3(fileLocation, serviceId);
+			source = sourceFile;
+		}
 
-		double[] min = { xmin, ymin };
-		double[] max = { xmax, ymax };
-		final GeneralEnvelope cropEnvelope = new GeneralEnvelope(min, max);
+		// Create Format and Reader, decoding into the tile cache of the job if it has one. Until the SourceRaster owns
+		// them, the file and stream are released here, so a cached file is never left pinned.
+		TileCache tileCache = null;
+		boolean opened = false;
+		try {
+			tileCache = tileCacheManager.createJobCache();
+			GridCoverage2DReader reader = new GeoTiffFormat().getReader(source, tileCacheManager.getReaderHints(tileCache));
+			if (reader == null) {
+				throw new InvalidInputException("The source raster is not a readable GeoTIFF.");
+			}
+			SourceRaster sourceRaster = new SourceRaster(reader, sourceStream, sourceFile, fileUtility, tileCache, tileCacheManager);
+			opened = true;
+			return sourceRaster;
+		} finally {
+			if (!opened) {
+				if (tileCache != null) {
+					tileCacheManager.releaseJobCache(tileCache);
+				}
+				if (sourceFile != null) {
+					fileUtility.releaseFile(sourceFile);
+				}
+				if (sourceStream != null) {
+					sourceStream.close();
+				}
+			}
+		}
+	}
 
-		// Crop the Raster
+	/**
+	 * Crops the coverage to the envelope.
+	 * 
+	 * @param coverage
+	 *            Coverage to crop
+	 * @param cropEnvelope
+	 *            Envelope to crop to
+	 * @return GridCoverage2D the cropped coverage
+	 */
+	public GridCoverage2D cropCoverage(GridCoverage2D coverage, GeneralEnvelope cropEnvelope) {
 		final CoverageProcessor processor = CoverageProcessor.getInstance();
 		final ParameterValueGroup param = processor.getOperation("CoverageCrop").getParameters();
-		param.parameter("Source").setValue(gridCoverage);
+		param.parameter("Source").setValue(coverage);
 		param.parameter("Envelope").setValue(cropEnvelope);
-		GridCoverage2D cropped = (GridCoverage2D) processor.doOperation(param);
-
-		// Writing Cropped Image to File
-		String newFilePath = new StringBuilder(localWriteDir.getAbsolutePath()).append(File.separator).append(cropped.getName().toString())
-				.append(".tif").toString();
-		final File s3File = new File(newFilePath);
-		if (s3File.exists() == false) {
-			s3File.getParentFile().mkdirs();
-			boolean fileCreated = s3File.createNewFile();
+		return (GridCoverage2D) processor.doOperation(param);
+	}
+
+	/**
+	 * Writes the coverage as a GeoTIFF into the given directory.
+	 * 
+	 * @param coverage
+	 *            Coverage to write
+	 * @param directory
+	 *            Directory to write to
+	 * @param outputOptions
+	 *            Resolved tiling and compression options
+	 * @return File the written GeoTIFF
+	 * @throws IOException
+	 *             if the GeoTIFF could not be written completely
+	 */
+	public File writeCoverage(GridCoverage2D coverage, File directory, OutputOptions outputOptions) throws IOException {
+		final File file = getOutputFile(coverage, directory);
+		String newFilePath = file.getAbsolutePath();
+		if (file.exists() == false) {
+			file.getParentFile().mkdirs();
+			boolean fileCreated = file.createNewFile();
 			if (!fileCreated) {
 				LOGGER.warn(String.format("File %s could not be created.", newFilePath));
 			}
 		}
-		GridCoverageWriter writer = format.getWriter(s3File);
+		GeoTiffFormat format = new GeoTiffFormat();
+		GridCoverageWriter writer = format.getWriter(file);
 
+		long start = System.currentTimeMillis();
 		try {
-			writer.write(cropped, new GeneralParameterValue[0]);
-		} catch (IllegalArgumentException | IOException e) {
-			LOGGER.warn("Error writing Grid Coverage file.", e);
+			writer.write(coverage, getWriteParameters(format, outputOptions));
+		} catch (IllegalArgumentException e) {
+			// A truncated file must not be uploaded as a successful crop
+			throw new IOException(String.format("Error writing Grid Coverage file %s.", file.getName()), e);
 		} finally {
 			try {
 				writer.dispose();
@@ -187,33 +994,642 @@ public class RasterGenerator {
 				LOGGER.warn("Error disposing of Grid Writer.", e);
 			}
 		}
+		LOGGER.info(String.format("Encoded %s in %d ms to %d bytes, tiled %s, tile size %d, compression %s.", file.getName(),
+				System.currentTimeMillis() - start, file.length(), outputOptions.getTiled(), outputOptions.getTileSize(),
+				outputOptions.getCompression()));
+		return file;
+	}
+
+	/**
+	 * Returns the file the coverage is written to by {@link #writeCoverage(GridCoverage2D, File, OutputOptions)}
+	 */
+	private File getOutputFile(GridCoverage2D coverage, File directory) {
+		return new File(new StringBuilder(directory.getAbsolutePath()).append(File.separator).append(coverage.getName().toString())
+				.append(".tif").toString());
+	}
 
-		// Persist Cropped Raster to S3 Bucket
-		String fileName = fileUtility.writeFileToS3(s3File, fileLocation);
+	/**
+	 * Computes the tiles of a large cropped coverage in parallel on the crop fork join pool. The cropped region is split
+	 * into blocks of the output tile size, each block is pulled through the decode and crop chain on its own worker,
+	 * and the results are assembled into an in-memory tiled image laid out like the output, which the encoder then
+	 * writes tile by tile. Crops smaller than crop.parallel.min.pixels, and all crops unless crop.parallel.enabled is
+	 * set, are returned as they are.
+	 * 
+	 * The computed image is a full copy of the crop held on the heap next to the decoded window, which
+	 * {@link #estimateComputedTileBytes(GridCoverage2DReader, GeneralEnvelope)} accounts for in the memory budget.
+	 * 
+	 * @param coverage
+	 *            Cropped coverage; it is disposed if a computed coverage is returned in its place
+	 * @param outputOptions
+	 *            Resolved output options, for the tile size
+	 * @param progress
+	 *            Progress of the job, counting the computed tiles
+	 * @return GridCoverage2D the computed coverage, or the given coverage
+	 */
+	public GridCoverage2D computeTiles(GridCoverage2D coverage, OutputOptions outputOptions, ProgressTracker.Progress progress)
+			throws IOException {
+		RenderedImage image = coverage.getRenderedImage();
+		if (!PARALLEL_ENABLED || (long) image.getWidth() * image.getHeight() < PARALLEL_MIN_PIXELS) {
+			return coverage;
+		}
 
-		// Close Things
-		if (gridCoverage != null) {
+		int tileSize = outputOptions.getTiled() ? outputOptions.getTileSize() : OUTPUT_TILE_SIZE;
+		TiledImage tiledImage = new TiledImage(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight(), image.getMinX(),
+				image.getMinY(), image.getSampleModel().createCompatibleSampleModel(tileSize, tileSize), image.getColorModel());
+		int tileCount = tiledImage.getNumXTiles() * tiledImage.getNumYTiles();
+		progress.setTilesToDecode(tileCount);
+		TileBlocks blocks = new TileBlocks(image, tiledImage, 0, tileCount, new AtomicBoolean(), progress);
+		long start = System.currentTimeMillis();
+		try {
+			cropForkJoinPool.submit(blocks).get();
+		} catch (InterruptedException e) {
+			blocks.cancelled.set(true);
+			Thread.currentThread().interrupt();
+			coverage.dispose(true);
+			throw new InterruptedIOException("Interrupted while computing the tiles of the crop.");
+		} catch (ExecutionException e) {
+			coverage.dispose(true);
+			throw new IOException("Error computing the tiles of the crop.", e.getCause());
+		}
+		LOGGER.info(String.format("Computed %d tiles of %dx%d crop in %d ms on %d threads.", blocks.to, image.getWidth(),
+				image.getHeight(), System.currentTimeMillis() - start, cropForkJoinPool.getParallelism()));
+
+		GridCoverage2D computed = new GridCoverageFactory().create(coverage.getName(), tiledImage, coverage.getGridGeometry(),
+				coverage.getSampleDimensions(), null, coverage.getProperties());
+		coverage.dispose(true);
+		return computed;
+	}
+
+	/**
+	 * Copies a range of tiles of the target image from the source image, splitting the range across fork join workers
+	 */
+	private static class TileBlocks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final transient RenderedImage source;
+		private final transient TiledImage target;
+		private final int from;
+		private final int to;
+		private final AtomicBoolean cancelled;
+		private final transient ProgressTracker.Progress progress;
+
+		TileBlocks(RenderedImage source, TiledImage target, int from, int to, AtomicBoolean cancelled, ProgressTracker.Progress progress) {
+			this.source = source;
+			this.target = target;
+			this.from = from;
+			this.to = to;
+			this.cancelled = cancelled;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled.get()) {
+				return;
+			}
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TileBlocks(source, target, from, middle, cancelled, progress),
+						new TileBlocks(source, target, middle, to, cancelled, progress));
+				return;
+			}
+			int tileX = target.getMinTileX() + from % target.getNumXTiles();
+			int tileY = target.getMinTileY() + from / target.getNumXTiles();
+			WritableRaster tile = target.getWritableTile(tileX, tileY);
+			try {
+				source.copyData(tile.createWritableChild(tile.getMinX(), tile.getMinY(),
+						Math.min(tile.getWidth(), target.getMaxX() - tile.getMinX()),
+						Math.min(tile.getHeight(), target.getMaxY() - tile.getMinY()), tile.getMinX(), tile.getMinY(), null));
+			} finally {
+				target.releaseWritableTile(tileX, tileY);
+			}
+			progress.addTilesDecoded(1);
+		}
+	}
+
+	/**
+	 * Encodes the coverage and uploads it to the output bucket.
+	 * 
+	 * @param coverage
+	 *            Coverage to upload
+	 * @param writeDir
+	 *            Local directory for the output file or the encoder cache
+	 * @param outputOptions
+	 *            Resolved tiling and compression options
+	 * @param fileLocation
+	 *            Location of the source raster
+	 * @param path
+	 *            CropMetrics.PATH_SYNC or CropMetrics.PATH_ASYNC, for the metrics of the encode and upload
+	 * @return String key of the uploaded object
+	 */
+	public String uploadCoverage(GridCoverage2D coverage, File writeDir, OutputOptions outputOptions, FileLocation fileLocation,
+			String path) throws IOException {
+		ProgressTracker.Progress progress = new ProgressTracker.Progress();
+		return completeUpload(encodeForUpload(coverage, writeDir, outputOptions, path, progress), fileLocation, path, progress);
+	}
+
+	/**
+	 * Encodes the coverage for upload to the output bucket. Depending on the upload mode, the encoded bytes are either
+	 * written to a local file to be uploaded with one PUT, or written to a multipart upload. The multipart upload holds
+	 * back its first part, where the encoder patches the header and offsets, and sends the parts after it while the
+	 * encoder is still writing (see {@link MultipartImageOutputStream}). If the encoder revisits bytes past the first
+	 * part, the coverage is encoded again through a file cache. Either way, the upload is finished by
+	 * {@link #completeUpload(EncodedCoverage, FileLocation, String, ProgressTracker.Progress)}.
+	 * 
+	 * @param coverage
+	 *            Coverage to encode
+	 * @param writeDir
+	 *            Local directory for the output file or the encoder cache
+	 * @param outputOptions
+	 *            Resolved tiling and compression options
+	 * @param path
+	 *            CropMetrics.PATH_SYNC or CropMetrics.PATH_ASYNC, for the metrics of the encode
+	 * @param progress
+	 *            Progress of the job, sampling the bytes encoded
+	 * @return EncodedCoverage the output file, or the upload stream still completing its last parts
+	 */
+	public EncodedCoverage encodeForUpload(GridCoverage2D coverage, File writeDir, OutputOptions outputOptions, String path,
+			ProgressTracker.Progress progress) throws IOException {
+		long stageStart = System.nanoTime();
+		RenderedImage image = coverage.getRenderedImage();
+		long bytesToEncode = (long) image.getWidth() * image.getHeight()
+				* Math.max(1, image.getSampleModel().getNumBands() * DataBuffer.getDataTypeSize(image.getSampleModel().getDataType()) / 8);
+		if (!fileUtility.isMultipartUploadEnabled()) {
+			progress.setEncoding(bytesToEncode, getOutputFile(coverage, writeDir)::length);
+			File file = writeCoverage(coverage, writeDir, outputOptions);
+			cropMetrics.recordStage(CropMetrics.STAGE_ENCODE, path, stageStart);
+			cropMetrics.recordBytesOut(path, file.length());
+			return new EncodedCoverage(file, null);
+		}
+
+		S3MultipartOutputStream outputStream = fileUtility.getOutputStreamToS3(coverage.getName().toString() + ".tif");
+		progress.setEncoding(bytesToEncode, outputStream::getBytesWritten);
+		MultipartImageOutputStream imageStream = new MultipartImageOutputStream(outputStream);
+		try {
+			encodeCoverage(coverage, imageStream, outputOptions);
+			cropMetrics.recordStage(CropMetrics.STAGE_ENCODE, path, stageStart);
+			return new EncodedCoverage(null, outputStream);
+		} catch (IOException | RuntimeException e) {
+			outputStream.abort();
+			if (!imageStream.isRewoundPastFirstPart()) {
+				throw e;
+			}
+			LOGGER.warn(String.format("Encoder of %s revisited bytes past the first upload part; encoding it again through a file cache.",
+					coverage.getName()));
+		}
+
+		S3MultipartOutputStream spooledStream = fileUtility.getOutputStreamToS3(coverage.getName().toString() + ".tif");
+		progress.setEncoding(bytesToEncode, spooledStream::getBytesWritten);
+		try {
+			encodeCoverage(coverage, spooledStream, writeDir, outputOptions);
+			cropMetrics.recordStage(CropMetrics.STAGE_ENCODE, path, stageStart);
+		} catch (IOException | RuntimeException e) {
+			spooledStream.abort();
+			throw e;
+		}
+		return new EncodedCoverage(null, spooledStream);
+	}
+
+	/**
+	 * Finishes the upload of an encoded coverage: uploads the output file, or completes the multipart upload.
+	 * 
+	 * @param encoded
+	 *            Output of {@link #encodeForUpload(GridCoverage2D, File, OutputOptions, String, ProgressTracker.Progress)}
+	 * @param fileLocation
+	 *            Location of the source raster
+	 * @param path
+	 *            CropMetrics.PATH_SYNC or CropMetrics.PATH_ASYNC, for the metrics of the upload
+	 * @param progress
+	 *            Progress of the job
+	 * @return String key of the uploaded object
+	 */
+	public String completeUpload(EncodedCoverage encoded, FileLocation fileLocation, String path, ProgressTracker.Progress progress)
+			throws IOException {
+		long stageStart = System.nanoTime();
+		progress.setStage(CropProgress.STAGE_UPLOAD);
+		if (encoded.getFile() != null) {
+			String fileName = fileUtility.writeFileToS3(encoded.getFile(), fileLocation);
+			cropMetrics.recordStage(CropMetrics.STAGE_UPLOAD, path, stageStart);
+			progress.setBytesUploaded(encoded.getFile().length());
+			return fileName;
+		}
+
+		// Most parts were sent while encoding; this sends the last part and the held first part, and completes the upload
+		S3MultipartOutputStream outputStream = encoded.getOutputStream();
+		try {
+			outputStream.close();
+		} catch (IOException | RuntimeException e) {
+			outputStream.abort();
+			throw e;
+		}
+		cropMetrics.recordStage(CropMetrics.STAGE_UPLOAD, path, stageStart);
+		cropMetrics.recordBytesOut(path, outputStream.getBytesWritten());
+		progress.setBytesUploaded(outputStream.getBytesWritten());
+		return outputStream.getKey();
+	}
+
+	/**
+	 * A coverage encoded for upload: either a local output file, or a multipart upload stream that has been written but
+	 * not yet completed
+	 */
+	public static class EncodedCoverage {
+		private final File file;
+		private final S3MultipartOutputStream outputStream;
+
+		public EncodedCoverage(File file, S3MultipartOutputStream outputStream) {
+			this.file = file;
+			this.outputStream = outputStream;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public S3MultipartOutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Drops an output that will not be uploaded
+		 */
+		public void discard() {
+			if (outputStream != null) {
+				outputStream.abort();
+			}
+			if (file != null && file.exists() && !file.delete()) {
+				LOGGER.warn(String.format("Unable to delete output file %s", file.getAbsolutePath()));
+			}
+		}
+	}
+
+	/**
+	 * Encodes the coverage as a GeoTIFF onto a stream. The TIFF encoder seeks back to patch IFD offsets, so it writes to
+	 * a cache file in the cache directory, and the whole encoded file is copied to the stream when encoding completes.
+	 * Nothing reaches the stream before then, and the cache file is deleted afterwards.
+	 * 
+	 * @param coverage
+	 *            Coverage to encode
+	 * @param outputStream
+	 *            Stream to write to; it is flushed but not closed
+	 * @param cacheDir
+	 *            Directory for the encoder cache file
+	 * @param outputOptions
+	 *            Resolved tiling and compression options
+	 */
+	public void encodeCoverage(GridCoverage2D coverage, OutputStream outputStream, File cacheDir, OutputOptions outputOptions)
+			throws IOException {
+		cacheDir.mkdirs();
+		ImageOutputStream imageStream = new FileCacheImageOutputStream(outputStream, cacheDir) {
+			private boolean streamClosed = false;
+
+			// The writer may close the stream on dispose as well
+			@Override
+			public void close() throws IOException {
+				if (!streamClosed) {
+					streamClosed = true;
+					super.close();
+				}
+			}
+		};
+		encodeCoverage(coverage, imageStream, outputOptions);
+	}
+
+	/**
+	 * Encodes the coverage as a GeoTIFF onto an image output stream, and closes the stream
+	 * 
+	 * @param coverage
+	 *            Coverage to encode
+	 * @param imageStream
+	 *            Stream to write to; closing it twice must be harmless
+	 * @param outputOptions
+	 *            Resolved tiling and compression options
+	 */
+	public void encodeCoverage(GridCoverage2D coverage, ImageOutputStream imageStream, OutputOptions outputOptions) throws IOException {
+		GeoTiffFormat format = new GeoTiffFormat();
+		GridCoverageWriter writer = format.getWriter(imageStream);
+
+		long start = System.currentTimeMillis();
+		long length;
+		try {
+			writer.write(coverage, getWriteParameters(format, outputOptions));
+			length = imageStream.length();
+		} finally {
+			try {
+				writer.dispose();
+			} catch (Exception e) {
+				LOGGER.warn("Error disposing of Grid Writer.", e);
+			}
+			imageStream.close();
+		}
+		LOGGER.info(String.format("Encoded %s in %d ms to %d bytes, tiled %s, tile size %d, compression %s.", coverage.getName(),
+				System.currentTimeMillis() - start, length, outputOptions.getTiled(), outputOptions.getTileSize(),
+				outputOptions.getCompression()));
+	}
+
+	/**
+	 * Merges the requested output options with the server defaults, and validates them.
+	 * 
+	 * @param requested
+	 *            Options of the request, may be null
+	 * @return OutputOptions with every option set
+	 * @throws InvalidInputException
+	 *             if the tile size or compression is not supported
+	 */
+	public OutputOptions resolveOutputOptions(OutputOptions requested) throws InvalidInputException {
+		OutputOptions resolved = new OutputOptions();
+		resolved.setTiled(OUTPUT_TILED);
+		resolved.setTileSize(OUTPUT_TILE_SIZE);
+		resolved.setCompression(OUTPUT_COMPRESSION);
+		if (requested != null) {
+			if (requested.getTiled() != null) {
+				resolved.setTiled(requested.getTiled());
+			}
+			if (requested.getTileSize() != null) {
+				resolved.setTileSize(requested.getTileSize());
+			}
+			if (requested.getCompression() != null) {
+				resolved.setCompression(requested.getCompression());
+			}
+		}
+
+		// TIFF tiles must be a multiple of 16 pixels
+		if (resolved.getTileSize() < 16 || resolved.getTileSize() > 4096 || resolved.getTileSize() % 16 != 0) {
+			throw new InvalidInputException("Tile size must be a multiple of 16 between 16 and 4096.");
+		}
+		resolved.setCompression(resolved.getCompression().toUpperCase());
+		if (!OutputOptions.COMPRESSION_NONE.equals(resolved.getCompression())
+				&& !OutputOptions.COMPRESSION_DEFLATE.equals(resolved.getCompression())
+				&& !OutputOptions.COMPRESSION_LZW.equals(resolved.getCompression())) {
+			throw new InvalidInputException(String.format("Unsupported compression %s, expected NONE, DEFLATE or LZW.", resolved.getCompression()));
+		}
+		return resolved;
+	}
+
+	/**
+	 * Builds the GeoTIFF writer parameters for the resolved output options
+	 */
+	private GeneralParameterValue[] getWriteParameters(GeoTiffFormat format, OutputOptions outputOptions) {
+		GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+		if (outputOptions.getTiled()) {
+			writeParams.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+			writeParams.setTiling(outputOptions.getTileSize(), outputOptions.getTileSize());
+		}
+		if (OutputOptions.COMPRESSION_DEFLATE.equals(outputOptions.getCompression())) {
+			writeParams.setCompressionMode(GeoToolsWriteParams.MODE_EXPLICIT);
+			writeParams.setCompressionType("Deflate");
+		} else if (OutputOptions.COMPRESSION_LZW.equals(outputOptions.getCompression())) {
+			writeParams.setCompressionMode(GeoToolsWriteParams.MODE_EXPLICIT);
+			writeParams.setCompressionType("LZW");
+		}
+
+		ParameterValueGroup params = format.getWriteParameters();
+		params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(writeParams);
+		return params.values().toArray(new GeneralParameterValue[1]);
+	}
+
+	/**
+	 * Releases the image chain held by a coverage read from a source raster.
+	 * 
+	 * @param coverage
+	 *            Coverage to dispose, may be null
+	 */
+	public void disposeCoverage(GridCoverage2D coverage) {
+		if (coverage != null) {
 			try {
 				// This is essential for releasing locks on image files!
-				PlanarImage planarImage = (PlanarImage) gridCoverage.getRenderedImage();
+				PlanarImage planarImage = (PlanarImage) coverage.getRenderedImage();
 				ImageUtilities.disposePlanarImageChain(planarImage);
-				gridCoverage.dispose(false);
+				coverage.dispose(false);
 			} catch (Exception t) {
 				LOGGER.error("Error releasing locks on Grid Coverage files.", t);
 			}
 		}
+	}
+
+	/**
+	 * Cancellation checkpoint between the stages of a crop.
+	 * 
+	 * @throws InterruptedException
+	 *             if the job thread has been interrupted
+	 */
+	private void checkCancelled() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException("Crop job cancelled.");
+		}
+	}
+
+	/**
+	 * Returns the S3 location of the source raster of the request
+	 */
+	private FileLocation getFileLocation(RasterCropRequest payload) {
+		Long fileSize = Long.valueOf(0);
+		return new S3FileStore(payload.getSource().getBucketName(), payload.getSource().getFileName(), fileSize,
+				payload.getSource().getDomain());
+	}
+
+	/**
+	 * Builds the crop envelope from the requested bounding box, in the coordinate reference system of the source.
+	 * 
+	 * @param bounds
+	 *            Requested bounding box
+	 * @param reader
+	 *            Reader of the source raster
+	 * @return GeneralEnvelope crop envelope
+	 */
+	public GeneralEnvelope getCropEnvelope(BoundingBoxInfo bounds, GridCoverage2DReader reader) {
+		double[] min = { bounds.getMinx(), bounds.getMiny() };
+		double[] max = { bounds.getMaxx(), bounds.getMaxy() };
+		GeneralEnvelope cropEnvelope = new GeneralEnvelope(min, max);
+		cropEnvelope.setCoordinateReferenceSystem(reader.getCoordinateReferenceSystem());
+		return cropEnvelope;
+	}
+
+	/**
+	 * Reads the part of the source coverage that intersects the crop envelope. The read window is passed to the reader
+	 * as a grid geometry at native resolution, so only the tiles or strips intersecting the envelope are decoded instead
+	 * of the whole coverage.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param cropEnvelope
+	 *            Envelope to read, in the coordinate reference system of the source
+	 * @return GridCoverage2D covering the intersection of the source and the crop envelope
+	 */
+	public GridCoverage2D readCoverageWindow(GridCoverage2DReader reader, GeneralEnvelope cropEnvelope)
+			throws InvalidInputException, IOException {
+		return readCoverageWindow(reader, cropEnvelope, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the part of the source coverage that intersects the crop envelope at no more than the given size. When the
+	 * window is larger than that at native resolution, the reader is asked for the lower resolution, and picks the
+	 * closest internal overview that is at least as fine, subsampling it as it decodes.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param cropEnvelope
+	 *            Envelope to read, in the coordinate reference system of the source
+	 * @param maxWidth
+	 *            Width in pixels the read should not need to exceed
+	 * @param maxHeight
+	 *            Height in pixels the read should not need to exceed
+	 * @return GridCoverage2D covering the intersection of the source and the crop envelope
+	 */
+	public GridCoverage2D readCoverageWindow(GridCoverage2DReader reader, GeneralEnvelope cropEnvelope, int maxWidth, int maxHeight)
+			throws InvalidInputException, IOException {
+		GeneralEnvelope readEnvelope = new GeneralEnvelope(reader.getOriginalEnvelope());
+		if (!readEnvelope.intersects(cropEnvelope, false)) {
+			throw new InvalidInputException("Requested bounds do not intersect the source raster.");
+		}
+		readEnvelope.intersect(cropEnvelope);
+
+		GridEnvelope2D window = getReadWindow(reader, readEnvelope);
+		double scale = Math.min((double) maxWidth / window.width, (double) maxHeight / window.height);
+		if (scale >= 1.0) {
+			ParameterValue<GridGeometry2D> readGridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+			readGridGeometry.setValue(new GridGeometry2D(window, readEnvelope));
+			return reader.read(new GeneralParameterValue[] { readGridGeometry });
+		}
+
+		GridEnvelope2D scaledWindow = new GridEnvelope2D(0, 0, Math.max(1, (int) Math.round(window.width * scale)),
+				Math.max(1, (int) Math.round(window.height * scale)));
+		ParameterValue<GridGeometry2D> readGridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+		readGridGeometry.setValue(new GridGeometry2D(scaledWindow, readEnvelope));
+		ParameterValue<OverviewPolicy> overviewPolicy = AbstractGridFormat.OVERVIEW_POLICY.createValue();
+		overviewPolicy.setValue(OverviewPolicy.QUALITY);
+		return reader.read(new GeneralParameterValue[] { readGridGeometry, overviewPolicy });
+	}
 
-		cropped.dispose(true);
+	/**
+	 * Computes the pixel window of the source raster covered by the given envelope at native resolution.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param envelope
+	 *            Envelope within the source raster
+	 * @return GridEnvelope2D pixel window, clipped to the source grid range
+	 */
+	private GridEnvelope2D getReadWindow(GridCoverage2DReader reader, GeneralEnvelope envelope) throws IOException {
+		GeneralEnvelope gridEnvelope;
 		try {
-			reader.dispose();
-		} catch (Exception e) {
-			LOGGER.error("Error disposing the Grid Coverage Reader.", e);
+			MathTransform worldToGrid = reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER).inverse();
+			gridEnvelope = CRS.transform(worldToGrid, envelope);
+		} catch (TransformException e) {
+			throw new IOException("Unable to compute the read window of the source raster.", e);
 		}
 
-		// Delete local temp folder recursively
-		deleteDirectoryRecursive(new File(tempTopFolder));
+		int minx = (int) Math.floor(gridEnvelope.getMinimum(0));
+		int miny = (int) Math.floor(gridEnvelope.getMinimum(1));
+		int maxx = (int) Math.ceil(gridEnvelope.getMaximum(0));
+		int maxy = (int) Math.ceil(gridEnvelope.getMaximum(1));
+		Rectangle window = new Rectangle(minx, miny, Math.max(1, maxx - minx), Math.max(1, maxy - miny));
 
-		return getDataSource(fileName, payload);
+		GridEnvelope2D sourceRange = new GridEnvelope2D(reader.getOriginalGridRange().getLow(0),
+				reader.getOriginalGridRange().getLow(1), reader.getOriginalGridRange().getSpan(0), reader.getOriginalGridRange().getSpan(1));
+		return new GridEnvelope2D(sourceRange.intersection(window));
+	}
+
+	/**
+	 * Estimates the bytes the reader decodes for the window of the source covered by the envelope, from the layout in
+	 * the header of the source. The window is widened to the tiles or strips it touches, since those are decoded whole.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param envelope
+	 *            Envelope to read, in the coordinate reference system of the source
+	 * @return long estimated decoded bytes, or 0 if the envelope does not intersect the source
+	 */
+	public long estimateDecodedBytes(GridCoverage2DReader reader, GeneralEnvelope envelope) throws IOException {
+		GeneralEnvelope readEnvelope = new GeneralEnvelope(reader.getOriginalEnvelope());
+		if (!readEnvelope.intersects(envelope, false)) {
+			return 0;
+		}
+		readEnvelope.intersect(envelope);
+		GridEnvelope2D window = getReadWindow(reader, readEnvelope);
+
+		ImageLayout layout = reader.getImageLayout();
+		long bytesPerPixel = getBytesPerPixel(layout);
+		long width = window.width;
+		long height = window.height;
+		if (layout != null && layout.getTileWidth(null) > 0 && layout.getTileHeight(null) > 0) {
+			width = getAlignedSpan(window.x, window.width, layout.getTileWidth(null), reader.getOriginalGridRange().getSpan(0));
+			height = getAlignedSpan(window.y, window.height, layout.getTileHeight(null), reader.getOriginalGridRange().getSpan(1));
+		}
+		return width * height * bytesPerPixel;
+	}
+
+	/**
+	 * Estimates the bytes of the in-memory copy {@link #computeTiles(GridCoverage2D, OutputOptions, ProgressTracker.Progress)}
+	 * makes of the crop covered by the envelope, on top of the decoded window.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param envelope
+	 *            Crop envelope, in the coordinate reference system of the source
+	 * @return long estimated bytes of the copy, or 0 if the crop is not computed in parallel
+	 */
+	public long estimateComputedTileBytes(GridCoverage2DReader reader, GeneralEnvelope envelope) throws IOException {
+		GeneralEnvelope readEnvelope = new GeneralEnvelope(reader.getOriginalEnvelope());
+		if (!PARALLEL_ENABLED || !readEnvelope.intersects(envelope, false)) {
+			return 0;
+		}
+		readEnvelope.intersect(envelope);
+		GridEnvelope2D window = getReadWindow(reader, readEnvelope);
+		long pixels = (long) window.width * window.height;
+		return pixels < PARALLEL_MIN_PIXELS ? 0 : pixels * getBytesPerPixel(reader.getImageLayout());
+	}
+
+	/**
+	 * Returns the bytes per pixel of the sample model in the layout, or a default if the layout has none
+	 */
+	private long getBytesPerPixel(ImageLayout layout) {
+		SampleModel sampleModel = layout == null ? null : layout.getSampleModel(null);
+		if (sampleModel == null) {
+			return DEFAULT_BYTES_PER_PIXEL;
+		}
+		return Math.max(1, (long) sampleModel.getNumBands() * DataBuffer.getDataTypeSize(sampleModel.getDataType()) / 8);
+	}
+
+	/**
+	 * Returns the span of the tiles covering the given span of pixels, clipped to the size of the source
+	 */
+	private long getAlignedSpan(int offset, int span, int tileSpan, int sourceSpan) {
+		long start = (long) Math.floor((double) offset / tileSpan) * tileSpan;
+		long end = Math.min(sourceSpan, (long) Math.ceil((double) (offset + span) / tileSpan) * tileSpan);
+		return end - start;
+	}
+
+	/**
+	 * Estimates the bytes a preview of the envelope holds while it is read and rendered. The reader decodes from the
+	 * overview closest to the preview resolution at or above it, at most twice as fine on each axis, and rendering
+	 * copies the decoded raster, takes the samples of one band at a time as doubles, and draws 8-bit images.
+	 * 
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param envelope
+	 *            Envelope of the preview, in the coordinate reference system of the source
+	 * @param previewOptions
+	 *            Resolved preview options
+	 * @return long estimated bytes of the preview
+	 */
+	public long estimatePreviewBytes(GridCoverage2DReader reader, GeneralEnvelope envelope, PreviewOptions previewOptions)
+			throws IOException {
+		long bytesPerPixel = getBytesPerPixel(reader.getImageLayout());
+		long previewPixels = (long) previewOptions.getWidth() * previewOptions.getHeight();
+		long readBytes = Math.min(estimateDecodedBytes(reader, envelope), 4 * previewPixels * bytesPerPixel);
+		long readPixels = readBytes / bytesPerPixel;
+		return 2 * readBytes + readPixels * (Double.BYTES + 3) + previewPixels * 3;
+	}
+
+	/**
+	 * Reserves heap budget for the given decoded bytes, for callers that cannot throw InterruptedException
+	 */
+	private MemoryBudget.Reservation reserveMemory(long decodedBytes) throws InvalidInputException, IOException {
+		try {
+			return memoryBudget.reserve(decodedBytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for heap budget.");
+		}
 	}
 
 	/**
@@ -19,22 +19,32 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 
 import exception.InvalidInputException;
-import model.data.location.FileAccessFactory;
+import generator.config.ExecutorConfiguration;
 import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
 import util.UUIDFactory;
 
 /**
@@ -47,16 +57,70 @@ import util.UUIDFactory;
 public class S3FileUtility {
 	@Autowired
 	private UUIDFactory uuidFactory;
-
+	@Autowired
+	private SourceRasterCache sourceCache;
+	@Autowired
 	private AmazonS3 s3Client;
+	@Autowired
+	private ProgressTracker progressTracker;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.UPLOAD_EXECUTOR)
+	private ThreadPoolTaskExecutor uploadExecutor;
+
 	public static final String S3_OUTPUT_BUCKET = "pz-svcs-prevgen-output";
+	public static final String SOURCE_MODE_DOWNLOAD = "download";
+	public static final String SOURCE_MODE_RANGE = "range";
+	public static final String UPLOAD_MODE_FILE = "file";
+	public static final String UPLOAD_MODE_MULTIPART = "multipart";
+	private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+	private static final int MAX_CACHED_ETAGS = 10000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(S3FileUtility.class);
 
-	@Value("${s3.key.access:}")
-	private String AMAZONS3_ACCESS_KEY;
-	@Value("${s3.key.private:}")
-	private String AMAZONS3_PRIVATE_KEY;
 	@Value("${raster.temp.directory}")
 	private String RASTER_LOCAL_DIRECTORY;
+	@Value("${raster.source.mode:download}")
+	private String SOURCE_MODE;
+	@Value("${raster.source.range.block.size:1048576}")
+	private int RANGE_BLOCK_SIZE;
+	@Value("${raster.source.range.cached.blocks:64}")
+	private int RANGE_CACHED_BLOCKS;
+	@Value("${s3.upload.mode:file}")
+	private String UPLOAD_MODE;
+	@Value("${s3.upload.part.size:8388608}")
+	private int UPLOAD_PART_SIZE;
+	@Value("${s3.upload.max.inflight.parts:4}")
+	private int UPLOAD_MAX_INFLIGHT_PARTS;
+	@Value("${s3.upload.part.retries:3}")
+	private int UPLOAD_PART_RETRIES;
+	@Value("${s3.etag.ttl.ms:5000}")
+	private long ETAG_TTL_MS;
+
+	/**
+	 * ETags of recently checked source rasters, so jobs on the same source within the TTL share one HEAD request
+	 */
+	private final ConcurrentMap<String, CachedETag> eTags = new ConcurrentHashMap<String, CachedETag>();
+
+	/**
+	 * Returns true if source rasters should be read with ranged GETs instead of being downloaded to local disk
+	 */
+	public boolean isRangeReadEnabled() {
+		return SOURCE_MODE_RANGE.equalsIgnoreCase(SOURCE_MODE);
+	}
+
+	/**
+	 * Opens a seekable stream over the S3 object that only fetches the byte ranges that are read from it
+	 * 
+	 * @param fileLocation
+	 *            Interface to get file info from.
+	 * @return ImageInputStream stream over the object; the caller is responsible for closing it
+	 * @throws IOException
+	 * @throws AmazonClientException
+	 */
+	public ImageInputStream getImageInputStreamFromS3(FileLocation fileLocation) throws AmazonClientException, IOException {
+		S3FileStore fileStore = (S3FileStore) fileLocation;
+		return new S3RangeImageInputStream(s3Client, fileStore.getBucketName(), fileStore.getFileName(), RANGE_BLOCK_SIZE,
+				RANGE_CACHED_BLOCKS);
+	}
 
 	/**
 	 * Will Copy File from S3 to Local Dir and Return the File
@@ -72,17 +136,79 @@ public class S3FileUtility {
 	public File getFileFromS3(FileLocation fileLocation, String serviceId)
 			throws AmazonClientException, InvalidInputException, IOException {
 
-		// Obtain file stream from s3
-		FileAccessFactory fileFactory = new FileAccessFactory(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
-		File file = new File(String.format("%s_%s%s%s", RASTER_LOCAL_DIRECTORY, serviceId, File.separator, fileLocation.getFileName()));
+		// Serve from the shared cache, revalidating the cached copy against the current ETag of the object
+		if (sourceCache.isEnabled()) {
+			S3FileStore fileStore = (S3FileStore) fileLocation;
+			String eTag = getETag(fileLocation);
+			return sourceCache.acquire(fileStore.getBucketName(), fileStore.getFileName(), eTag,
+					target -> downloadFile(fileLocation, target, serviceId));
+		}
 
-		InputStream inputStream = fileFactory.getFile(fileLocation);
-		FileUtils.copyInputStreamToFile(inputStream, file);
-		inputStream.close();
+		File file = new File(String.format("%s_%s%s%s", RASTER_LOCAL_DIRECTORY, serviceId, File.separator, fileLocation.getFileName()));
+		downloadFile(fileLocation, file, serviceId);
 
 		return file;
 	}
 
+	/**
+	 * Returns the ETag of the source raster, which changes whenever the object is replaced. The ETag is read with a HEAD
+	 * request at most once per TTL for each object, so a replaced object can be served from its old copy for up to the
+	 * TTL.
+	 * 
+	 * @param fileLocation
+	 *            Location of the source raster
+	 * @return String ETag of the object
+	 */
+	public String getETag(FileLocation fileLocation) throws AmazonClientException {
+		S3FileStore fileStore = (S3FileStore) fileLocation;
+		String key = String.format("%s/%s", fileStore.getBucketName(), fileStore.getFileName());
+		long now = System.currentTimeMillis();
+		CachedETag cached = eTags.get(key);
+		if (cached != null && now - cached.checkedAt < ETAG_TTL_MS) {
+			return cached.eTag;
+		}
+
+		String eTag = s3Client.getObjectMetadata(fileStore.getBucketName(), fileStore.getFileName()).getETag();
+		if (eTags.size() >= MAX_CACHED_ETAGS) {
+			eTags.clear();
+		}
+		eTags.put(key, new CachedETag(eTag, now));
+		return eTag;
+	}
+
+	/**
+	 * Releases a file returned by getFileFromS3 once the job no longer reads from it
+	 * 
+	 * @param file
+	 *            the local copy of the source raster
+	 */
+	public void releaseFile(File file) {
+		if (sourceCache.isEnabled()) {
+			sourceCache.release(file);
+		}
+	}
+
+	/**
+	 * Copies the S3 object to the given local file, counting the bytes copied into the progress of the job
+	 */
+	private void downloadFile(FileLocation fileLocation, File file, String serviceId) throws IOException {
+		// Obtain file stream from s3 through the shared client
+		S3FileStore fileStore = (S3FileStore) fileLocation;
+		ProgressTracker.Progress progress = progressTracker.get(serviceId);
+		try (S3Object object = s3Client.getObject(fileStore.getBucketName(), fileStore.getFileName());
+				InputStream inputStream = new ProxyInputStream(object.getObjectContent()) {
+					@Override
+					protected void afterRead(int count) {
+						if (count > 0) {
+							progress.addBytesDownloaded(count);
+						}
+					}
+				}) {
+			progress.setBytesToDownload(object.getObjectMetadata().getContentLength());
+			FileUtils.copyInputStreamToFile(inputStream, file);
+		}
+	}
+
 	/**
 	 * Upload file to s3 bucket
 	 * 
@@ -95,9 +221,6 @@ public class S3FileUtility {
 		metadata.setContentLength(file.length());
 		String fileKey = String.format("%s-%s", uuidFactory.getUUID(), file.getName());
 
-		// BasicAWSCredentials credentials = new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
-		s3Client = new AmazonS3Client();
-
 		// Making the object public
 		PutObjectRequest putObj = new PutObjectRequest(S3_OUTPUT_BUCKET, fileKey, file);
 		putObj.setCannedAcl(CannedAccessControlList.PublicRead);
@@ -105,4 +228,60 @@ public class S3FileUtility {
 
 		return fileKey;
 	}
+
+	/**
+	 * Returns true if outputs should be uploaded in parallel parts, rather than with a single PUT of a local file. Either
+	 * way the output is complete on local disk before its upload starts.
+	 */
+	public boolean isMultipartUploadEnabled() {
+		return UPLOAD_MODE_MULTIPART.equalsIgnoreCase(UPLOAD_MODE);
+	}
+
+	/**
+	 * Returns the heap one output holds while it uploads: the parts in flight, the part being filled and the first part
+	 * held back for the encoder to patch. Nothing is held when outputs are uploaded from a local file.
+	 */
+	public long getUploadBufferBytes() {
+		if (!isMultipartUploadEnabled()) {
+			return 0;
+		}
+		return (long) (UPLOAD_MAX_INFLIGHT_PARTS + 2) * Math.max(UPLOAD_PART_SIZE, MIN_PART_SIZE);
+	}
+
+	/**
+	 * Opens a stream that uploads to the output bucket in parallel parts, each part as soon as it is full
+	 * 
+	 * @param fileName
+	 *            name of the output file
+	 * @return S3MultipartOutputStream the stream; close it to complete the upload, or abort it on failure
+	 */
+	public S3MultipartOutputStream getOutputStreamToS3(String fileName) {
+		String fileKey = String.format("%s-%s", uuidFactory.getUUID(), fileName);
+		return new S3MultipartOutputStream(s3Client, S3_OUTPUT_BUCKET, fileKey, Math.max(UPLOAD_PART_SIZE, MIN_PART_SIZE),
+				UPLOAD_MAX_INFLIGHT_PARTS, UPLOAD_PART_RETRIES, uploadExecutor.getThreadPoolExecutor());
+	}
+
+	/**
+	 * Deletes an object uploaded by writeFileToS3, used when a job is cancelled after its upload
+	 * 
+	 * @param fileKey
+	 *            key of the object in the output bucket
+	 */
+	public void deleteFileFromS3(String fileKey) {
+		try {
+			s3Client.deleteObject(S3_OUTPUT_BUCKET, fileKey);
+		} catch (AmazonClientException e) {
+			LOGGER.error(String.format("Unable to delete output %s of cancelled job.", fileKey), e);
+		}
+	}
+
+	private static class CachedETag {
+		private final String eTag;
+		private final long checkedAt;
+
+		CachedETag(String eTag, long checkedAt) {
+			this.eTag = eTag;
+			this.checkedAt = checkedAt;
+		}
+	}
 }
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Output stream that uploads to S3 while it is being written. Bytes are collected into parts, and each full part is
+ * handed to the upload executor while the writer carries on, with a bounded number of parts in flight; the writer
+ * only waits when that many parts are buffered or uploading. The upload is started on the upload executor as well, so
+ * the writing thread makes no S3 calls. Failed parts are retried individually. Closing the stream uploads the last
+ * part and completes the upload; an output smaller than one part is sent with a single PUT instead. If anything fails,
+ * the multipart upload is aborted.
+ * 
+ * A writer that patches the start of its output after writing the rest can hold back the first part with
+ * {@link #holdFirstPart()}, and hand it over once it is final with {@link #setFirstPart(byte[], int)}.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+	private final AmazonS3 s3Client;
+	private final String bucketName;
+	private final String key;
+	private final int partSize;
+	private final int maxRetries;
+	private final ExecutorService uploadExecutor;
+	private final Semaphore inFlightParts;
+	private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+	private byte[] buffer;
+	private int position = 0;
+	/**
+	 * Read by progress tracking while the encoder writes
+	 */
+	private volatile long bytesWritten = 0;
+	/**
+	 * Upload Id, once the upload started on the upload executor
+	 */
+	private Future<String> initiation;
+	private boolean closed = false;
+	private boolean firstPartHeld = false;
+	private byte[] firstPart;
+	private int firstPartLength;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+	/**
+	 * @param s3Client
+	 *            Client used for the upload
+	 * @param bucketName
+	 *            Bucket to upload to
+	 * @param key
+	 *            Key of the uploaded object
+	 * @param partSize
+	 *            Size of each part in bytes, at least the S3 minimum of 5 MB
+	 * @param maxInFlightParts
+	 *            Number of parts that may be buffered or uploading at once
+	 * @param maxRetries
+	 *            Number of times a failed part is retried
+	 * @param uploadExecutor
+	 *            Executor the parts are uploaded on
+	 */
+	public S3MultipartOutputStream(AmazonS3 s3Client, String bucketName, String key, int partSize, int maxInFlightParts, int maxRetries,
+			ExecutorService uploadExecutor) {
+		this.s3Client = s3Client;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.partSize = partSize;
+		this.maxRetries = maxRetries;
+		this.uploadExecutor = uploadExecutor;
+		this.inFlightParts = new Semaphore(maxInFlightParts);
+		this.buffer = new byte[partSize];
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public int getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Holds back the first part of the output. Parts written to the stream are numbered from 2, and the first part is
+	 * given with {@link #setFirstPart(byte[], int)} before the stream is closed. Must be called before anything is
+	 * written.
+	 */
+	public void holdFirstPart() {
+		firstPartHeld = true;
+	}
+
+	/**
+	 * Gives the held first part. It must be a full part if anything was written to the stream.
+	 * 
+	 * @param data
+	 *            Bytes of the first part; the array is not copied
+	 * @param length
+	 *            Number of bytes of the first part
+	 */
+	public void setFirstPart(byte[] data, int length) {
+		firstPart = data;
+		firstPartLength = length;
+		bytesWritten += length;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		ensureOpen();
+		while (length > 0) {
+			int count = Math.min(length, partSize - position);
+			System.arraycopy(bytes, offset, buffer, position, count);
+			position += count;
+			offset += count;
+			length -= count;
+			bytesWritten += count;
+			if (position == partSize) {
+				submitPart(buffer, position, parts.size() + (firstPartHeld ? 2 : 1));
+				buffer = new byte[partSize];
+				position = 0;
+			}
+		}
+	}
+
+	/**
+	 * Uploads the remaining bytes and completes the upload
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (firstPartHeld && firstPart == null) {
+				throw new IOException(String.format("The first part of %s was held back and never given.", key));
+			}
+			if (initiation == null) {
+				putObject();
+			} else {
+				if (firstPartHeld && firstPartLength != partSize) {
+					throw new IOException(String.format("The first part of %s is not a full part.", key));
+				}
+				if (position > 0) {
+					submitPart(buffer, position, parts.size() + (firstPartHeld ? 2 : 1));
+				}
+				if (firstPartHeld) {
+					submitPart(firstPart, firstPartLength, 1);
+				}
+				completeUpload();
+			}
+			closed = true;
+		} catch (IOException | RuntimeException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Cancels the parts still uploading and aborts the multipart upload, so no incomplete upload is left in the bucket
+	 */
+	public void abort() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer = null;
+		for (Future<PartETag> part : parts) {
+			part.cancel(true);
+		}
+		if (initiation == null) {
+			return;
+		}
+		String uploadId;
+		try {
+			uploadId = initiation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.error(String.format("Interrupted before aborting the multipart upload of %s.", key));
+			return;
+		} catch (ExecutionException e) {
+			// The upload never started
+			return;
+		}
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+		} catch (AmazonClientException e) {
+			LOGGER.error(String.format("Unable to abort multipart upload %s of %s.", uploadId, key), e);
+		}
+	}
+
+	/**
+	 * Queues a part on the upload executor, once there is room among the parts in flight
+	 * 
+	 * @throws IOException
+	 *             if the queue of the upload executor is full, which fails the upload rather than the whole service
+	 */
+	private void submitPart(byte[] data, int length, int partNumber) throws IOException {
+		if (initiation == null) {
+			// Parts are queued behind the initiation, so they never wait on an upload Id that has no thread to start it
+			try {
+				initiation = uploadExecutor.submit(() -> s3Client
+						.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key).withCannedACL(CannedAccessControlList.PublicRead))
+						.getUploadId());
+			} catch (RejectedExecutionException e) {
+				throw new IOException(String.format("Upload queue is full; unable to start the upload of %s.", key), e);
+			}
+		}
+		try {
+			inFlightParts.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to upload a part.");
+		}
+
+		try {
+			parts.add(uploadExecutor.submit(() -> {
+				try {
+					return uploadPart(partNumber, data, length);
+				} finally {
+					inFlightParts.release();
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			inFlightParts.release();
+			throw new IOException(String.format("Upload queue is full; unable to upload part %d of %s.", partNumber, key), e);
+		} catch (RuntimeException e) {
+			inFlightParts.release();
+			throw e;
+		}
+	}
+
+	private PartETag uploadPart(int partNumber, byte[] data, int length) throws InterruptedException, ExecutionException {
+		String uploadId = initiation.get();
+		for (int attempt = 0;; attempt++) {
+			UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key).withUploadId(uploadId)
+					.withPartNumber(partNumber).withInputStream(new ByteArrayInputStream(data, 0, length)).withPartSize(length);
+			try {
+				return s3Client.uploadPart(request).getPartETag();
+			} catch (AmazonClientException e) {
+				if (attempt >= maxRetries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				LOGGER.warn(String.format("Retrying part %d of %s after error: %s", partNumber, key, e.getMessage()));
+				Thread.sleep(100L << attempt);
+			}
+		}
+	}
+
+	private void completeUpload() throws IOException {
+		String uploadId;
+		try {
+			uploadId = initiation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while starting the multipart upload.");
+		} catch (ExecutionException e) {
+			throw new IOException(String.format("Unable to start multipart upload of %s.", key), e.getCause());
+		}
+		List<PartETag> eTags = new ArrayList<PartETag>();
+		for (Future<PartETag> part : parts) {
+			try {
+				eTags.add(part.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for parts to upload.");
+			} catch (ExecutionException e) {
+				throw new IOException(String.format("Unable to upload part of %s.", key), e.getCause());
+			}
+		}
+		eTags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+		try {
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, eTags));
+		} catch (AmazonClientException e) {
+			throw new IOException(String.format("Unable to complete multipart upload of %s.", key), e);
+		}
+	}
+
+	private void putObject() throws IOException {
+		byte[] data = buffer;
+		int length = position;
+		if (firstPartHeld) {
+			data = new byte[firstPartLength + position];
+			System.arraycopy(firstPart, 0, data, 0, firstPartLength);
+			System.arraycopy(buffer, 0, data, firstPartLength, position);
+			length = data.length;
+		}
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(length);
+		PutObjectRequest putObj = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(data, 0, length), metadata);
+		putObj.setCannedAcl(CannedAccessControlList.PublicRead);
+		try {
+			s3Client.putObject(putObj);
+		} catch (AmazonClientException e) {
+			throw new IOException(String.format("Unable to upload %s.", key), e);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed.");
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Seekable image input stream over an S3 object. Bytes are fetched on demand with ranged GETs in fixed size blocks, and
+ * the most recently used blocks are kept in memory, so a GeoTIFF reader only pulls the header, the IFDs and the tiles
+ * it actually decodes.
+ */
+public class S3RangeImageInputStream extends ImageInputStreamImpl {
+	private final AmazonS3 s3Client;
+	private final String bucketName;
+	private final String key;
+	private final long length;
+	private final int blockSize;
+	private final Map<Long, byte[]> blockCache;
+	private long bytesFetched = 0;
+	private int requestCount = 0;
+
+	/**
+	 * @param s3Client
+	 *            Client used for the ranged GETs
+	 * @param bucketName
+	 *            Bucket of the object
+	 * @param key
+	 *            Key of the object
+	 * @param blockSize
+	 *            Size in bytes of each fetched block
+	 * @param maxCachedBlocks
+	 *            Number of blocks kept in memory
+	 */
+	public S3RangeImageInputStream(AmazonS3 s3Client, String bucketName, String key, int blockSize, final int maxCachedBlocks)
+			throws IOException {
+		this.s3Client = s3Client;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.blockSize = blockSize;
+		this.blockCache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > maxCachedBlocks;
+			}
+		};
+		try {
+			this.length = s3Client.getObjectMetadata(bucketName, key).getContentLength();
+		} catch (AmazonClientException e) {
+			throw new IOException(String.format("Unable to read metadata of s3://%s/%s", bucketName, key), e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= length) {
+			return -1;
+		}
+		byte[] block = getBlocks(streamPos / blockSize, streamPos / blockSize)[0];
+		return block[(int) (streamPos++ % blockSize)] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int len) throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		if (streamPos >= length) {
+			return -1;
+		}
+
+		int toRead = (int) Math.min(len, length - streamPos);
+		long firstBlock = streamPos / blockSize;
+		long lastBlock = (streamPos + toRead - 1) / blockSize;
+		byte[][] blocks = getBlocks(firstBlock, lastBlock);
+
+		int copied = 0;
+		for (byte[] block : blocks) {
+			int blockOffset = (int) ((streamPos + copied) % blockSize);
+			int count = Math.min(toRead - copied, block.length - blockOffset);
+			System.arraycopy(block, blockOffset, buffer, offset + copied, count);
+			copied += count;
+		}
+		streamPos += copied;
+		return copied;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		blockCache.clear();
+	}
+
+	/**
+	 * Returns the number of bytes fetched from S3 so far
+	 */
+	public long getBytesFetched() {
+		return bytesFetched;
+	}
+
+	/**
+	 * Returns the number of ranged GETs issued so far
+	 */
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Returns the blocks in the given inclusive index range, fetching every consecutive run of missing blocks with a
+	 * single ranged GET.
+	 */
+	private byte[][] getBlocks(long firstBlock, long lastBlock) throws IOException {
+		byte[][] blocks = new byte[(int) (lastBlock - firstBlock + 1)][];
+		long index = firstBlock;
+		while (index <= lastBlock) {
+			byte[] cached = blockCache.get(index);
+			if (cached != null) {
+				blocks[(int) (index - firstBlock)] = cached;
+				index++;
+				continue;
+			}
+			long runEnd = index;
+			while (runEnd < lastBlock && !blockCache.containsKey(runEnd + 1)) {
+				runEnd++;
+			}
+			fetchBlocks(index, runEnd, blocks, firstBlock);
+			index = runEnd + 1;
+		}
+		return blocks;
+	}
+
+	private void fetchBlocks(long firstBlock, long lastBlock, byte[][] blocks, long blocksOffset) throws IOException {
+		long start = firstBlock * blockSize;
+		long end = Math.min(length, (lastBlock + 1) * blockSize) - 1;
+		GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end);
+
+		try (S3Object object = s3Client.getObject(request); InputStream inputStream = object.getObjectContent()) {
+			requestCount++;
+			for (long index = firstBlock; index <= lastBlock; index++) {
+				long blockStart = index * blockSize;
+				byte[] block = new byte[(int) (Math.min(length, blockStart + blockSize) - blockStart)];
+				IOUtils.readFully(inputStream, block);
+				bytesFetched += block.length;
+				blockCache.put(index, block);
+				blocks[(int) (index - blocksOffset)] = block;
+			}
+		} catch (AmazonClientException e) {
+			throw new IOException(String.format("Unable to read bytes %d-%d of s3://%s/%s", start, end, bucketName, key), e);
+		}
+	}
+}
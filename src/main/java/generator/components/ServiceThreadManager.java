@@ -16,19 +16,36 @@
 package generator.components;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 
 import javax.annotation.PostConstruct;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.client.ResourceAccessException;
 
 import com.amazonaws.AmazonClientException;
 
 import exception.InvalidInputException;
+import generator.model.CropProgress;
+import generator.model.CropResult;
+import generator.model.JobStatusRequest;
+import generator.model.JobStatusResponse;
+import generator.model.QueuedJob;
+import generator.model.RasterBatchCropRequest;
 import generator.model.RasterCropRequest;
 import generator.model.ServiceResource;
 import model.data.DataResource;
@@ -54,34 +71,265 @@ public class ServiceThreadManager {
 	@Autowired
 	private RasterGenerator rasterGenerator;
 
+	@Autowired
+	private CropResultCache resultCache;
+
+	@Autowired(required = false)
+	private JobQueue jobQueue;
+
+	@Autowired
+	private JobQueueWorker jobQueueWorker;
+
+	@Value("${crop.batch.max.size:200}")
+	private int BATCH_MAX_SIZE;
+	@Value("${status.batch.max.size:10000}")
+	private int STATUS_BATCH_MAX_SIZE;
+
 	private Map<String, Future<?>> threadMap;
+	/**
+	 * Watches of jobs that only the shared queue holds, by job Id
+	 */
+	private final Map<String, QueueWatch> queueWatches = new ConcurrentHashMap<String, QueueWatch>();
+	/**
+	 * Held while the snapshot of a shared crop is copied to the jobs waiting on it
+	 */
+	private final Object mirrorLock = new Object();
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ServiceThreadManager.class);
 
 	/**
 	 * Initializing
 	 */
 	@PostConstruct
 	public void initialize() {
-		// Initialize the HashMap
-		threadMap = new HashMap<String, Future<?>>();
+		// Initialize the Map, accessed by request threads and by job completion callbacks
+		threadMap = new ConcurrentHashMap<String, Future<?>>();
 	}
 
 	/**
 	 * Asynchronously processing raster image
+	 * 
+	 * @throws TaskRejectedException
+	 *             if the crop queue, or the shared job queue, is full
 	 */
 	public String processRasterAsync(RasterCropRequest payload) throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
 		String id = uuidFactory.getUUID();
+
+		// Identical crops share one crop: answer from the result cache, or wait on the crop already running
+		if (resultCache.isEnabled()) {
+			String resultKey = rasterGenerator.getResultKey(payload);
+			DataResource cached = resultCache.get(resultKey);
+			if (cached != null) {
+				addCompletedJob(id, cached);
+				return id;
+			}
+			// Jobs running on other instances are not known here, so queued crops are not attached to them
+			if (jobQueue == null) {
+				waitOnSharedJob(id, payload, resultKey);
+				return id;
+			}
+		}
+
+		if (jobQueue != null) {
+			queueJob(id, payload, null);
+			return id;
+		}
+
+		// Record the job before queueing it, so that its status can be polled while it waits for a thread
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		dataAccessor.addServiceResource(serviceResource);
+
+		ListenableFuture<String> future;
+		try {
+			future = rasterGenerator.run(payload, id);
+		} catch (TaskRejectedException e) {
+			dataAccessor.removeJob(id);
+			throw e;
+		}
+		trackJob(id, future);
 		
-		// No need to keep track of threads for now
-		rasterGenerator.run(payload, id);
-		
 		return id;
 	}
 
+	/**
+	 * Records a job that waits on the shared crop for its result key, starting the crop if none is running. The shared
+	 * crop runs under an Id of its own, and each job waiting on it mirrors its snapshots, so that every client can poll,
+	 * watch and delete its own job. Deleting a job only cancels the shared crop if no other job is waiting on it.
+	 * 
+	 * @throws TaskRejectedException
+	 *             if the crop had to be started and the crop queue is full
+	 */
+	private void waitOnSharedJob(String id, RasterCropRequest payload, String resultKey)
+			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		dataAccessor.addServiceResource(serviceResource);
+
+		String candidateId = uuidFactory.getUUID();
+		String sharedJobId = resultCache.addWaiter(resultKey, id, candidateId);
+		if (!sharedJobId.equals(candidateId)) {
+			LOGGER.info(String.format("Job %s is waiting on running crop %s with the same request.", id, sharedJobId));
+			mirrorSharedJob(resultKey, sharedJobId);
+			return;
+		}
+
+		ServiceResource sharedResource = new ServiceResource();
+		sharedResource.setServiceResourceId(sharedJobId);
+		sharedResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		dataAccessor.addServiceResource(sharedResource);
+		DataAccessor.JobListener mirror = resource -> mirrorSharedJob(resultKey, sharedJobId);
+		dataAccessor.addListener(sharedJobId, mirror);
+
+		ListenableFuture<String> future;
+		try {
+			future = rasterGenerator.run(payload, sharedJobId);
+		} catch (TaskRejectedException e) {
+			// Jobs that joined in the meantime fail with the crop; this caller is told it was rejected
+			resultCache.removeWaiter(id);
+			dataAccessor.removeJob(id);
+			sharedResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_ERROR));
+			dataAccessor.update(sharedResource);
+			finishSharedJob(resultKey, sharedJobId, mirror);
+			throw e;
+		}
+		trackJob(sharedJobId, future);
+		future.addCallback(result -> finishSharedJob(resultKey, sharedJobId, mirror),
+				failure -> finishSharedJob(resultKey, sharedJobId, mirror));
+	}
+
+	/**
+	 * Copies the latest snapshot of a shared crop to the jobs waiting on it. Snapshots are read and copied under one
+	 * lock, so a waiter is never set back to an older snapshot than the one it holds.
+	 */
+	private void mirrorSharedJob(String resultKey, String sharedJobId) {
+		synchronized (mirrorLock) {
+			ServiceResource shared;
+			try {
+				shared = dataAccessor.getServiceResourceById(sharedJobId);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (shared == null) {
+				return;
+			}
+			for (String waiterId : resultCache.getWaiters(resultKey, sharedJobId)) {
+				ServiceResource serviceResource = new ServiceResource();
+				serviceResource.setServiceResourceId(waiterId);
+				serviceResource.setStatus(shared.getStatus());
+				serviceResource.setResult(shared.getResult());
+				serviceResource.setProgress(shared.getProgress());
+				dataAccessor.update(serviceResource);
+			}
+		}
+	}
+
+	/**
+	 * Forgets a shared crop once it has completed or been rejected. Its waiters hold its final snapshot by then.
+	 */
+	private void finishSharedJob(String resultKey, String sharedJobId, DataAccessor.JobListener mirror) {
+		mirrorSharedJob(resultKey, sharedJobId);
+		resultCache.removeSharedJob(resultKey, sharedJobId);
+		dataAccessor.removeListener(sharedJobId, mirror);
+		dataAccessor.removeJob(sharedJobId);
+	}
+
+	/**
+	 * Records a job that is complete from the start, for a crop answered from the result cache
+	 */
+	private void addCompletedJob(String id, DataResource result) {
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		StatusUpdate statusUpdate = new StatusUpdate(StatusUpdate.STATUS_SUCCESS);
+		statusUpdate.setProgress(new JobProgress(100));
+		serviceResource.setStatus(statusUpdate);
+		serviceResource.setResult(result);
+		dataAccessor.addServiceResource(serviceResource);
+		if (jobQueue != null) {
+			QueuedJob job = new QueuedJob();
+			job.setServiceId(id);
+			job.setState(QueuedJob.STATE_DONE);
+			job.setCompletedAt(System.currentTimeMillis());
+			job.setSnapshot(serviceResource);
+			jobQueue.submit(job);
+		}
+	}
+
+	/**
+	 * Submits a job to the shared queue, to be run by whichever instance claims it. Its status is answered from the
+	 * queue by every instance.
+	 * 
+	 * @throws TaskRejectedException
+	 *             if the queue already holds its maximum of jobs waiting to be claimed
+	 */
+	private void queueJob(String id, RasterCropRequest cropRequest, RasterBatchCropRequest batchRequest) {
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		QueuedJob job = new QueuedJob();
+		job.setServiceId(id);
+		job.setCropRequest(cropRequest);
+		job.setBatchRequest(batchRequest);
+		job.setSnapshot(serviceResource);
+		jobQueue.submit(job);
+	}
+
+	/**
+	 * Asynchronously processing a batch of crops of one raster image
+	 * 
+	 * @throws InvalidInputException
+	 *             if the batch has no bounding boxes or more than the configured maximum
+	 * @throws TaskRejectedException
+	 *             if the crop queue, or the shared job queue, is full
+	 */
+	public String processBatchAsync(RasterBatchCropRequest payload)
+			throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
+		if (payload.getSource() == null || payload.getBoundsList() == null || payload.getBoundsList().isEmpty()) {
+			throw new InvalidInputException("A batch request requires a source and at least one bounding box.");
+		}
+		if (payload.getBoundsList().size() > BATCH_MAX_SIZE) {
+			throw new InvalidInputException(String.format("A batch request can have at most %d bounding boxes.", BATCH_MAX_SIZE));
+		}
+
+		String id = uuidFactory.getUUID();
+		if (jobQueue != null) {
+			queueJob(id, null, payload);
+			return id;
+		}
+
+		ServiceResource serviceResource = new ServiceResource();
+		serviceResource.setServiceResourceId(id);
+		serviceResource.setStatus(new StatusUpdate(StatusUpdate.STATUS_PENDING));
+		dataAccessor.addServiceResource(serviceResource);
+
+		ListenableFuture<String> future;
+		try {
+			future = rasterGenerator.runBatch(payload, id);
+		} catch (TaskRejectedException e) {
+			dataAccessor.removeJob(id);
+			throw e;
+		}
+		trackJob(id, future);
+
+		return id;
+	}
+
+	/**
+	 * Tracks the job so that it can be cancelled, until it completes
+	 */
+	private void trackJob(String id, ListenableFuture<String> future) {
+		threadMap.put(id, future);
+		future.addCallback(result -> threadMap.remove(id, future), failure -> threadMap.remove(id, future));
+	}
+
 	/**
 	 * Returns job status
 	 */
 	public StatusUpdate getJobStatus(String serviceId) throws ResourceAccessException, InterruptedException {
-		ServiceResource serviceResource = dataAccessor.getServiceResourceById(serviceId);
+		ServiceResource serviceResource = findJob(serviceId);
 		if(serviceResource == null){
 			throw new ResourceAccessException(String.format("Service Job %s not found.", serviceId));
 		}
@@ -89,11 +337,161 @@ public class ServiceThreadManager {
 		return serviceResource.getStatus();
 	}
 
+	/**
+	 * Returns the current snapshot of a job
+	 */
+	public ServiceResource getJob(String serviceId) throws ResourceAccessException, InterruptedException {
+		ServiceResource serviceResource = findJob(serviceId);
+		if (serviceResource == null) {
+			throw new ResourceAccessException(String.format("Service Job %s not found.", serviceId));
+		}
+
+		return serviceResource;
+	}
+
+	/**
+	 * Returns the progress of a job. Jobs that have not started yet, or that were answered from the result cache, have
+	 * no tracked progress and report the stage their status implies.
+	 */
+	public CropProgress getJobProgress(String serviceId) throws ResourceAccessException, InterruptedException {
+		ServiceResource serviceResource = getJob(serviceId);
+		if (serviceResource.getProgress() != null) {
+			return serviceResource.getProgress();
+		}
+		return DataAccessor.isCompleted(serviceResource.getStatus()) ? new CropProgress(CropProgress.STAGE_COMPLETE, 100)
+				: new CropProgress(CropProgress.STAGE_QUEUED, 0);
+	}
+
+	/**
+	 * Watches a job for changes. The listener is called with every later snapshot of the job, and with null once it is
+	 * removed, until it is passed to {@link #unwatchJob(String, DataAccessor.JobListener)}.
+	 * 
+	 * A job that only the shared queue holds is watched by reading the queue on jobqueue.watch.interval.ms, so the
+	 * listener sees the snapshots published by the heartbeats of the instance running it.
+	 * 
+	 * @return ServiceResource the current snapshot of the job
+	 */
+	public ServiceResource watchJob(String serviceId, DataAccessor.JobListener listener) throws ResourceAccessException, InterruptedException {
+		dataAccessor.addListener(serviceId, listener);
+		ServiceResource serviceResource = dataAccessor.getServiceResourceById(serviceId);
+		if (serviceResource != null) {
+			return serviceResource;
+		}
+		dataAccessor.removeListener(serviceId, listener);
+
+		if (jobQueue != null) {
+			QueueWatch watch = queueWatches.computeIfAbsent(serviceId, id -> new QueueWatch());
+			watch.listeners.add(listener);
+			serviceResource = jobQueue.getJob(serviceId);
+			if (serviceResource != null) {
+				if (watch.last == null) {
+					watch.last = serviceResource;
+				}
+				return serviceResource;
+			}
+			unwatchJob(serviceId, listener);
+		}
+		throw new ResourceAccessException(String.format("Service Job %s not found.", serviceId));
+	}
+
+	/**
+	 * Stops watching a job
+	 */
+	public void unwatchJob(String serviceId, DataAccessor.JobListener listener) {
+		dataAccessor.removeListener(serviceId, listener);
+		queueWatches.computeIfPresent(serviceId, (id, watch) -> {
+			watch.listeners.remove(listener);
+			return watch.listeners.isEmpty() ? null : watch;
+		});
+	}
+
+	/**
+	 * Reads the jobs watched through the shared queue, and calls their listeners with each snapshot that differs from
+	 * the last one read, or with null once the job is removed from the queue
+	 */
+	@Scheduled(fixedDelayString = "${jobqueue.watch.interval.ms:1000}")
+	public void pollQueueWatches() {
+		if (jobQueue == null) {
+			return;
+		}
+		for (Map.Entry<String, QueueWatch> entry : queueWatches.entrySet()) {
+			String serviceId = entry.getKey();
+			QueueWatch watch = entry.getValue();
+			ServiceResource serviceResource;
+			try {
+				serviceResource = jobQueue.getJob(serviceId);
+			} catch (RuntimeException e) {
+				LOGGER.warn(String.format("Unable to read watched job %s from the job queue.", serviceId), e);
+				continue;
+			}
+			if (serviceResource == null) {
+				queueWatches.remove(serviceId, watch);
+			} else if (isSameSnapshot(watch.last, serviceResource)) {
+				continue;
+			} else {
+				watch.last = serviceResource;
+			}
+			for (DataAccessor.JobListener listener : watch.listeners) {
+				try {
+					listener.jobChanged(serviceResource);
+				} catch (RuntimeException e) {
+					LOGGER.warn(String.format("Listener of job %s failed.", serviceId), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if two snapshots of a job have the same version and status
+	 */
+	private static boolean isSameSnapshot(ServiceResource first, ServiceResource second) {
+		if (first == null || second == null) {
+			return first == second;
+		}
+		String firstStatus = first.getStatus() != null ? first.getStatus().getStatus() : null;
+		String secondStatus = second.getStatus() != null ? second.getStatus().getStatus() : null;
+		return Objects.equals(first.getVersion(), second.getVersion()) && Objects.equals(firstStatus, secondStatus);
+	}
+
+	/**
+	 * Returns the status and result of many jobs from one consistent snapshot of the job store. With a shared queue,
+	 * the jobs the local store does not hold are then read from the queue. Their versions come from the instance
+	 * running them, which the cursor of this instance does not cover, so they are returned whatever the cursor.
+	 * 
+	 * @throws InvalidInputException
+	 *             if the query has no Ids or more than the configured maximum
+	 */
+	public JobStatusResponse getJobs(JobStatusRequest query) throws InvalidInputException {
+		if (query.getServiceIds() == null || query.getServiceIds().isEmpty()) {
+			throw new InvalidInputException("A status query requires at least one service Id.");
+		}
+		if (query.getServiceIds().size() > STATUS_BATCH_MAX_SIZE) {
+			throw new InvalidInputException(String.format("A status query can have at most %d service Ids.", STATUS_BATCH_MAX_SIZE));
+		}
+		long changedSince = query.getChangedSince() != null ? query.getChangedSince() : 0;
+		JobStatusResponse response = dataAccessor.getSnapshot(new LinkedHashSet<String>(query.getServiceIds()), changedSince);
+		if (jobQueue == null || response.getNotFound().isEmpty()) {
+			return response;
+		}
+
+		List<String> notFound = new ArrayList<String>();
+		for (String serviceId : response.getNotFound()) {
+			ServiceResource serviceResource = jobQueue.getJob(serviceId);
+			if (serviceResource == null) {
+				notFound.add(serviceId);
+			} else {
+				response.getJobs().add(serviceResource);
+			}
+		}
+		response.setNotFound(notFound);
+		return response;
+	}
+
 	/**
 	 * Returns job result
 	 */
 	public DataResource getServiceResult(String serviceId) throws ResourceAccessException, InterruptedException {
-		ServiceResource serviceResource = dataAccessor.getServiceResourceById(serviceId);
+		ServiceResource serviceResource = findJob(serviceId);
 		if (serviceResource == null) {
 			throw new ResourceAccessException(String.format("Service Job %s not found.", serviceId));
 		}
@@ -101,12 +499,68 @@ public class ServiceThreadManager {
 		return serviceResource.getResult();
 	}
 	
+	/**
+	 * Returns the per-crop results of a batch job
+	 */
+	public List<CropResult> getBatchResults(String serviceId) throws ResourceAccessException, InterruptedException {
+		ServiceResource serviceResource = findJob(serviceId);
+		if (serviceResource == null) {
+			throw new ResourceAccessException(String.format("Service Job %s not found.", serviceId));
+		}
+
+		return serviceResource.getResults();
+	}
+
 	/**
 	 * Delete running job and stop the thread if possible
 	 * 
 	 * @throws Exception
 	 */
 	public void deleteService(String serviceId) {
+		// A job waiting on a shared crop only stops the crop if it was the last one waiting
+		String sharedJobId = resultCache.removeWaiter(serviceId);
+		if (sharedJobId != null) {
+			cancelJob(sharedJobId);
+			dataAccessor.removeJob(sharedJobId);
+		}
+		cancelJob(serviceId);
 		dataAccessor.removeJob(serviceId);
+		if (jobQueue != null) {
+			// Jobs claimed from the queue run here under the worker, and elsewhere stop once their lease cannot be renewed
+			if (jobQueueWorker.cancel(serviceId)) {
+				LOGGER.info(String.format("Cancelled running job %s claimed from the job queue", serviceId));
+			}
+			jobQueue.cancel(serviceId);
+		}
+	}
+
+	/**
+	 * Stops the thread of a running job, if it runs here
+	 */
+	private void cancelJob(String serviceId) {
+		Future<?> future = threadMap.remove(serviceId);
+		if (future != null && future.cancel(true)) {
+			LOGGER.info(String.format("Cancelled running job %s", serviceId));
+		}
+	}
+
+	/**
+	 * Returns the latest snapshot of a job: from the local job store if the job runs or ran here, otherwise from the
+	 * shared queue, whose snapshot of a running job is as recent as its last heartbeat. Null if neither holds the job.
+	 */
+	private ServiceResource findJob(String serviceId) throws ResourceAccessException, InterruptedException {
+		ServiceResource serviceResource = dataAccessor.getServiceResourceById(serviceId);
+		if (serviceResource == null && jobQueue != null) {
+			serviceResource = jobQueue.getJob(serviceId);
+		}
+		return serviceResource;
+	}
+
+	/**
+	 * Listeners of a job watched through the shared queue, and the last snapshot read for them
+	 */
+	private static class QueueWatch {
+		private final List<DataAccessor.JobListener> listeners = new CopyOnWriteArrayList<DataAccessor.JobListener>();
+		private volatile ServiceResource last;
 	}
 }
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.media.jai.TileCache;
+
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An opened source raster: the coverage reader together with the local file or S3 stream it reads from, and the tile
+ * cache of the job if it has one. Closing it disposes the reader, releases the underlying file or stream and flushes
+ * the tile cache.
+ */
+public class SourceRaster implements Closeable {
+	private final GridCoverage2DReader reader;
+	private final ImageInputStream sourceStream;
+	private final File sourceFile;
+	private final S3FileUtility fileUtility;
+	private final TileCache tileCache;
+	private final TileCacheManager tileCacheManager;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(SourceRaster.class);
+
+	/**
+	 * @param reader
+	 *            Reader of the source raster
+	 * @param sourceStream
+	 *            Stream the reader reads from, or null if it reads from a file
+	 * @param sourceFile
+	 *            Local file the reader reads from, or null if it reads from a stream
+	 * @param fileUtility
+	 *            Utility the local file was obtained from
+	 * @param tileCache
+	 *            Tile cache of the job the reader decodes into, or null if it uses the global cache
+	 * @param tileCacheManager
+	 *            Manager the tile cache was obtained from
+	 */
+	public SourceRaster(GridCoverage2DReader reader, ImageInputStream sourceStream, File sourceFile, S3FileUtility fileUtility,
+			TileCache tileCache, TileCacheManager tileCacheManager) {
+		this.reader = reader;
+		this.sourceStream = sourceStream;
+		this.sourceFile = sourceFile;
+		this.fileUtility = fileUtility;
+		this.tileCache = tileCache;
+		this.tileCacheManager = tileCacheManager;
+	}
+
+	public GridCoverage2DReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * Returns the bytes of the source read so far: the ranges fetched from S3 when reading from a ranged stream, or the
+	 * size of the local file
+	 */
+	public long getBytesRead() {
+		if (sourceStream instanceof S3RangeImageInputStream) {
+			return ((S3RangeImageInputStream) sourceStream).getBytesFetched();
+		}
+		return sourceFile != null ? sourceFile.length() : 0;
+	}
+
+	@Override
+	public void close() {
+		try {
+			reader.dispose();
+		} catch (Exception e) {
+			LOGGER.error("Error disposing the Grid Coverage Reader.", e);
+		}
+		if (sourceStream != null) {
+			try {
+				sourceStream.close();
+			} catch (IOException e) {
+				LOGGER.error("Error closing the source raster stream.", e);
+			}
+		}
+		if (sourceFile != null) {
+			fileUtility.releaseFile(sourceFile);
+		}
+		if (tileCache != null) {
+			tileCacheManager.releaseJobCache(tileCache);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Local disk cache of source rasters shared by all jobs. Entries are keyed by bucket, key and ETag, so a changed S3
+ * object is never served from a stale copy. The cache is bounded by a byte budget and evicts the least recently used
+ * entries that are not in use by a running job. Concurrent requests for the same object share one download.
+ */
+@Component
+public class SourceRasterCache {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${raster.cache.enabled:false}")
+	private boolean CACHE_ENABLED;
+	@Value("${raster.cache.directory:raster-cache}")
+	private String CACHE_DIRECTORY;
+	@Value("${raster.cache.max.bytes:10737418240}")
+	private long CACHE_MAX_BYTES;
+
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final Logger LOGGER = LoggerFactory.getLogger(SourceRasterCache.class);
+
+	/**
+	 * Cache entries in least recently used order. Guarded by this.
+	 */
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private final ConcurrentMap<String, FutureTask<File>> inFlight = new ConcurrentHashMap<String, FutureTask<File>>();
+	private final AtomicLong cachedBytes = new AtomicLong();
+
+	private Counter hits;
+	private Counter misses;
+	private Counter evictions;
+
+	/**
+	 * Downloads a source raster into the given file
+	 */
+	public interface SourceLoader {
+		void load(File target) throws Exception;
+	}
+
+	/**
+	 * Initializing metrics and indexing the files left in the cache directory by a previous run
+	 */
+	@PostConstruct
+	public void initialize() {
+		hits = meterRegistry.counter("raster.cache.hits");
+		misses = meterRegistry.counter("raster.cache.misses");
+		evictions = meterRegistry.counter("raster.cache.evictions");
+		meterRegistry.gauge("raster.cache.bytes", cachedBytes);
+		meterRegistry.gauge("raster.cache.entries", entries, Map::size);
+
+		if (!CACHE_ENABLED) {
+			return;
+		}
+		File directory = new File(CACHE_DIRECTORY);
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		synchronized (this) {
+			for (File file : files) {
+				if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+					deleteFile(file);
+				} else {
+					entries.put(file.getName(), new CacheEntry(file));
+					cachedBytes.addAndGet(file.length());
+				}
+			}
+			evict();
+		}
+	}
+
+	public boolean isEnabled() {
+		return CACHE_ENABLED;
+	}
+
+	/**
+	 * Returns the cached copy of the source raster, downloading it first if it is not cached. The returned file is
+	 * pinned and will not be evicted until it is passed to {@link #release(File)}.
+	 * 
+	 * @param bucketName
+	 *            Bucket of the source raster
+	 * @param key
+	 *            Key of the source raster
+	 * @param eTag
+	 *            Current ETag of the source raster
+	 * @param loader
+	 *            Downloads the source raster on a miss
+	 * @return File cached copy of the source raster
+	 */
+	public File acquire(String bucketName, String key, String eTag, SourceLoader loader) throws IOException {
+		String cacheKey = getCacheKey(bucketName, key, eTag);
+		while (true) {
+			synchronized (this) {
+				CacheEntry entry = entries.get(cacheKey);
+				if (entry != null) {
+					entry.pins++;
+					entry.file.setLastModified(System.currentTimeMillis());
+					hits.increment();
+					return entry.file;
+				}
+			}
+
+			FutureTask<File> download = new FutureTask<File>(() -> download(cacheKey, loader));
+			FutureTask<File> existing = inFlight.putIfAbsent(cacheKey, download);
+			if (existing == null) {
+				misses.increment();
+				try {
+					download.run();
+					return getDownload(download);
+				} finally {
+					inFlight.remove(cacheKey, download);
+				}
+			}
+
+			// Another job is downloading the same object. Wait for it, then pin the entry it created.
+			getDownload(existing);
+		}
+	}
+
+	/**
+	 * Unpins a file returned by {@link #acquire(String, String, String, SourceLoader)}, making it eligible for eviction
+	 * 
+	 * @param file
+	 *            The cached file
+	 */
+	public synchronized void release(File file) {
+		CacheEntry entry = entries.get(file.getName());
+		if (entry != null && entry.pins > 0) {
+			entry.pins--;
+		}
+		evict();
+	}
+
+	/**
+	 * Downloads the object into the cache directory and adds it to the cache, pinned once for the downloading job
+	 */
+	private File download(String cacheKey, SourceLoader loader) throws Exception {
+		synchronized (this) {
+			// A download that completed just before this one was registered may already have added the entry
+			CacheEntry entry = entries.get(cacheKey);
+			if (entry != null) {
+				entry.pins++;
+				return entry.file;
+			}
+		}
+
+		File file = new File(CACHE_DIRECTORY, cacheKey);
+		File partial = new File(CACHE_DIRECTORY, cacheKey + PARTIAL_SUFFIX);
+		try {
+			loader.load(partial);
+			Files.move(partial.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			deleteFile(partial);
+		}
+
+		synchronized (this) {
+			CacheEntry entry = new CacheEntry(file);
+			entry.pins = 1;
+			entries.put(cacheKey, entry);
+			cachedBytes.addAndGet(entry.size);
+			evict();
+		}
+		LOGGER.info(String.format("Cached source raster %s, %d bytes in cache.", file.getName(), cachedBytes.get()));
+		return file;
+	}
+
+	private File getDownload(FutureTask<File> download) throws IOException {
+		try {
+			return download.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for source raster download.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error downloading source raster.", e.getCause());
+		}
+	}
+
+	/**
+	 * Evicts least recently used entries that are not pinned until the cache is within its byte budget. Caller must
+	 * hold the lock on this.
+	 */
+	private void evict() {
+		Iterator<CacheEntry> iterator = entries.values().iterator();
+		while (cachedBytes.get() > CACHE_MAX_BYTES && iterator.hasNext()) {
+			CacheEntry entry = iterator.next();
+			if (entry.pins == 0) {
+				iterator.remove();
+				deleteFile(entry.file);
+				cachedBytes.addAndGet(-entry.size);
+				evictions.increment();
+			}
+		}
+	}
+
+	private void deleteFile(File file) {
+		if (file.exists() && !file.delete()) {
+			LOGGER.warn(String.format("Unable to delete cached file %s", file.getAbsolutePath()));
+		}
+	}
+
+	private static String getCacheKey(String bucketName, String key, String eTag) {
+		return DigestUtils.sha256Hex(String.format("%s/%s@%s", bucketName, key, eTag));
+	}
+
+	private static class CacheEntry {
+		private final File file;
+		private final long size;
+		private int pins = 0;
+
+		CacheEntry(File file) {
+			this.file = file;
+			this.size = file.length();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.components;
+
+import javax.annotation.PostConstruct;
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+import javax.media.jai.TileScheduler;
+
+import org.geotools.factory.Hints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.sun.media.jai.util.SunTileCache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Configures the JAI tile cache and tile scheduler used to decode and crop rasters, and exposes their use as metrics.
+ * 
+ * By default every job shares the global tile cache, bounded by a memory capacity, and JAI evicts down to the memory
+ * threshold once it is full. When per-job caches are enabled, each job instead decodes into a small cache of its own
+ * that is flushed when the job closes its source, so one large job cannot evict the tiles of every other job.
+ */
+@Component
+public class TileCacheManager {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${jai.tile.cache.memory.capacity:0}")
+	private long CACHE_MEMORY_CAPACITY;
+	@Value("${jai.tile.cache.heap.fraction:0.25}")
+	private double CACHE_HEAP_FRACTION;
+	@Value("${jai.tile.cache.memory.threshold:0.75}")
+	private float CACHE_MEMORY_THRESHOLD;
+	@Value("${jai.tile.cache.per.job:false}")
+	private boolean CACHE_PER_JOB;
+	@Value("${jai.tile.cache.per.job.capacity:67108864}")
+	private long CACHE_PER_JOB_CAPACITY;
+	@Value("${jai.tile.scheduler.parallelism:0}")
+	private int SCHEDULER_PARALLELISM;
+	@Value("${jai.tile.scheduler.prefetch.parallelism:1}")
+	private int SCHEDULER_PREFETCH_PARALLELISM;
+	@Value("${jai.tile.scheduler.priority:5}")
+	private int SCHEDULER_PRIORITY;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TileCacheManager.class);
+
+	private Counter jobCacheHits;
+	private Counter jobCacheMisses;
+
+	/**
+	 * Applies the configuration to the default JAI instance and registers the metrics of the global cache
+	 */
+	@PostConstruct
+	public void initialize() {
+		JAI jai = JAI.getDefaultInstance();
+		TileCache tileCache = jai.getTileCache();
+		long capacity = CACHE_MEMORY_CAPACITY > 0 ? CACHE_MEMORY_CAPACITY : (long) (Runtime.getRuntime().maxMemory() * CACHE_HEAP_FRACTION);
+		tileCache.setMemoryCapacity(capacity);
+		tileCache.setMemoryThreshold(CACHE_MEMORY_THRESHOLD);
+
+		TileScheduler tileScheduler = jai.getTileScheduler();
+		int parallelism = SCHEDULER_PARALLELISM > 0 ? SCHEDULER_PARALLELISM : Runtime.getRuntime().availableProcessors();
+		tileScheduler.setParallelism(parallelism);
+		tileScheduler.setPrefetchParallelism(SCHEDULER_PREFETCH_PARALLELISM);
+		tileScheduler.setPriority(SCHEDULER_PRIORITY);
+		tileScheduler.setPrefetchPriority(SCHEDULER_PRIORITY);
+
+		meterRegistry.gauge("jai.tile.cache.memory.capacity", tileCache, TileCache::getMemoryCapacity);
+		if (tileCache instanceof SunTileCache) {
+			SunTileCache sunTileCache = (SunTileCache) tileCache;
+			meterRegistry.gauge("jai.tile.cache.memory.used", sunTileCache, SunTileCache::getCacheMemoryUsed);
+			meterRegistry.gauge("jai.tile.cache.tiles", sunTileCache, SunTileCache::getCacheTileCount);
+			FunctionCounter.builder("jai.tile.cache.hits", sunTileCache, SunTileCache::getCacheHitCount).tags("cache", "global")
+					.register(meterRegistry);
+			FunctionCounter.builder("jai.tile.cache.misses", sunTileCache, SunTileCache::getCacheMissCount).tags("cache", "global")
+					.register(meterRegistry);
+		}
+		jobCacheHits = meterRegistry.counter("jai.tile.cache.hits", "cache", "job");
+		jobCacheMisses = meterRegistry.counter("jai.tile.cache.misses", "cache", "job");
+
+		LOGGER.info(String.format("JAI tile cache of %d bytes with threshold %.2f%s, tile scheduler parallelism %d.", capacity,
+				CACHE_MEMORY_THRESHOLD, CACHE_PER_JOB ? ", per-job caches enabled" : "", parallelism));
+	}
+
+	/**
+	 * Creates the tile cache of a job, when per-job caches are enabled
+	 * 
+	 * @return TileCache cache to decode the job's source into, to be passed to {@link #releaseJobCache(TileCache)}, or
+	 *         null to use the global cache
+	 */
+	public TileCache createJobCache() {
+		return CACHE_PER_JOB ? JAI.createTileCache(CACHE_PER_JOB_CAPACITY) : null;
+	}
+
+	/**
+	 * Returns the hints under which a job's source should be read, so that its tiles go to the given cache
+	 * 
+	 * @param jobCache
+	 *            Cache returned by {@link #createJobCache()}, may be null
+	 * @return Hints for the reader, or null to use the defaults
+	 */
+	public Hints getReaderHints(TileCache jobCache) {
+		return jobCache == null ? null : new Hints(JAI.KEY_TILE_CACHE, jobCache);
+	}
+
+	/**
+	 * Records the hits and misses of a job's cache and flushes its tiles
+	 * 
+	 * @param jobCache
+	 *            Cache returned by {@link #createJobCache()}, may be null
+	 */
+	public void releaseJobCache(TileCache jobCache) {
+		if (jobCache == null) {
+			return;
+		}
+		if (jobCache instanceof SunTileCache) {
+			jobCacheHits.increment(((SunTileCache) jobCache).getCacheHitCount());
+			jobCacheMisses.increment(((SunTileCache) jobCache).getCacheMissCount());
+		}
+		jobCache.flush();
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.config;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Executors used by the asynchronous crop path.
+ * 
+ * The crop executor has a fixed number of threads and a bounded queue. Once the queue is full, submissions are rejected
+ * with a TaskRejectedException instead of starting a new thread, so a burst of requests cannot turn into a burst of
+ * concurrent raster decodes.
+ * 
+ * The crop worker executor runs the individual crops of a batch job in parallel, and is sized to the available cores.
+ * Its queue is bounded; a batch whose crop is rejected runs that crop on its own thread.
+ * 
+ * The upload executor starts multipart S3 uploads and sends their parts, so the encoding thread makes no S3 calls and
+ * only waits when an upload has its maximum of parts in flight. Parts after the first are sent while the encoder is
+ * still writing; the first part, which the encoder patches, is sent when encoding completes. Its queue is bounded, and
+ * an upload whose part is rejected fails.
+ * 
+ * The pipeline I/O and CPU executors run the stages of a crop job: downloads and uploads on the I/O executor, decode,
+ * crop and encode on the CPU executor. A job thread hands each stage to its executor and waits for it, so while one
+ * job transfers, another can decode. Their queues are bounded, and a job handing a stage to a full queue waits for
+ * room rather than failing.
+ * 
+ * The crop fork join pool computes the tiles of a single large crop in parallel.
+ * 
+ * The status event executor writes job status changes to Server-Sent Event streams, so a slow client never holds up
+ * the job thread that changed the status.
+ */
+@Configuration
+public class ExecutorConfiguration {
+	public static final String CROP_EXECUTOR = "cropExecutor";
+	public static final String CROP_WORKER_EXECUTOR = "cropWorkerExecutor";
+	public static final String UPLOAD_EXECUTOR = "uploadExecutor";
+	public static final String CROP_IO_EXECUTOR = "cropIoExecutor";
+	public static final String CROP_CPU_EXECUTOR = "cropCpuExecutor";
+	public static final String CROP_FORK_JOIN_POOL = "cropForkJoinPool";
+	public static final String STATUS_EVENT_EXECUTOR = "statusEventExecutor";
+
+	@Value("${crop.executor.core.size:8}")
+	private int CROP_CORE_POOL_SIZE;
+	@Value("${crop.executor.max.size:8}")
+	private int CROP_MAX_POOL_SIZE;
+	@Value("${crop.executor.queue.capacity:50}")
+	private int CROP_QUEUE_CAPACITY;
+	@Value("${crop.worker.size:0}")
+	private int CROP_WORKER_POOL_SIZE;
+	@Value("${crop.worker.queue.capacity:200}")
+	private int CROP_WORKER_QUEUE_CAPACITY;
+	@Value("${s3.upload.threads:8}")
+	private int UPLOAD_POOL_SIZE;
+	@Value("${s3.upload.queue.capacity:256}")
+	private int UPLOAD_QUEUE_CAPACITY;
+	@Value("${crop.pipeline.io.threads:8}")
+	private int PIPELINE_IO_POOL_SIZE;
+	@Value("${crop.pipeline.io.queue.capacity:16}")
+	private int PIPELINE_IO_QUEUE_CAPACITY;
+	@Value("${crop.pipeline.cpu.threads:0}")
+	private int PIPELINE_CPU_POOL_SIZE;
+	@Value("${crop.pipeline.cpu.queue.capacity:16}")
+	private int PIPELINE_CPU_QUEUE_CAPACITY;
+	@Value("${crop.parallel.threads:0}")
+	private int PARALLEL_POOL_SIZE;
+	@Value("${status.events.threads:2}")
+	private int STATUS_EVENT_POOL_SIZE;
+	@Value("${status.events.queue.capacity:1000}")
+	private int STATUS_EVENT_QUEUE_CAPACITY;
+
+	/**
+	 * Blocks the submitting thread until the queue has room
+	 */
+	private static final RejectedExecutionHandler WAIT_FOR_ROOM = (task, executor) -> {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Executor has been shut down.");
+		}
+		try {
+			executor.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for room in the queue.", e);
+		}
+	};
+
+	@Bean(name = CROP_EXECUTOR)
+	public ThreadPoolTaskExecutor cropExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(CROP_CORE_POOL_SIZE);
+		executor.setMaxPoolSize(Math.max(CROP_CORE_POOL_SIZE, CROP_MAX_POOL_SIZE));
+		executor.setQueueCapacity(CROP_QUEUE_CAPACITY);
+		executor.setThreadNamePrefix("crop-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		return executor;
+	}
+
+	@Bean(name = CROP_WORKER_EXECUTOR)
+	public ThreadPoolTaskExecutor cropWorkerExecutor() {
+		int poolSize = CROP_WORKER_POOL_SIZE > 0 ? CROP_WORKER_POOL_SIZE : Runtime.getRuntime().availableProcessors();
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(poolSize);
+		executor.setMaxPoolSize(poolSize);
+		executor.setQueueCapacity(CROP_WORKER_QUEUE_CAPACITY);
+		executor.setThreadNamePrefix("crop-worker-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		return executor;
+	}
+
+	@Bean(name = UPLOAD_EXECUTOR)
+	public ThreadPoolTaskExecutor uploadExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(UPLOAD_POOL_SIZE);
+		executor.setMaxPoolSize(UPLOAD_POOL_SIZE);
+		executor.setQueueCapacity(UPLOAD_QUEUE_CAPACITY);
+		executor.setThreadNamePrefix("s3-upload-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		return executor;
+	}
+
+	@Bean(name = CROP_IO_EXECUTOR)
+	public ThreadPoolTaskExecutor cropIoExecutor() {
+		return createPipelineExecutor(PIPELINE_IO_POOL_SIZE, PIPELINE_IO_QUEUE_CAPACITY, "crop-io-");
+	}
+
+	@Bean(name = CROP_CPU_EXECUTOR)
+	public ThreadPoolTaskExecutor cropCpuExecutor() {
+		int poolSize = PIPELINE_CPU_POOL_SIZE > 0 ? PIPELINE_CPU_POOL_SIZE : Runtime.getRuntime().availableProcessors();
+		return createPipelineExecutor(poolSize, PIPELINE_CPU_QUEUE_CAPACITY, "crop-cpu-");
+	}
+
+	@Bean(name = CROP_FORK_JOIN_POOL, destroyMethod = "shutdown")
+	public ForkJoinPool cropForkJoinPool() {
+		int parallelism = PARALLEL_POOL_SIZE > 0 ? PARALLEL_POOL_SIZE : Runtime.getRuntime().availableProcessors();
+		return new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("crop-tile-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+	}
+
+	@Bean(name = STATUS_EVENT_EXECUTOR)
+	public ThreadPoolTaskExecutor statusEventExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(STATUS_EVENT_POOL_SIZE);
+		executor.setMaxPoolSize(STATUS_EVENT_POOL_SIZE);
+		executor.setQueueCapacity(STATUS_EVENT_QUEUE_CAPACITY);
+		executor.setThreadNamePrefix("status-events-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		return executor;
+	}
+
+	private ThreadPoolTaskExecutor createPipelineExecutor(int poolSize, int queueCapacity, String threadNamePrefix) {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(poolSize);
+		executor.setMaxPoolSize(poolSize);
+		executor.setQueueCapacity(queueCapacity);
+		executor.setThreadNamePrefix(threadNamePrefix);
+		executor.setRejectedExecutionHandler(WAIT_FOR_ROOM);
+		return executor;
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.config;
+
+import java.io.File;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import generator.components.FileJobQueue;
+import generator.components.JobQueue;
+
+/**
+ * Selects the job queue shared by the instances of the service.
+ * 
+ * Without a queue, each instance runs the jobs it receives and answers only for those. With the file queue, jobs are
+ * queued in a directory shared by the instances, and any instance can run or answer for any job.
+ */
+@Configuration
+public class JobQueueConfiguration {
+	@Value("${jobqueue.directory:jobqueue}")
+	private String QUEUE_DIRECTORY;
+	@Value("${jobqueue.max.attempts:3}")
+	private int MAX_ATTEMPTS;
+	@Value("${jobqueue.max.queued:1000}")
+	private int MAX_QUEUED;
+
+	@Bean
+	@ConditionalOnProperty(name = "jobqueue.type", havingValue = "file")
+	public JobQueue jobQueue() {
+		return new FileJobQueue(new File(QUEUE_DIRECTORY), MAX_ATTEMPTS, MAX_QUEUED);
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.config;
+
+import java.io.File;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import generator.components.JobStore;
+import generator.components.LogJobStore;
+import generator.components.MemoryJobStore;
+
+/**
+ * Selects the store of job snapshots behind the DataAccessor.
+ * 
+ * The memory store keeps snapshots on the heap and loses them on restart. The log store appends them to memory-mapped
+ * files in the configured directory, so they are held off the heap and recovered when the service restarts.
+ */
+@Configuration
+public class JobStoreConfiguration {
+	public static final String TYPE_MEMORY = "memory";
+	public static final String TYPE_LOG = "log";
+
+	@Value("${jobstore.type:memory}")
+	private String STORE_TYPE;
+	@Value("${jobstore.log.directory:jobstore}")
+	private String LOG_DIRECTORY;
+	@Value("${jobstore.log.segment.bytes:67108864}")
+	private int LOG_SEGMENT_BYTES;
+	@Value("${jobstore.log.compaction.ratio:2}")
+	private double LOG_COMPACTION_RATIO;
+	@Value("${jobstore.log.compaction.min.bytes:67108864}")
+	private long LOG_COMPACTION_MIN_BYTES;
+
+	@Bean(destroyMethod = "close")
+	public JobStore jobStore() {
+		if (TYPE_LOG.equals(STORE_TYPE)) {
+			return new LogJobStore(new File(LOG_DIRECTORY), LOG_SEGMENT_BYTES, LOG_COMPACTION_RATIO, LOG_COMPACTION_MIN_BYTES);
+		}
+		if (!TYPE_MEMORY.equals(STORE_TYPE)) {
+			throw new IllegalArgumentException(String.format("Unknown job store type %s", STORE_TYPE));
+		}
+		return new MemoryJobStore();
+	}
+}
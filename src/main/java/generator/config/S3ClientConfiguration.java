@@ -0,0 +1,170 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The S3 client shared by every download, ranged read and upload.
+ * 
+ * One client means one connection pool, so connections and TLS sessions are reused across jobs instead of being set up
+ * for every call. The pool size, timeouts, keep-alive and retry policy are configurable, and the endpoint can be
+ * overridden to point at an S3-compatible store such as a local stand-in for testing.
+ * 
+ * The pool is instrumented with the number of requests in flight against the maximum number of connections, request
+ * durations by operation and outcome, and the number of retries.
+ */
+@Configuration
+public class S3ClientConfiguration {
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${s3.key.access:}")
+	private String AMAZONS3_ACCESS_KEY;
+	@Value("${s3.key.private:}")
+	private String AMAZONS3_PRIVATE_KEY;
+	@Value("${s3.endpoint:}")
+	private String S3_ENDPOINT;
+	@Value("${s3.path.style.access:false}")
+	private boolean S3_PATH_STYLE_ACCESS;
+	@Value("${s3.client.max.connections:64}")
+	private int MAX_CONNECTIONS;
+	@Value("${s3.client.connection.timeout.ms:10000}")
+	private int CONNECTION_TIMEOUT;
+	@Value("${s3.client.socket.timeout.ms:50000}")
+	private int SOCKET_TIMEOUT;
+	@Value("${s3.client.connection.ttl.ms:60000}")
+	private long CONNECTION_TTL;
+	@Value("${s3.client.connection.max.idle.ms:60000}")
+	private long CONNECTION_MAX_IDLE;
+	@Value("${s3.client.tcp.keep.alive:true}")
+	private boolean TCP_KEEP_ALIVE;
+	@Value("${s3.client.max.retries:3}")
+	private int MAX_RETRIES;
+
+	/**
+	 * Creates the client using the configured keys, or the default credentials chain if none are configured
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public AmazonS3 s3Client() {
+		Counter retries = meterRegistry.counter("s3.client.retries");
+		RetryPolicy.RetryCondition retryCondition = (originalRequest, exception, retriesAttempted) -> {
+			boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted);
+			if (retry) {
+				retries.increment();
+			}
+			return retry;
+		};
+
+		ClientConfiguration clientConfiguration = new ClientConfiguration();
+		clientConfiguration.setMaxConnections(MAX_CONNECTIONS);
+		clientConfiguration.setConnectionTimeout(CONNECTION_TIMEOUT);
+		clientConfiguration.setSocketTimeout(SOCKET_TIMEOUT);
+		clientConfiguration.setConnectionTTL(CONNECTION_TTL);
+		clientConfiguration.setConnectionMaxIdleMillis(CONNECTION_MAX_IDLE);
+		clientConfiguration.setUseTcpKeepAlive(TCP_KEEP_ALIVE);
+		clientConfiguration.setRetryPolicy(
+				new RetryPolicy(retryCondition, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, MAX_RETRIES, false));
+
+		AmazonS3Client client;
+		if (AMAZONS3_ACCESS_KEY.isEmpty() || AMAZONS3_PRIVATE_KEY.isEmpty()) {
+			client = new AmazonS3Client(new DefaultAWSCredentialsProviderChain(), clientConfiguration);
+		} else {
+			client = new AmazonS3Client(new AWSStaticCredentialsProvider(new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY)),
+					clientConfiguration);
+		}
+		if (!S3_ENDPOINT.isEmpty()) {
+			client.setEndpoint(S3_ENDPOINT);
+		}
+		if (S3_PATH_STYLE_ACCESS) {
+			client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+		}
+		client.addRequestHandler(new PoolMetricsHandler(meterRegistry, MAX_CONNECTIONS));
+		return client;
+	}
+
+	/**
+	 * Tracks the requests in flight, which each hold a pooled connection, and times every request
+	 */
+	private static class PoolMetricsHandler extends RequestHandler2 {
+		private final MeterRegistry meterRegistry;
+		private final AtomicInteger activeRequests = new AtomicInteger();
+		private final Map<Request<?>, Long> startTimes = new ConcurrentHashMap<Request<?>, Long>();
+
+		PoolMetricsHandler(MeterRegistry meterRegistry, int maxConnections) {
+			this.meterRegistry = meterRegistry;
+			meterRegistry.gauge("s3.client.connections.max", activeRequests, active -> maxConnections);
+			meterRegistry.gauge("s3.client.requests.active", activeRequests);
+			meterRegistry.gauge("s3.client.pool.utilization", activeRequests, active -> active.get() / (double) maxConnections);
+		}
+
+		@Override
+		public void beforeRequest(Request<?> request) {
+			startTimes.put(request, System.nanoTime());
+			activeRequests.incrementAndGet();
+		}
+
+		@Override
+		public void afterResponse(Request<?> request, Response<?> response) {
+			finish(request, "success");
+		}
+
+		@Override
+		public void afterError(Request<?> request, Response<?> response, Exception e) {
+			finish(request, "error");
+		}
+
+		private void finish(Request<?> request, String outcome) {
+			Long start = startTimes.remove(request);
+			if (start == null) {
+				return;
+			}
+			activeRequests.decrementAndGet();
+			Timer.builder("s3.client.requests").tags("operation", getOperation(request.getOriginalRequest()), "outcome", outcome)
+					.register(meterRegistry).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+
+		private static String getOperation(AmazonWebServiceRequest originalRequest) {
+			return originalRequest == null ? "unknown" : originalRequest.getClass().getSimpleName().replaceFirst("Request$", "");
+		}
+	}
+}
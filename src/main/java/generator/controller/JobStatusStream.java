@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.controller;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import generator.components.DataAccessor;
+import generator.model.ServiceResource;
+
+/**
+ * Server-Sent Event stream of the status of one job. Each stored change of the job is sent as a status event with the
+ * version of the snapshot as its id, older snapshots than the last one sent are dropped, and the stream completes once
+ * the job reaches a final status or is removed. Events are written on the status event executor, never on the job
+ * thread that stored the change.
+ */
+class JobStatusStream implements DataAccessor.JobListener {
+	static final String STATUS_EVENT = "status";
+	static final String REMOVED_EVENT = "removed";
+
+	private final String serviceId;
+	private final SseEmitter emitter;
+	private final Executor executor;
+
+	/**
+	 * Guarded by this
+	 */
+	private long sentVersion = 0;
+	private boolean completed = false;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobStatusStream.class);
+
+	JobStatusStream(String serviceId, SseEmitter emitter, Executor executor) {
+		this.serviceId = serviceId;
+		this.emitter = emitter;
+		this.executor = executor;
+	}
+
+	@Override
+	public void jobChanged(ServiceResource resource) {
+		try {
+			executor.execute(() -> send(resource));
+		} catch (RejectedExecutionException e) {
+			// The client reconnects and is sent the current status
+			LOGGER.warn(String.format("Status event queue is full, closing the status stream of job %s.", serviceId));
+			synchronized (this) {
+				completed = true;
+			}
+			emitter.completeWithError(e);
+		}
+	}
+
+	/**
+	 * Sends the snapshot, unless a later one has already been sent
+	 * 
+	 * @param resource
+	 *            The snapshot of the job, or null if the job has been removed
+	 */
+	synchronized void send(ServiceResource resource) {
+		if (completed) {
+			return;
+		}
+		try {
+			if (resource == null) {
+				emitter.send(SseEmitter.event().name(REMOVED_EVENT).data(serviceId));
+				complete();
+				return;
+			}
+			if (resource.getVersion() <= sentVersion) {
+				return;
+			}
+			sentVersion = resource.getVersion();
+			emitter.send(SseEmitter.event().id(String.valueOf(sentVersion)).name(STATUS_EVENT).data(resource.getStatus(),
+					MediaType.APPLICATION_JSON));
+			if (DataAccessor.isCompleted(resource.getStatus())) {
+				complete();
+			}
+		} catch (IOException | IllegalStateException e) {
+			// The client has gone away
+			completed = true;
+			emitter.completeWithError(e);
+		}
+	}
+
+	private void complete() {
+		completed = true;
+		emitter.complete();
+	}
+}
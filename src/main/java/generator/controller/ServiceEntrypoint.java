@@ -15,24 +15,51 @@
  **/
 package generator.controller;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import exception.InvalidInputException;
+import generator.components.CropMetrics;
+import generator.components.DataAccessor;
 import generator.components.RasterGenerator;
 import generator.components.ServiceThreadManager;
+import generator.config.ExecutorConfiguration;
+import generator.model.CropProgress;
+import generator.model.CropResult;
 import generator.model.ErrorResponse;
+import generator.model.JobStatusRequest;
+import generator.model.JobStatusResponse;
+import generator.model.RasterBatchCropRequest;
+import generator.model.PreviewOptions;
 import generator.model.RasterCropRequest;
+import generator.model.RasterPreviewRequest;
+import generator.model.ServiceResource;
 import model.data.DataResource;
 import model.logger.AuditElement;
 import model.logger.Severity;
@@ -63,8 +90,22 @@ public class ServiceEntrypoint {
 	private UUIDFactory uuidFactory;
 	@Autowired
 	private PiazzaLogger pzLogger;
+	@Autowired
+	private CropMetrics cropMetrics;
+	@Autowired
+	@Qualifier(ExecutorConfiguration.STATUS_EVENT_EXECUTOR)
+	private TaskExecutor statusEventExecutor;
+
+	@Value("${crop.executor.retry.after.seconds:30}")
+	private int RETRY_AFTER_SECONDS;
+	@Value("${status.wait.max.seconds:60}")
+	private long STATUS_WAIT_MAX_SECONDS;
+	@Value("${status.events.timeout.ms:600000}")
+	private long STATUS_EVENTS_TIMEOUT_MS;
 
 	private static final String AUDIT_ID = "pz-svcs-prevgen";
+	private static final String RETRY_AFTER_HEADER = "Retry-After";
+	private static final String TIFF_CONTENT_TYPE = "image/tiff";
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(ServiceEntrypoint.class);
 	
@@ -85,11 +126,16 @@ public class ServiceEntrypoint {
 		
 		pzLogger.log("Cropping raster non-async endpoint", Severity.INFORMATIONAL);
 
+		long start = System.nanoTime();
+		cropMetrics.jobStarted(CropMetrics.PATH_SYNC);
 		try {
-				dataResource = rasterGenerator.cropRasterCoverage(request, serviceId);
+				dataResource = rasterGenerator.getCroppedRaster(request, serviceId, CropMetrics.PATH_SYNC);
 			} catch (Exception e) {
 				LOGGER.error("Error Cropping Raster.", e);
+				cropMetrics.recordError(CropMetrics.PATH_SYNC, e);
 				return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
+			} finally {
+				cropMetrics.jobFinished(CropMetrics.PATH_SYNC, start);
 			}
 		
 		if (dataResource == null) {
@@ -100,6 +146,81 @@ public class ServiceEntrypoint {
 		return new ResponseEntity<DataResource>(dataResource, HttpStatus.OK);
 	}
 
+	/**
+	 * Entry point for interactive clients that want the cropped raster itself rather than the location of an s3
+	 * resource. Selected with the stream=true parameter. This is a download, not a stream: the GeoTIFF writer patches the
+	 * offsets in its header once the image data is written, so the GeoTIFF is spooled to a local cache file while it is
+	 * encoded, then copied to the response with chunked transfer. It saves the upload to s3 and the second request for
+	 * the object, not the encode time before the first byte.
+	 * 
+	 * @param RasterCropRequest
+	 *            Required payload
+	 * @return null once the raster has been written, or ResponseEntity<ErrorResponse> if the crop failed before the
+	 *         response was started.
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/crop", method = RequestMethod.POST, params = "stream=true")
+	public ResponseEntity processRasterDownload(@RequestBody RasterCropRequest request, HttpServletResponse response) throws IOException {
+		String serviceId = uuidFactory.getUUID();
+		pzLogger.log("Cropping raster download endpoint", Severity.INFORMATIONAL);
+
+		response.setContentType(TIFF_CONTENT_TYPE);
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, String.format("attachment; filename=\"%s.tif\"", serviceId));
+		long start = System.nanoTime();
+		cropMetrics.jobStarted(CropMetrics.PATH_SYNC);
+		try {
+			rasterGenerator.downloadRasterCoverage(request, serviceId, response.getOutputStream());
+			response.flushBuffer();
+			return null;
+		} catch (InvalidInputException e) {
+			cropMetrics.recordError(CropMetrics.PATH_SYNC, e);
+			return getDownloadErrorResponse(response, e, HttpStatus.BAD_REQUEST);
+		} catch (Exception e) {
+			LOGGER.error("Error Downloading Cropped Raster.", e);
+			cropMetrics.recordError(CropMetrics.PATH_SYNC, e);
+			pzLogger.log(String.format("Error downloading cropped raster. %s", e.getMessage()), Severity.ERROR,
+					new AuditElement(AUDIT_ID, "errorDownloadingRasterCrop", serviceId));
+			return getDownloadErrorResponse(response, e, HttpStatus.INTERNAL_SERVER_ERROR);
+		} finally {
+			cropMetrics.jobFinished(CropMetrics.PATH_SYNC, start);
+		}
+	}
+
+	/**
+	 * Entry point for preview images. Returns a downsampled 8-bit PNG or JPEG of the s3 raster resource, or of the
+	 * bounding box within it, decoded from the overviews of the raster where it has them.
+	 * 
+	 * @param RasterPreviewRequest
+	 *            Required payload
+	 * @return ResponseEntity<?> of the image bytes or ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/preview", method = RequestMethod.POST)
+	public ResponseEntity processRasterPreview(@RequestBody RasterPreviewRequest request) {
+		String serviceId = uuidFactory.getUUID();
+		pzLogger.log("Generating raster preview endpoint", Severity.INFORMATIONAL);
+		long start = System.nanoTime();
+		cropMetrics.jobStarted(CropMetrics.PATH_SYNC);
+		try {
+			byte[] preview = rasterGenerator.generatePreview(request, serviceId);
+			HttpHeaders headers = new HttpHeaders();
+			headers.setContentType(PreviewOptions.FORMAT_JPEG.equalsIgnoreCase(getPreviewFormat(request)) ? MediaType.IMAGE_JPEG
+					: MediaType.IMAGE_PNG);
+			return new ResponseEntity<byte[]>(preview, headers, HttpStatus.OK);
+		} catch (InvalidInputException e) {
+			cropMetrics.recordError(CropMetrics.PATH_SYNC, e);
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.BAD_REQUEST);
+		} catch (Exception e) {
+			LOGGER.error("Error Generating Preview.", e);
+			cropMetrics.recordError(CropMetrics.PATH_SYNC, e);
+			pzLogger.log(String.format("Error generating raster preview. %s", e.getMessage()), Severity.ERROR,
+					new AuditElement(AUDIT_ID, "errorRasterPreview", serviceId));
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
+		} finally {
+			cropMetrics.jobFinished(CropMetrics.PATH_SYNC, start);
+		}
+	}
+
 	/**
 	 * Endpoint for curl integration tests. Do not erase!
 	 * @throws Exception 
@@ -126,6 +247,8 @@ public class ServiceEntrypoint {
 		try {
 			JobResponse job = new JobResponse(serviceThreadManager.processRasterAsync(request));
 			return new ResponseEntity<JobResponse>(job, HttpStatus.OK);
+		} catch (TaskRejectedException e) {
+			return getRejectedResponse();
 		} catch (Exception e) {
 			LOGGER.error("Error while cropping raster.", e);
 			pzLogger.log(String.format("Error while cropping raster. %s", e.getMessage()), Severity.ERROR, new AuditElement(AUDIT_ID, "errorAsyncRasterCrop", "error"));
@@ -133,6 +256,51 @@ public class ServiceEntrypoint {
 		}
 	}
 
+	/**
+	 * Entry point for cropping one s3 raster resource to many bounding boxes. The source is read once and the crops
+	 * run in parallel; the per-crop results are returned by /cropasync/batch/result/{serviceId}.
+	 * 
+	 * @param RasterBatchCropRequest
+	 *            Required payload
+	 * @return ResponseEntity<?> of JobResponse or ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/cropasync/batch", method = RequestMethod.POST, produces={"application/json; charset=UTF-8"})
+	public ResponseEntity processRasterBatchAsync(@RequestBody RasterBatchCropRequest request) {
+		pzLogger.log("Cropping raster batch async endpoint", Severity.INFORMATIONAL);
+		try {
+			JobResponse job = new JobResponse(serviceThreadManager.processBatchAsync(request));
+			return new ResponseEntity<JobResponse>(job, HttpStatus.OK);
+		} catch (InvalidInputException e) {
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.BAD_REQUEST);
+		} catch (TaskRejectedException e) {
+			return getRejectedResponse();
+		} catch (Exception e) {
+			LOGGER.error("Error while cropping raster batch.", e);
+			pzLogger.log(String.format("Error while cropping raster batch. %s", e.getMessage()), Severity.ERROR, new AuditElement(AUDIT_ID, "errorAsyncRasterBatchCrop", "error"));
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Returns the per-crop results of a completed batch process.
+	 * 
+	 * @param serviceId
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/cropasync/batch/result/{serviceId}", method = RequestMethod.GET, produces={"application/json; charset=UTF-8"})
+	public ResponseEntity processRasterBatchAsyncGetResult(@PathVariable(value = "serviceId") String serviceId) {
+		pzLogger.log(String.format("Getting the batch results of service %s", serviceId), Severity.INFORMATIONAL);
+		try {
+			return new ResponseEntity<List<CropResult>>(serviceThreadManager.getBatchResults(serviceId), HttpStatus.OK);
+		} catch (Exception e) {
+			LOGGER.error("Error Getting Batch Results.", e);
+			pzLogger.log(String.format("Error Getting Batch Results %s", e.getMessage()), Severity.ERROR, new AuditElement(AUDIT_ID, "errorGettingBatchResult", serviceId));
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	/**
 	 * Returns the status of the running process.
 	 * 
@@ -144,7 +312,7 @@ public class ServiceEntrypoint {
 	public ResponseEntity processRasterAsyncGetStatus(@PathVariable(value = "serviceId") String serviceId) {
 		pzLogger.log(String.format("Getting the status of running service %s", serviceId), Severity.INFORMATIONAL);
 		try {
-			return new ResponseEntity<StatusUpdate>(serviceThreadManager.getJobStatus(serviceId), HttpStatus.OK);
+			return getStatusResponse(serviceThreadManager.getJob(serviceId));
 		} catch (Exception e) {
 			LOGGER.error("Error Getting Status.", e);
 			pzLogger.log(String.format("Error Getting Status. %s", ExceptionUtils.getStackTrace(e)), Severity.ERROR, new AuditElement(AUDIT_ID, "errorGettingStatus", serviceId));
@@ -152,6 +320,112 @@ public class ServiceEntrypoint {
 		}
 	}
 
+	/**
+	 * Returns the status and result of many processes in one call, read from one consistent snapshot of the job store.
+	 * Pass the cursor of the previous response as changedSince to only get the processes that changed since then;
+	 * processes that no longer exist are always listed as not found.
+	 * 
+	 * @param JobStatusRequest
+	 *            Required payload
+	 * @return ResponseEntity<?> of JobStatusResponse or ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/cropasync/status", method = RequestMethod.POST, produces={"application/json; charset=UTF-8"})
+	public ResponseEntity processRasterAsyncGetStatuses(@RequestBody JobStatusRequest request) {
+		int count = request.getServiceIds() != null ? request.getServiceIds().size() : 0;
+		pzLogger.log(String.format("Getting the status of %d services", count), Severity.INFORMATIONAL);
+		try {
+			return new ResponseEntity<JobStatusResponse>(serviceThreadManager.getJobs(request), HttpStatus.OK);
+		} catch (InvalidInputException e) {
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.BAD_REQUEST);
+		} catch (Exception e) {
+			LOGGER.error("Error Getting Statuses.", e);
+			pzLogger.log(String.format("Error Getting Statuses. %s", e.getMessage()), Severity.ERROR, new AuditElement(AUDIT_ID, "errorGettingStatuses", "batch"));
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Long-poll variant of the status endpoint. Returns the status at once if its ETag does not match the If-None-Match
+	 * header; otherwise waits up to the given number of seconds for it to change, returning the new status as soon as
+	 * it is stored, or 304 Not Modified when the wait expires or the job is already complete.
+	 * 
+	 * @param serviceId
+	 * @param waitSeconds
+	 *            Longest time to wait for a change, capped at status.wait.max.seconds
+	 * @param ifNoneMatch
+	 *            ETag of the status the client already has
+	 * @return
+	 */
+	@RequestMapping(value = "/cropasync/status/{serviceId}", method = RequestMethod.GET, params = "wait", produces={"application/json; charset=UTF-8"})
+	public DeferredResult<ResponseEntity<?>> processRasterAsyncWaitForStatus(@PathVariable(value = "serviceId") String serviceId,
+			@RequestParam(value = "wait") long waitSeconds, @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+		pzLogger.log(String.format("Waiting for the status of running service %s", serviceId), Severity.INFORMATIONAL);
+		long timeout = TimeUnit.SECONDS.toMillis(Math.min(waitSeconds, STATUS_WAIT_MAX_SECONDS));
+		DeferredResult<ResponseEntity<?>> result = new DeferredResult<ResponseEntity<?>>(Math.max(timeout, 1),
+				getNotModifiedResponse(ifNoneMatch));
+		DataAccessor.JobListener listener = resource -> result
+				.setResult(resource == null ? getStatusNotFoundResponse(serviceId) : getStatusResponse(resource));
+
+		ServiceResource current;
+		try {
+			current = serviceThreadManager.watchJob(serviceId, listener);
+		} catch (Exception e) {
+			result.setResult(new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.NOT_FOUND));
+			return result;
+		}
+		result.onCompletion(() -> serviceThreadManager.unwatchJob(serviceId, listener));
+
+		if (ifNoneMatch == null || timeout <= 0 || !ifNoneMatch.equals(getETag(current))) {
+			result.setResult(getStatusResponse(current));
+		} else if (DataAccessor.isCompleted(current.getStatus())) {
+			result.setResult(getNotModifiedResponse(ifNoneMatch));
+		}
+		return result;
+	}
+
+	/**
+	 * Streams the status of the running process as Server-Sent Events. The current status is sent at once, then every
+	 * change as it is stored, with the version of the status as the event id. The stream ends once the job is
+	 * complete, or with a removed event if the job is deleted.
+	 * 
+	 * @param serviceId
+	 * @return
+	 */
+	@RequestMapping(value = "/cropasync/status/{serviceId}/events", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> processRasterAsyncStatusEvents(@PathVariable(value = "serviceId") String serviceId) {
+		pzLogger.log(String.format("Streaming the status of running service %s", serviceId), Severity.INFORMATIONAL);
+		SseEmitter emitter = new SseEmitter(STATUS_EVENTS_TIMEOUT_MS);
+		JobStatusStream stream = new JobStatusStream(serviceId, emitter, statusEventExecutor);
+		ServiceResource current;
+		try {
+			current = serviceThreadManager.watchJob(serviceId, stream);
+		} catch (Exception e) {
+			return new ResponseEntity<SseEmitter>(HttpStatus.NOT_FOUND);
+		}
+		emitter.onCompletion(() -> serviceThreadManager.unwatchJob(serviceId, stream));
+		stream.send(current);
+		return new ResponseEntity<SseEmitter>(emitter, HttpStatus.OK);
+	}
+
+	/**
+	 * Returns the progress of the running process: its stage, the bytes and tiles it has processed, its percentage
+	 * and its estimated time remaining.
+	 * 
+	 * @param serviceId
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/cropasync/progress/{serviceId}", method = RequestMethod.GET, produces={"application/json; charset=UTF-8"})
+	public ResponseEntity processRasterAsyncGetProgress(@PathVariable(value = "serviceId") String serviceId) {
+		try {
+			return new ResponseEntity<CropProgress>(serviceThreadManager.getJobProgress(serviceId), HttpStatus.OK);
+		} catch (Exception e) {
+			LOGGER.error("Error Getting Progress.", e);
+			return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), HttpStatus.NOT_FOUND);
+		}
+	}
+
 	/**
 	 * Returns the result of the completed process.
 	 * 
@@ -191,6 +465,61 @@ public class ServiceEntrypoint {
 		}
 	}
 	
+	/**
+	 * Status of the job, with the version of the snapshot as its ETag
+	 */
+	private ResponseEntity<StatusUpdate> getStatusResponse(ServiceResource resource) {
+		return ResponseEntity.ok().eTag(getETag(resource)).body(resource.getStatus());
+	}
+
+	private ResponseEntity<ErrorResponse> getStatusNotFoundResponse(String serviceId) {
+		return new ResponseEntity<ErrorResponse>(new ErrorResponse(String.format("Service Job %s not found.", serviceId)),
+				HttpStatus.NOT_FOUND);
+	}
+
+	private ResponseEntity<Void> getNotModifiedResponse(String eTag) {
+		HttpHeaders headers = new HttpHeaders();
+		if (eTag != null) {
+			headers.set(HttpHeaders.ETAG, eTag);
+		}
+		return new ResponseEntity<Void>(headers, HttpStatus.NOT_MODIFIED);
+	}
+
+	private String getETag(ServiceResource resource) {
+		return String.format("\"%d\"", resource.getVersion());
+	}
+
+	/**
+	 * Response for a request rejected because the crop queue is full
+	 * 
+	 * @return ResponseEntity<ErrorResponse> with status 429 and a Retry-After header
+	 */
+	private ResponseEntity<ErrorResponse> getRejectedResponse() {
+		LOGGER.warn("Crop queue is full, rejecting request.");
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(RETRY_AFTER_HEADER, String.valueOf(RETRY_AFTER_SECONDS));
+		return new ResponseEntity<ErrorResponse>(new ErrorResponse("Too many crop requests in progress, please retry later."), headers,
+				HttpStatus.TOO_MANY_REQUESTS);
+	}
+
+	/**
+	 * Error response for a downloaded crop. Once part of the raster has been sent the status can no longer change, so
+	 * the error is rethrown to make the container abort the response rather than end it as if it were complete.
+	 */
+	private ResponseEntity<ErrorResponse> getDownloadErrorResponse(HttpServletResponse response, Exception e, HttpStatus status)
+			throws IOException {
+		if (response.isCommitted()) {
+			throw new IOException("Download of the cropped raster failed after the response was started.", e);
+		}
+		response.reset();
+		return new ResponseEntity<ErrorResponse>(new ErrorResponse(e.getMessage()), status);
+	}
+
+	private String getPreviewFormat(RasterPreviewRequest request) {
+		String format = request.getPreview() != null ? request.getPreview().getFormat() : null;
+		return "jpg".equalsIgnoreCase(format) ? PreviewOptions.FORMAT_JPEG : format;
+	}
+
 	/**
 	 * Info endpoint for the service to see if it is running.
 	 * 
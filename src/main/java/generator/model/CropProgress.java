@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Progress of a crop job through its stages, with the counters the percentage is computed from and the estimated time
+ * remaining. For a batch job, the tiles are the crops of the batch.
+ */
+@JsonInclude(Include.NON_NULL)
+public class CropProgress {
+	public static final String STAGE_QUEUED = "queued";
+	public static final String STAGE_DOWNLOAD = "download";
+	public static final String STAGE_DECODE = "decode";
+	public static final String STAGE_ENCODE = "encode";
+	public static final String STAGE_UPLOAD = "upload";
+	public static final String STAGE_COMPLETE = "complete";
+
+	private String stage;
+	private Integer percentComplete;
+	private Long bytesDownloaded;
+	private Long bytesToDownload;
+	private Long tilesDecoded;
+	private Long tilesToDecode;
+	private Long bytesEncoded;
+	private Long bytesUploaded;
+	private Long elapsedSeconds;
+	private Long estimatedSecondsRemaining;
+
+	public CropProgress() {
+		// Expected for Jackson deserialization
+	}
+
+	public CropProgress(String stage, Integer percentComplete) {
+		this.stage = stage;
+		this.percentComplete = percentComplete;
+	}
+
+	public String getStage() {
+		return stage;
+	}
+
+	public void setStage(String stage) {
+		this.stage = stage;
+	}
+
+	public Integer getPercentComplete() {
+		return percentComplete;
+	}
+
+	public void setPercentComplete(Integer percentComplete) {
+		this.percentComplete = percentComplete;
+	}
+
+	public Long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	public void setBytesDownloaded(Long bytesDownloaded) {
+		this.bytesDownloaded = bytesDownloaded;
+	}
+
+	public Long getBytesToDownload() {
+		return bytesToDownload;
+	}
+
+	public void setBytesToDownload(Long bytesToDownload) {
+		this.bytesToDownload = bytesToDownload;
+	}
+
+	public Long getTilesDecoded() {
+		return tilesDecoded;
+	}
+
+	public void setTilesDecoded(Long tilesDecoded) {
+		this.tilesDecoded = tilesDecoded;
+	}
+
+	public Long getTilesToDecode() {
+		return tilesToDecode;
+	}
+
+	public void setTilesToDecode(Long tilesToDecode) {
+		this.tilesToDecode = tilesToDecode;
+	}
+
+	public Long getBytesEncoded() {
+		return bytesEncoded;
+	}
+
+	public void setBytesEncoded(Long bytesEncoded) {
+		this.bytesEncoded = bytesEncoded;
+	}
+
+	public Long getBytesUploaded() {
+		return bytesUploaded;
+	}
+
+	public void setBytesUploaded(Long bytesUploaded) {
+		this.bytesUploaded = bytesUploaded;
+	}
+
+	public Long getElapsedSeconds() {
+		return elapsedSeconds;
+	}
+
+	public void setElapsedSeconds(Long elapsedSeconds) {
+		this.elapsedSeconds = elapsedSeconds;
+	}
+
+	/**
+	 * Estimated seconds until the job completes, or null until there is enough to base an estimate on
+	 */
+	public Long getEstimatedSecondsRemaining() {
+		return estimatedSecondsRemaining;
+	}
+
+	public void setEstimatedSecondsRemaining(Long estimatedSecondsRemaining) {
+		this.estimatedSecondsRemaining = estimatedSecondsRemaining;
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import model.data.DataResource;
+
+/**
+ * Result of one crop of a batch request: the output resource, or the error that prevented it.
+ */
+@JsonInclude(Include.NON_NULL)
+public class CropResult {
+	private BoundingBoxInfo bounds;
+	private DataResource result;
+	private String error;
+
+	public CropResult() {
+		// Expected for Jackson deserialization
+	}
+
+	public CropResult(BoundingBoxInfo bounds, DataResource result, String error) {
+		this.bounds = bounds;
+		this.result = result;
+		this.error = error;
+	}
+
+	public BoundingBoxInfo getBounds() {
+		return bounds;
+	}
+
+	public void setBounds(BoundingBoxInfo bounds) {
+		this.bounds = bounds;
+	}
+
+	public DataResource getResult() {
+		return result;
+	}
+
+	public void setResult(DataResource result) {
+		this.result = result;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+}
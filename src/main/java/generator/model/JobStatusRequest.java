@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import java.util.List;
+
+/**
+ * The model for a batch status query: the jobs to look up, and optionally the cursor returned by an earlier query, so
+ * that only the jobs that changed since then are returned.
+ */
+public class JobStatusRequest {
+	private List<String> serviceIds;
+	private Long changedSince;
+
+	public List<String> getServiceIds() {
+		return serviceIds;
+	}
+
+	public void setServiceIds(List<String> serviceIds) {
+		this.serviceIds = serviceIds;
+	}
+
+	public Long getChangedSince() {
+		return changedSince;
+	}
+
+	public void setChangedSince(Long changedSince) {
+		this.changedSince = changedSince;
+	}
+}
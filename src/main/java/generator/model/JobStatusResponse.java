@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Response to a batch status query, read from one consistent snapshot of the job store: the status and result of each
+ * requested job, the requested jobs that do not exist, and the cursor to pass as changedSince in the next query.
+ */
+@JsonInclude(Include.NON_NULL)
+public class JobStatusResponse {
+	private long cursor;
+	private List<ServiceResource> jobs;
+	private List<String> notFound;
+
+	public JobStatusResponse() {
+		// Expected for Jackson deserialization
+	}
+
+	public JobStatusResponse(long cursor, List<ServiceResource> jobs, List<String> notFound) {
+		this.cursor = cursor;
+		this.jobs = jobs;
+		this.notFound = notFound;
+	}
+
+	/**
+	 * Version of the job store the snapshot was taken at. Every change after the snapshot has a later version.
+	 */
+	public long getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(long cursor) {
+		this.cursor = cursor;
+	}
+
+	public List<ServiceResource> getJobs() {
+		return jobs;
+	}
+
+	public void setJobs(List<ServiceResource> jobs) {
+		this.jobs = jobs;
+	}
+
+	public List<String> getNotFound() {
+		return notFound;
+	}
+
+	public void setNotFound(List<String> notFound) {
+		this.notFound = notFound;
+	}
+}
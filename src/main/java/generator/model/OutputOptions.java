@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Encoding options for cropped GeoTIFF outputs. Options left unset fall back to the server defaults.
+ */
+@JsonInclude(Include.NON_NULL)
+public class OutputOptions {
+	public static final String COMPRESSION_NONE = "NONE";
+	public static final String COMPRESSION_DEFLATE = "DEFLATE";
+	public static final String COMPRESSION_LZW = "LZW";
+
+	private Boolean tiled;
+	private Integer tileSize;
+	private String compression;
+
+	public Boolean getTiled() {
+		return tiled;
+	}
+
+	public void setTiled(Boolean tiled) {
+		this.tiled = tiled;
+	}
+
+	public Integer getTileSize() {
+		return tileSize;
+	}
+
+	public void setTileSize(Integer tileSize) {
+		this.tileSize = tileSize;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Options for preview images. The preview fits within width by height pixels, keeping the aspect ratio of the source.
+ * Bands are 1-based band numbers of the source: one band for a grayscale preview, or three for red, green and blue.
+ * Options left unset fall back to the server defaults.
+ */
+@JsonInclude(Include.NON_NULL)
+public class PreviewOptions {
+	public static final String FORMAT_PNG = "png";
+	public static final String FORMAT_JPEG = "jpeg";
+
+	private Integer width;
+	private Integer height;
+	private String format;
+	private List<Integer> bands;
+
+	public Integer getWidth() {
+		return width;
+	}
+
+	public void setWidth(Integer width) {
+		this.width = width;
+	}
+
+	public Integer getHeight() {
+		return height;
+	}
+
+	public void setHeight(Integer height) {
+		this.height = height;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	public List<Integer> getBands() {
+		return bands;
+	}
+
+	public void setBands(List<Integer> bands) {
+		this.bands = bands;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * A crop or batch job in the shared job queue: the request, the lease of the instance running it, and the latest
+ * snapshot of the job, which any instance can answer status lookups from.
+ */
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class QueuedJob {
+	/**
+	 * Waiting to be claimed
+	 */
+	public static final String STATE_QUEUED = "queued";
+	/**
+	 * Claimed by an instance that holds its lease
+	 */
+	public static final String STATE_LEASED = "leased";
+	/**
+	 * Completed, kept for status lookups until purged
+	 */
+	public static final String STATE_DONE = "done";
+
+	private String serviceId;
+	private RasterCropRequest cropRequest;
+	private RasterBatchCropRequest batchRequest;
+	private String state;
+	private String owner;
+	private String leaseId;
+	private long leaseExpiresAt;
+	private int attempts;
+	private long submittedAt;
+	private long completedAt;
+	private ServiceResource snapshot;
+
+	public String getServiceId() {
+		return serviceId;
+	}
+
+	public void setServiceId(String serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * The request of a single crop job, null for a batch job
+	 */
+	public RasterCropRequest getCropRequest() {
+		return cropRequest;
+	}
+
+	public void setCropRequest(RasterCropRequest cropRequest) {
+		this.cropRequest = cropRequest;
+	}
+
+	/**
+	 * The request of a batch job, null for a single crop job
+	 */
+	public RasterBatchCropRequest getBatchRequest() {
+		return batchRequest;
+	}
+
+	public void setBatchRequest(RasterBatchCropRequest batchRequest) {
+		this.batchRequest = batchRequest;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	/**
+	 * The instance holding the lease
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Identifies one claim of the job, so that an instance whose lease expired cannot renew or complete the claim of
+	 * another
+	 */
+	public String getLeaseId() {
+		return leaseId;
+	}
+
+	public void setLeaseId(String leaseId) {
+		this.leaseId = leaseId;
+	}
+
+	/**
+	 * Time in milliseconds after which the job is re-delivered, unless the lease is renewed
+	 */
+	public long getLeaseExpiresAt() {
+		return leaseExpiresAt;
+	}
+
+	public void setLeaseExpiresAt(long leaseExpiresAt) {
+		this.leaseExpiresAt = leaseExpiresAt;
+	}
+
+	/**
+	 * Number of times the job has been claimed
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public long getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public void setSubmittedAt(long submittedAt) {
+		this.submittedAt = submittedAt;
+	}
+
+	public long getCompletedAt() {
+		return completedAt;
+	}
+
+	public void setCompletedAt(long completedAt) {
+		this.completedAt = completedAt;
+	}
+
+	/**
+	 * Latest snapshot of the job published by the instance running it
+	 */
+	public ServiceResource getSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(ServiceResource snapshot) {
+		this.snapshot = snapshot;
+	}
+}
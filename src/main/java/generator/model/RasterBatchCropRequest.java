@@ -0,0 +1,36 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+import java.util.List;
+
+/**
+ * The model for a batch payload: one source raster cropped to many bounding boxes. The source is read once and the
+ * crops run in parallel against it.
+ * 
+ * The inherited bounds are not used by batch requests.
+ */
+public class RasterBatchCropRequest extends RasterCropRequest {
+	public List<BoundingBoxInfo> boundsList;
+
+	public List<BoundingBoxInfo> getBoundsList() {
+		return boundsList;
+	}
+
+	public void setBoundsList(List<BoundingBoxInfo> boundsList) {
+		this.boundsList = boundsList;
+	}
+}
@@ -33,6 +33,8 @@ public class RasterCropRequest {
 	
 	@NotNull
 	public BoundingBoxInfo bounds;
+
+	public OutputOptions output;
 	
 	public S3StoreInfo getSource() {
 		return source;
@@ -52,4 +54,10 @@ public class RasterCropRequest {
 	public void setBounds(BoundingBoxInfo bounds) {
 		this.bounds = bounds;
 	}
+	public OutputOptions getOutput() {
+		return output;
+	}
+	public void setOutput(OutputOptions output) {
+		this.output = output;
+	}
 }
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator.model;
+
+/**
+ * The model for a preview payload: a downsampled 8-bit PNG or JPEG of the source raster, optionally limited to the
+ * bounding box. Without bounds the preview covers the whole source.
+ * 
+ * The inherited output options are not used by preview requests.
+ */
+public class RasterPreviewRequest extends RasterCropRequest {
+	public PreviewOptions preview;
+
+	public PreviewOptions getPreview() {
+		return preview;
+	}
+
+	public void setPreview(PreviewOptions preview) {
+		this.preview = preview;
+	}
+}
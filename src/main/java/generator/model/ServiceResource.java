@@ -15,6 +15,8 @@
  **/
 package generator.model;
 
+import java.util.List;
+
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
@@ -35,6 +37,9 @@ public class ServiceResource {
 	private String serviceResourceId;
 	private StatusUpdate status;
 	private DataResource result;
+	private List<CropResult> results;
+	private Long version;
+	private CropProgress progress;
 
 	public String getServiceResourceId() {
 		return serviceResourceId;
@@ -59,4 +64,31 @@ public class ServiceResource {
 	public void setResult(DataResource result) {
 		this.result = result;
 	}
+
+	public List<CropResult> getResults() {
+		return results;
+	}
+
+	public void setResults(List<CropResult> results) {
+		this.results = results;
+	}
+
+	/**
+	 * Version of this snapshot in the job store, increasing with every stored change
+	 */
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public CropProgress getProgress() {
+		return progress;
+	}
+
+	public void setProgress(CropProgress progress) {
+		this.progress = progress;
+	}
 }
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.operator.ConstantDescriptor;
+
+import org.apache.commons.io.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import exception.InvalidInputException;
+import generator.components.ProgressTracker;
+import generator.components.RasterGenerator;
+import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
+import generator.model.PreviewOptions;
+
+/**
+ * Tests that the Raster Generator decodes only the window of the source raster covered by the crop or preview, estimates
+ * the size of that window, computes the tiles of a crop in parallel, and encodes the crop to a stream through a disk
+ * spool.
+ */
+public class CoverageWindowReadTests {
+	private static final int SOURCE_SIZE = 4096;
+	private static final int TILE_SIZE = 256;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RasterGenerator rasterGenerator = new RasterGenerator();
+	private File sourceFile;
+
+	/**
+	 * Writes a large, tiled synthetic GeoTIFF covering the whole world.
+	 */
+	@Before
+	public void setup() throws IOException {
+		RenderedImage image = ConstantDescriptor.create(Float.valueOf(SOURCE_SIZE), Float.valueOf(SOURCE_SIZE), new Byte[] { 42 }, null);
+		GridCoverage2D coverage = new GridCoverageFactory().create("synthetic", image,
+				new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+
+		GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+		writeParams.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+		writeParams.setTiling(TILE_SIZE, TILE_SIZE);
+		GeoTiffFormat format = new GeoTiffFormat();
+		ParameterValueGroup params = format.getWriteParameters();
+		params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(writeParams);
+
+		sourceFile = folder.newFile("synthetic.tif");
+		GridCoverageWriter writer = format.getWriter(sourceFile);
+		try {
+			writer.write(coverage, params.values().toArray(new GeneralParameterValue[1]));
+		} finally {
+			writer.dispose();
+			coverage.dispose(true);
+		}
+	}
+
+	/**
+	 * Tests that the decoded image matches the crop window rather than the whole source
+	 */
+	@Test
+	public void testWindowedReadDimensions() throws IOException, InvalidInputException {
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			// A 90x45 degree box is 1/16 of the source
+			GridCoverage2D window = rasterGenerator.readCoverageWindow(reader, rasterGenerator.getCropEnvelope(getBounds(0, 0, 90, 45), reader));
+			RenderedImage image = window.getRenderedImage();
+			assertTrue(image.getWidth() <= SOURCE_SIZE / 4 + TILE_SIZE);
+			assertTrue(image.getHeight() <= SOURCE_SIZE / 4 + TILE_SIZE);
+			window.dispose(true);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that the memory allocated while decoding tracks the size of the crop, not the size of the source
+	 */
+	@Test
+	public void testWindowedReadAllocation() throws IOException, InvalidInputException {
+		long fullAllocation = measureDecodeAllocation(getBounds(-180, -90, 180, 90));
+		long windowAllocation = measureDecodeAllocation(getBounds(0, 0, 90, 45));
+		assertTrue(String.format("Window read allocated %d bytes, full read allocated %d bytes", windowAllocation, fullAllocation),
+				windowAllocation < fullAllocation / 4);
+	}
+
+	/**
+	 * Tests that the decoded size estimated from the header covers the tiles of the window and not the whole source
+	 */
+	@Test
+	public void testEstimateDecodedBytes() throws IOException {
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			assertEquals((long) SOURCE_SIZE * SOURCE_SIZE,
+					rasterGenerator.estimateDecodedBytes(reader, rasterGenerator.getCropEnvelope(getBounds(-180, -90, 180, 90), reader)));
+			// A 90x45 degree box is 1/16 of the source, plus at most a row and a column of tiles
+			long window = rasterGenerator.estimateDecodedBytes(reader, rasterGenerator.getCropEnvelope(getBounds(0, 0, 90, 45), reader));
+			assertTrue(window >= (long) SOURCE_SIZE * SOURCE_SIZE / 16);
+			assertTrue(window <= (long) (SOURCE_SIZE / 4 + TILE_SIZE) * (SOURCE_SIZE / 4 + TILE_SIZE));
+			// A tiny box still decodes one whole tile
+			assertEquals((long) TILE_SIZE * TILE_SIZE,
+					rasterGenerator.estimateDecodedBytes(reader, rasterGenerator.getCropEnvelope(getBounds(1, 1, 1.01, 1.01), reader)));
+			assertEquals(0, rasterGenerator.estimateDecodedBytes(reader, rasterGenerator.getCropEnvelope(getBounds(200, 100, 210, 110), reader)));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that the copy made by the parallel tile computation is only added to the estimate when it is enabled and the
+	 * crop is large enough
+	 */
+	@Test
+	public void testEstimateComputedTileBytes() throws IOException {
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			GeneralEnvelope cropEnvelope = rasterGenerator.getCropEnvelope(getBounds(0, 0, 90, 45), reader);
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_ENABLED", false);
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_MIN_PIXELS", 1L);
+			assertEquals(0, rasterGenerator.estimateComputedTileBytes(reader, cropEnvelope));
+
+			// A 90x45 degree box is a quarter of the width and height of the source, at one byte per pixel
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_ENABLED", true);
+			long copy = rasterGenerator.estimateComputedTileBytes(reader, cropEnvelope);
+			assertTrue(copy >= (long) SOURCE_SIZE * SOURCE_SIZE / 16);
+			assertTrue(copy <= (long) (SOURCE_SIZE / 4 + 1) * (SOURCE_SIZE / 4 + 1));
+
+			ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_MIN_PIXELS", (long) SOURCE_SIZE * SOURCE_SIZE);
+			assertEquals(0, rasterGenerator.estimateComputedTileBytes(reader, cropEnvelope));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that tiles computed in parallel hold exactly the pixels of the crop computed serially, including the partial
+	 * tiles on the right and bottom edges
+	 */
+	@Test
+	public void testComputeTilesMatchesSerialCrop() throws IOException {
+		BufferedImage image = new BufferedImage(1000, 600, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = image.getRaster();
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				raster.setSample(x, y, 0, (x * 7 + y * 13) & 0xFF);
+			}
+		}
+		GridCoverageFactory factory = new GridCoverageFactory();
+		ReferencedEnvelope envelope = new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84);
+		GeneralEnvelope cropEnvelope = new GeneralEnvelope(new ReferencedEnvelope(-100, 70, -60, 35, DefaultGeographicCRS.WGS84));
+
+		OutputOptions outputOptions = new OutputOptions();
+		outputOptions.setTiled(true);
+		outputOptions.setTileSize(64);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ReflectionTestUtils.setField(rasterGenerator, "cropForkJoinPool", pool);
+		ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_ENABLED", true);
+		ReflectionTestUtils.setField(rasterGenerator, "PARALLEL_MIN_PIXELS", 1L);
+		try {
+			GridCoverage2D serial = rasterGenerator.cropCoverage(factory.create("serial", image, envelope), cropEnvelope);
+			GridCoverage2D parallel = rasterGenerator.computeTiles(
+					rasterGenerator.cropCoverage(factory.create("parallel", image, envelope), cropEnvelope), outputOptions,
+					new ProgressTracker.Progress());
+
+			Raster expected = serial.getRenderedImage().getData();
+			Raster actual = parallel.getRenderedImage().getData();
+			assertEquals(expected.getBounds(), actual.getBounds());
+			for (int y = expected.getMinY(); y < expected.getMinY() + expected.getHeight(); y++) {
+				for (int x = expected.getMinX(); x < expected.getMinX() + expected.getWidth(); x++) {
+					assertEquals(String.format("Pixel %d,%d", x, y), expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+				}
+			}
+			serial.dispose(true);
+			parallel.dispose(true);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that bounds outside the source are rejected before anything is decoded
+	 */
+	@Test(expected = InvalidInputException.class)
+	public void testDisjointBounds() throws IOException, InvalidInputException {
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			rasterGenerator.readCoverageWindow(reader, rasterGenerator.getCropEnvelope(getBounds(200, 100, 210, 110), reader));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that a cropped window encoded to a stream reads back as a GeoTIFF of the window's size, and that the encoder
+	 * spools the whole file to its cache directory before the stream sees any of it, then cleans the cache up
+	 */
+	@Test
+	public void testEncodeToStream() throws IOException, InvalidInputException {
+		OutputOptions outputOptions = new OutputOptions();
+		outputOptions.setTiled(true);
+		outputOptions.setTileSize(TILE_SIZE);
+		outputOptions.setCompression(OutputOptions.COMPRESSION_DEFLATE);
+
+		File cacheDir = folder.newFolder("encodeCache");
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		AtomicLong spooledAtFirstWrite = new AtomicLong(-1);
+		FilterOutputStream watched = new FilterOutputStream(encoded) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				recordSpool();
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				recordSpool();
+				out.write(b);
+			}
+
+			private void recordSpool() {
+				if (spooledAtFirstWrite.get() < 0) {
+					spooledAtFirstWrite.set(FileUtils.sizeOfDirectory(cacheDir));
+				}
+			}
+		};
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		RenderedImage expected;
+		try {
+			GeneralEnvelope cropEnvelope = rasterGenerator.getCropEnvelope(getBounds(0, 0, 90, 45), reader);
+			GridCoverage2D window = rasterGenerator.readCoverageWindow(reader, cropEnvelope);
+			GridCoverage2D cropped = rasterGenerator.cropCoverage(window, cropEnvelope);
+			expected = cropped.getRenderedImage();
+			rasterGenerator.encodeCoverage(cropped, watched, cacheDir, outputOptions);
+			cropped.dispose(true);
+			window.dispose(true);
+		} finally {
+			reader.dispose();
+		}
+
+		assertEquals(encoded.size(), spooledAtFirstWrite.get());
+		assertEquals(0, cacheDir.list().length);
+
+		File streamed = folder.newFile("streamed.tif");
+		FileUtils.writeByteArrayToFile(streamed, encoded.toByteArray());
+		GridCoverage2DReader streamedReader = new GeoTiffFormat().getReader(streamed);
+		try {
+			RenderedImage image = streamedReader.read(null).getRenderedImage();
+			assertEquals(expected.getWidth(), image.getWidth());
+			assertEquals(expected.getHeight(), image.getHeight());
+		} finally {
+			streamedReader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that a preview read decodes at about the preview size, and renders to exactly the preview size
+	 */
+	@Test
+	public void testPreviewRead() throws IOException, InvalidInputException {
+		PreviewOptions previewOptions = new PreviewOptions();
+		previewOptions.setWidth(512);
+		previewOptions.setHeight(256);
+		previewOptions.setFormat(PreviewOptions.FORMAT_PNG);
+
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			GeneralEnvelope envelope = new GeneralEnvelope(reader.getOriginalEnvelope());
+			GridCoverage2D coverage = rasterGenerator.readCoverageWindow(reader, envelope, 512, 256);
+			RenderedImage image = coverage.getRenderedImage();
+			assertTrue(image.getWidth() <= 2 * 256);
+			assertTrue(image.getHeight() <= 2 * 256);
+
+			BufferedImage preview = rasterGenerator.renderPreview(coverage, previewOptions);
+			assertEquals(256, preview.getWidth());
+			assertEquals(256, preview.getHeight());
+			assertEquals(42, preview.getRaster().getSample(128, 128, 0));
+			coverage.dispose(true);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private long measureDecodeAllocation(BoundingBoxInfo bounds) throws IOException, InvalidInputException {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(sourceFile);
+		try {
+			long before = threadBean.getThreadAllocatedBytes(threadId);
+			GridCoverage2D coverage = rasterGenerator.readCoverageWindow(reader, rasterGenerator.getCropEnvelope(bounds, reader));
+			// Force every tile of the read window to be decoded
+			coverage.getRenderedImage().getData();
+			long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+			coverage.dispose(true);
+			return allocated;
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	private BoundingBoxInfo getBounds(double minx, double miny, double maxx, double maxy) {
+		BoundingBoxInfo bounds = new BoundingBoxInfo();
+		bounds.setMinx(minx);
+		bounds.setMiny(miny);
+		bounds.setMaxx(maxx);
+		bounds.setMaxy(maxy);
+		return bounds;
+	}
+}
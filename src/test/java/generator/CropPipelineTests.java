@@ -0,0 +1,118 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.CropPipeline;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests handing crop stages to the I/O and CPU executors
+ */
+public class CropPipelineTests {
+	private CropPipeline cropPipeline = new CropPipeline();
+	private ThreadPoolTaskExecutor ioExecutor = createExecutor("test-io-");
+	private ThreadPoolTaskExecutor cpuExecutor = createExecutor("test-cpu-");
+	private ExecutorService jobExecutor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Initialize a pipeline over two single threaded executors
+	 */
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(cropPipeline, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(cropPipeline, "ioExecutor", ioExecutor);
+		ReflectionTestUtils.setField(cropPipeline, "cpuExecutor", cpuExecutor);
+		ReflectionTestUtils.setField(cropPipeline, "PIPELINE_ENABLED", true);
+		cropPipeline.initialize();
+	}
+
+	@After
+	public void teardown() {
+		jobExecutor.shutdownNow();
+		ioExecutor.shutdown();
+		cpuExecutor.shutdown();
+	}
+
+	/**
+	 * Tests that stages run on their executors, and that their results and errors reach the job
+	 */
+	@Test
+	public void testStagesRunOnTheirExecutors() throws Exception {
+		assertTrue(cropPipeline.runIo(() -> Thread.currentThread().getName(), null).startsWith("test-io-"));
+		assertTrue(cropPipeline.runCpu(() -> Thread.currentThread().getName(), null).startsWith("test-cpu-"));
+		try {
+			cropPipeline.runCpu(() -> {
+				throw new IOException("decode failed");
+			}, null);
+			fail("Expected the error of the stage");
+		} catch (IOException e) {
+			assertEquals("decode failed", e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that cancelling a job interrupts its running stage, and that a result the stage produces anyway is
+	 * discarded
+	 */
+	@Test
+	public void testCancelledStageResultIsDiscarded() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicReference<String> discarded = new AtomicReference<String>();
+		Future<String> job = jobExecutor.submit(() -> cropPipeline.runIo(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				// A stage that finishes its transfer despite the interrupt
+			}
+			return "output";
+		}, discarded::set));
+
+		started.await(5, TimeUnit.SECONDS);
+		job.cancel(true);
+		jobExecutor.shutdown();
+		assertTrue(jobExecutor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals("output", discarded.get());
+	}
+
+	private static ThreadPoolTaskExecutor createExecutor(String threadNamePrefix) {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(1);
+		executor.setMaxPoolSize(1);
+		executor.setQueueCapacity(4);
+		executor.setThreadNamePrefix(threadNamePrefix);
+		executor.initialize();
+		return executor;
+	}
+}
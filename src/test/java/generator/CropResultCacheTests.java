@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.CropResultCache;
+import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.data.DataResource;
+
+/**
+ * Tests the crop result cache and the coalescing of identical crops
+ */
+public class CropResultCacheTests {
+	private CropResultCache cache = new CropResultCache();
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private AtomicInteger crops = new AtomicInteger();
+
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(cache, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(cache, "CACHE_ENABLED", true);
+		ReflectionTestUtils.setField(cache, "TTL_SECONDS", 300L);
+		ReflectionTestUtils.setField(cache, "MAX_ENTRIES", 10);
+		cache.initialize();
+	}
+
+	/**
+	 * Tests that equivalent bounds share a key, while a changed ETag, output option or domain does not
+	 */
+	@Test
+	public void testKeyNormalization() {
+		OutputOptions options = getOptions("DEFLATE");
+		String key = cache.getKey("s3.amazonaws.com", "bucket", "file.tif", "etag", getBounds(-10, 0, 10, 5), options);
+		assertEquals(key, cache.getKey("s3.amazonaws.com", "bucket", "file.tif", "etag", getBounds(10.0000000000001, 5, -10, -0.0), options));
+		assertNotEquals(key, cache.getKey("s3.amazonaws.com", "bucket", "file.tif", "etag2", getBounds(-10, 0, 10, 5), options));
+		assertNotEquals(key, cache.getKey("s3.amazonaws.com", "bucket", "file.tif", "etag", getBounds(-10, 0, 10, 5), getOptions("LZW")));
+		assertNotEquals(key, cache.getKey("s3.us-gov-west-1.amazonaws.com", "bucket", "file.tif", "etag", getBounds(-10, 0, 10, 5), options));
+	}
+
+	/**
+	 * Tests that a repeated crop is answered from the cache until its TTL expires
+	 */
+	@Test
+	public void testHitAndExpiry() throws Exception {
+		DataResource first = cache.getOrLoad("key", this::crop);
+		assertSame(first, cache.getOrLoad("key", this::crop));
+		assertEquals(1, crops.get());
+		assertEquals(1.0, meterRegistry.counter("crop.result.cache.hits").count(), 0);
+
+		ReflectionTestUtils.setField(cache, "TTL_SECONDS", 0L);
+		cache.getOrLoad("expiring", this::crop);
+		assertNull(cache.get("expiring"));
+		assertEquals(2, crops.get());
+	}
+
+	/**
+	 * Tests that identical crops arriving while one is running wait for it instead of cropping again
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		CropResultCache.ResultLoader slowCrop = () -> {
+			started.countDown();
+			proceed.await(10, TimeUnit.SECONDS);
+			return crop();
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<DataResource> leader = executor.submit(() -> cache.getOrLoad("key", slowCrop));
+			started.await(10, TimeUnit.SECONDS);
+			Future<DataResource> follower = executor.submit(() -> cache.getOrLoad("key", slowCrop));
+			while (meterRegistry.counter("crop.result.cache.coalesced").count() < 1) {
+				Thread.sleep(10);
+			}
+			proceed.countDown();
+
+			assertSame(leader.get(), follower.get());
+			assertEquals(1, crops.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that identical asynchronous jobs wait on one shared crop, which is only given up by its last waiter
+	 */
+	@Test
+	public void testWaiters() {
+		assertEquals("shared1", cache.addWaiter("key", "job1", "shared1"));
+		assertEquals("shared1", cache.addWaiter("key", "job2", "shared2"));
+		assertEquals(Arrays.asList("job1", "job2"), cache.getWaiters("key", "shared1"));
+
+		assertNull(cache.removeWaiter("job1"));
+		assertEquals("shared1", cache.removeWaiter("job2"));
+		assertEquals("shared3", cache.addWaiter("key", "job3", "shared3"));
+
+		cache.removeSharedJob("key", "shared3");
+		assertTrue(cache.getWaiters("key", "shared3").isEmpty());
+		assertNull(cache.removeWaiter("job3"));
+	}
+
+	private DataResource crop() {
+		crops.incrementAndGet();
+		return new DataResource();
+	}
+
+	private OutputOptions getOptions(String compression) {
+		OutputOptions options = new OutputOptions();
+		options.setTiled(true);
+		options.setTileSize(256);
+		options.setCompression(compression);
+		return options;
+	}
+
+	private BoundingBoxInfo getBounds(double minx, double miny, double maxx, double maxy) {
+		BoundingBoxInfo bounds = new BoundingBoxInfo();
+		bounds.setMinx(minx);
+		bounds.setMiny(miny);
+		bounds.setMaxx(maxx);
+		bounds.setMaxy(maxy);
+		return bounds;
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.DataAccessor;
+import generator.components.MemoryJobStore;
+import generator.model.CropProgress;
+import generator.model.JobStatusResponse;
+import generator.model.ServiceResource;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.status.StatusUpdate;
+
+/**
+ * Tests the bounds of the in-memory job store
+ */
+public class DataAccessorTests {
+	private DataAccessor dataAccessor = new DataAccessor();
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	/**
+	 * Initialize a store with room for two jobs
+	 */
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(dataAccessor, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(dataAccessor, "jobStore", new MemoryJobStore());
+		ReflectionTestUtils.setField(dataAccessor, "MAX_ENTRIES", 2);
+		ReflectionTestUtils.setField(dataAccessor, "COMPLETED_TTL_SECONDS", 3600L);
+		dataAccessor.initialize();
+	}
+
+	/**
+	 * Tests that the oldest completed job is evicted when the store is full, and running jobs are kept
+	 */
+	@Test
+	public void testCapacityEviction() throws Exception {
+		dataAccessor.addServiceResource(getResource("completed", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.addServiceResource(getResource("running", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.addServiceResource(getResource("new", StatusUpdate.STATUS_PENDING));
+
+		assertEquals(2, dataAccessor.size());
+		assertNull(dataAccessor.getServiceResourceById("completed"));
+		assertNotNull(dataAccessor.getServiceResourceById("running"));
+		assertNotNull(dataAccessor.getServiceResourceById("new"));
+		assertEquals(1.0, meterRegistry.counter("jobstore.evictions", "reason", "capacity").count(), 0);
+	}
+
+	/**
+	 * Tests that capacity eviction follows the latest completion of each job, skipping the earlier ones
+	 */
+	@Test
+	public void testEvictionOrder() throws Exception {
+		dataAccessor.addServiceResource(getResource("first", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.addServiceResource(getResource("second", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.update(getResource("first", StatusUpdate.STATUS_ERROR));
+		dataAccessor.addServiceResource(getResource("third", StatusUpdate.STATUS_PENDING));
+
+		assertEquals(2, dataAccessor.size());
+		assertNotNull(dataAccessor.getServiceResourceById("first"));
+		assertNull(dataAccessor.getServiceResourceById("second"));
+	}
+
+	/**
+	 * Tests that completed jobs are evicted once their TTL has passed
+	 */
+	@Test
+	public void testTtlEviction() throws Exception {
+		ReflectionTestUtils.setField(dataAccessor, "COMPLETED_TTL_SECONDS", -1L);
+		dataAccessor.addServiceResource(getResource("completed", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.addServiceResource(getResource("running", StatusUpdate.STATUS_RUNNING));
+
+		dataAccessor.evictExpired();
+
+		assertNull(dataAccessor.getServiceResourceById("completed"));
+		assertNotNull(dataAccessor.getServiceResourceById("running"));
+		assertEquals(1.0, meterRegistry.counter("jobstore.evictions", "reason", "ttl").count(), 0);
+	}
+
+	/**
+	 * Tests that readers get a snapshot that later changes to the stored object do not affect
+	 */
+	@Test
+	public void testSnapshotReads() throws Exception {
+		ServiceResource resource = getResource("job", StatusUpdate.STATUS_RUNNING);
+		dataAccessor.addServiceResource(resource);
+		resource.setStatus(new StatusUpdate(StatusUpdate.STATUS_SUCCESS));
+
+		assertEquals(StatusUpdate.STATUS_RUNNING, dataAccessor.getServiceResourceById("job").getStatus().getStatus());
+		dataAccessor.update(resource);
+		assertEquals(StatusUpdate.STATUS_SUCCESS, dataAccessor.getServiceResourceById("job").getStatus().getStatus());
+	}
+
+	/**
+	 * Tests that watchers are sent every new snapshot with an increasing version, and null once the job is removed
+	 */
+	@Test
+	public void testListeners() throws Exception {
+		List<ServiceResource> changes = new ArrayList<ServiceResource>();
+		DataAccessor.JobListener listener = changes::add;
+		dataAccessor.addServiceResource(getResource("job", StatusUpdate.STATUS_PENDING));
+		long version = dataAccessor.getServiceResourceById("job").getVersion();
+		dataAccessor.addListener("job", listener);
+
+		dataAccessor.update(getResource("job", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.update(getResource("job", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.removeJob("job");
+
+		assertEquals(3, changes.size());
+		assertEquals(StatusUpdate.STATUS_RUNNING, changes.get(0).getStatus().getStatus());
+		assertTrue(changes.get(0).getVersion() > version);
+		assertTrue(changes.get(1).getVersion() > changes.get(0).getVersion());
+		assertNull(changes.get(2));
+
+		dataAccessor.removeListener("job", listener);
+		dataAccessor.addServiceResource(getResource("job", StatusUpdate.STATUS_PENDING));
+		assertEquals(3, changes.size());
+	}
+
+	/**
+	 * Tests that watchers see the snapshots of a job in version order, ending with the latest, while status updates and
+	 * progress updates of the job are stored concurrently
+	 */
+	@Test
+	public void testListenerOrder() throws Exception {
+		List<Long> versions = new CopyOnWriteArrayList<Long>();
+		DataAccessor.JobListener listener = resource -> versions.add(resource.getVersion());
+		dataAccessor.addServiceResource(getResource("job", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.addListener("job", listener);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> updates = executor.submit(() -> {
+				for (int i = 0; i < 2000; i++) {
+					dataAccessor.update(getResource("job", StatusUpdate.STATUS_RUNNING));
+				}
+			});
+			Future<?> progress = executor.submit(() -> {
+				for (int i = 0; i < 2000; i++) {
+					dataAccessor.updateProgress("job", new CropProgress(CropProgress.STAGE_ENCODE, i % 100));
+				}
+			});
+			updates.get(30, TimeUnit.SECONDS);
+			progress.get(30, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (int i = 1; i < versions.size(); i++) {
+			assertTrue(versions.get(i) > versions.get(i - 1));
+		}
+		assertEquals(dataAccessor.getServiceResourceById("job").getVersion(), versions.get(versions.size() - 1));
+		dataAccessor.removeListener("job", listener);
+	}
+
+	/**
+	 * Tests that a snapshot returns the requested jobs changed after the cursor, and lists the missing ones
+	 */
+	@Test
+	public void testSnapshot() throws Exception {
+		dataAccessor.addServiceResource(getResource("a", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.addServiceResource(getResource("b", StatusUpdate.STATUS_RUNNING));
+		JobStatusResponse first = dataAccessor.getSnapshot(Arrays.asList("a", "b", "missing"), 0);
+		assertEquals(2, first.getJobs().size());
+		assertEquals(Arrays.asList("missing"), first.getNotFound());
+
+		dataAccessor.update(getResource("b", StatusUpdate.STATUS_SUCCESS));
+		JobStatusResponse second = dataAccessor.getSnapshot(Arrays.asList("a", "b"), first.getCursor());
+		assertEquals(1, second.getJobs().size());
+		assertEquals("b", second.getJobs().get(0).getServiceResourceId());
+		assertTrue(second.getCursor() > first.getCursor());
+
+		assertTrue(dataAccessor.getSnapshot(Arrays.asList("a", "b"), second.getCursor()).getJobs().isEmpty());
+	}
+
+	private ServiceResource getResource(String id, String status) {
+		ServiceResource resource = new ServiceResource();
+		resource.setServiceResourceId(id);
+		resource.setStatus(new StatusUpdate(status));
+		return resource;
+	}
+}
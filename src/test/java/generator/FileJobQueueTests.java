@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import generator.components.FileJobQueue;
+import generator.model.QueuedJob;
+import generator.model.RasterCropRequest;
+import generator.model.ServiceResource;
+import model.status.StatusUpdate;
+
+/**
+ * Tests lease-based claiming and re-delivery in the file job queue, with two queues over one directory standing in for
+ * two instances
+ */
+public class FileJobQueueTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileJobQueue first;
+	private FileJobQueue second;
+
+	@Before
+	public void setup() throws Exception {
+		first = new FileJobQueue(folder.newFolder("jobqueue"), 2, 10);
+		second = new FileJobQueue(folder.getRoot().toPath().resolve("jobqueue").toFile(), 2, 10);
+	}
+
+	/**
+	 * Tests that a job is claimed once, and that its snapshots are visible to the other instance
+	 */
+	@Test
+	public void testClaimAndComplete() throws Exception {
+		first.submit(getJob("job"));
+		assertEquals(StatusUpdate.STATUS_PENDING, second.getJob("job").getStatus().getStatus());
+
+		QueuedJob lease = second.claim("second", 60000);
+		assertNotNull(lease.getCropRequest());
+		assertNull(first.claim("first", 60000));
+
+		assertTrue(second.renew(lease, getSnapshot("job", StatusUpdate.STATUS_RUNNING), 60000));
+		assertEquals(StatusUpdate.STATUS_RUNNING, first.getJob("job").getStatus().getStatus());
+		second.complete(lease, getSnapshot("job", StatusUpdate.STATUS_SUCCESS));
+		assertEquals(StatusUpdate.STATUS_SUCCESS, first.getJob("job").getStatus().getStatus());
+		assertNull(first.claim("first", 60000));
+
+		assertEquals(1, first.purge(Long.MAX_VALUE));
+		assertNull(first.getJob("job"));
+	}
+
+	/**
+	 * Tests that an expired lease is delivered again, that the old owner can no longer renew or complete it, and that
+	 * the job fails once it has used up its attempts
+	 */
+	@Test
+	public void testRedelivery() throws Exception {
+		first.submit(getJob("job"));
+		QueuedJob expired = first.claim("first", -1);
+
+		QueuedJob redelivered = second.claim("second", -1);
+		assertEquals(2, redelivered.getAttempts());
+		assertFalse(first.renew(expired, null, 60000));
+		first.complete(expired, getSnapshot("job", StatusUpdate.STATUS_SUCCESS));
+		assertEquals(StatusUpdate.STATUS_PENDING, second.getJob("job").getStatus().getStatus());
+
+		assertNull(first.claim("first", 60000));
+		assertEquals(StatusUpdate.STATUS_ERROR, second.getJob("job").getStatus().getStatus());
+	}
+
+	/**
+	 * Tests that a released job is claimable again without counting the attempt, and that a cancelled job stops its
+	 * owner at the next heartbeat
+	 */
+	@Test
+	public void testReleaseAndCancel() throws Exception {
+		first.submit(getJob("job"));
+		first.release(first.claim("first", 60000));
+
+		QueuedJob lease = second.claim("second", 60000);
+		assertEquals(1, lease.getAttempts());
+		assertTrue(first.cancel("job"));
+		assertFalse(second.renew(lease, null, 60000));
+		assertNull(second.getJob("job"));
+		assertFalse(second.cancel("../job"));
+	}
+
+	private QueuedJob getJob(String id) {
+		QueuedJob job = new QueuedJob();
+		job.setServiceId(id);
+		job.setCropRequest(new RasterCropRequest());
+		job.setSnapshot(getSnapshot(id, StatusUpdate.STATUS_PENDING));
+		return job;
+	}
+
+	private ServiceResource getSnapshot(String id, String status) {
+		ServiceResource resource = new ServiceResource();
+		resource.setServiceResourceId(id);
+		resource.setStatus(new StatusUpdate(status));
+		return resource;
+	}
+}
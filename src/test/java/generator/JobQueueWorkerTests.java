@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import generator.components.CropResultCache;
+import generator.components.DataAccessor;
+import generator.components.FileJobQueue;
+import generator.components.JobQueueWorker;
+import generator.components.MemoryJobStore;
+import generator.components.RasterGenerator;
+import generator.components.ServiceThreadManager;
+import generator.model.JobStatusRequest;
+import generator.model.JobStatusResponse;
+import generator.model.RasterCropRequest;
+import generator.model.ServiceResource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.status.StatusUpdate;
+import util.UUIDFactory;
+
+/**
+ * Tests a job submitted on one instance and run by the queue worker of another, with two queues over one directory
+ * standing in for the two instances
+ */
+public class JobQueueWorkerTests {
+	private static final int MAX_QUEUED = 1;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private UUIDFactory uuidFactory = Mockito.mock(UUIDFactory.class);
+	private RasterGenerator workerGenerator = Mockito.mock(RasterGenerator.class);
+	private ServiceThreadManager front = new ServiceThreadManager();
+	private JobQueueWorker worker = new JobQueueWorker();
+	private DataAccessor workerAccessor;
+
+	@Before
+	public void setup() throws Exception {
+		File directory = folder.newFolder("jobqueue");
+
+		ReflectionTestUtils.setField(front, "uuidFactory", uuidFactory);
+		ReflectionTestUtils.setField(front, "dataAccessor", createAccessor());
+		ReflectionTestUtils.setField(front, "rasterGenerator", Mockito.mock(RasterGenerator.class));
+		ReflectionTestUtils.setField(front, "resultCache", Mockito.mock(CropResultCache.class));
+		ReflectionTestUtils.setField(front, "jobQueue", new FileJobQueue(directory, 3, MAX_QUEUED));
+		ReflectionTestUtils.setField(front, "jobQueueWorker", worker);
+		ReflectionTestUtils.setField(front, "STATUS_BATCH_MAX_SIZE", 100);
+		front.initialize();
+
+		workerAccessor = createAccessor();
+		ReflectionTestUtils.setField(worker, "jobQueue", new FileJobQueue(directory, 3, MAX_QUEUED));
+		ReflectionTestUtils.setField(worker, "dataAccessor", workerAccessor);
+		ReflectionTestUtils.setField(worker, "rasterGenerator", workerGenerator);
+		ReflectionTestUtils.setField(worker, "MAX_CLAIMED", 8);
+		ReflectionTestUtils.setField(worker, "LEASE_SECONDS", 30L);
+	}
+
+	/**
+	 * Tests that the submitting instance answers status, watch and batch status lookups for a job run by the worker of
+	 * the other instance, from the snapshots the worker publishes
+	 */
+	@Test
+	public void testCrossInstanceStatus() throws Exception {
+		Mockito.when(uuidFactory.getUUID()).thenReturn("job");
+		String id = front.processRasterAsync(new RasterCropRequest());
+		assertEquals(StatusUpdate.STATUS_PENDING, front.getJobStatus(id).getStatus());
+		List<ServiceResource> seen = new CopyOnWriteArrayList<ServiceResource>();
+		DataAccessor.JobListener listener = seen::add;
+		assertEquals(StatusUpdate.STATUS_PENDING, front.watchJob(id, listener).getStatus().getStatus());
+
+		SettableListenableFuture<String> future = new SettableListenableFuture<String>();
+		Mockito.when(workerGenerator.run(Mockito.any(RasterCropRequest.class), Mockito.eq(id))).thenReturn(future);
+		worker.poll();
+		Mockito.verify(workerGenerator).run(Mockito.any(RasterCropRequest.class), Mockito.eq(id));
+
+		workerAccessor.update(getResource(id, StatusUpdate.STATUS_RUNNING));
+		worker.heartbeat();
+		assertEquals(StatusUpdate.STATUS_RUNNING, front.getJobStatus(id).getStatus());
+		front.pollQueueWatches();
+		assertEquals(1, seen.size());
+		assertEquals(StatusUpdate.STATUS_RUNNING, seen.get(0).getStatus().getStatus());
+
+		workerAccessor.update(getResource(id, StatusUpdate.STATUS_SUCCESS));
+		future.set("done");
+		JobStatusRequest query = new JobStatusRequest();
+		query.setServiceIds(Arrays.asList(id, "missing"));
+		JobStatusResponse response = front.getJobs(query);
+		assertEquals(1, response.getJobs().size());
+		assertEquals(StatusUpdate.STATUS_SUCCESS, response.getJobs().get(0).getStatus().getStatus());
+		assertEquals(Arrays.asList("missing"), response.getNotFound());
+		front.pollQueueWatches();
+		assertEquals(2, seen.size());
+		assertEquals(StatusUpdate.STATUS_SUCCESS, seen.get(1).getStatus().getStatus());
+
+		front.unwatchJob(id, listener);
+	}
+
+	/**
+	 * Tests that jobs are rejected while the queue holds its maximum of waiting jobs, and accepted again once the worker
+	 * claims one
+	 */
+	@Test
+	public void testQueuedLimit() throws Exception {
+		Mockito.when(uuidFactory.getUUID()).thenReturn("first", "second", "third");
+		front.processRasterAsync(new RasterCropRequest());
+		try {
+			front.processRasterAsync(new RasterCropRequest());
+			fail("Expected the second job to be rejected.");
+		} catch (TaskRejectedException e) {
+			// Expected
+		}
+
+		Mockito.when(workerGenerator.run(Mockito.any(RasterCropRequest.class), Mockito.eq("first")))
+				.thenReturn(new SettableListenableFuture<String>());
+		worker.poll();
+		assertEquals("third", front.processRasterAsync(new RasterCropRequest()));
+	}
+
+	/**
+	 * Tests that deleting a job claimed from the queue stops it on the instance running it
+	 */
+	@Test
+	public void testDeleteClaimedJob() throws Exception {
+		Mockito.when(uuidFactory.getUUID()).thenReturn("job");
+		String id = front.processRasterAsync(new RasterCropRequest());
+		SettableListenableFuture<String> future = new SettableListenableFuture<String>();
+		Mockito.when(workerGenerator.run(Mockito.any(RasterCropRequest.class), Mockito.eq(id))).thenReturn(future);
+		worker.poll();
+
+		front.deleteService(id);
+		assertTrue(future.isCancelled());
+		assertNull(workerAccessor.getServiceResourceById(id));
+		assertFalse(worker.cancel(id));
+	}
+
+	private DataAccessor createAccessor() {
+		DataAccessor dataAccessor = new DataAccessor();
+		ReflectionTestUtils.setField(dataAccessor, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(dataAccessor, "jobStore", new MemoryJobStore());
+		ReflectionTestUtils.setField(dataAccessor, "MAX_ENTRIES", 100);
+		ReflectionTestUtils.setField(dataAccessor, "COMPLETED_TTL_SECONDS", 3600L);
+		dataAccessor.initialize();
+		return dataAccessor;
+	}
+
+	private ServiceResource getResource(String id, String status) {
+		ServiceResource resource = new ServiceResource();
+		resource.setServiceResourceId(id);
+		resource.setStatus(new StatusUpdate(status));
+		return resource;
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.DataAccessor;
+import generator.components.JobStore;
+import generator.components.LogJobStore;
+import generator.model.ServiceResource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.status.StatusUpdate;
+
+/**
+ * Tests recovery and compaction of the memory-mapped log job store
+ */
+public class LogJobStoreTests {
+	private static final int SEGMENT_BYTES = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+
+	@Before
+	public void setup() throws Exception {
+		directory = folder.newFolder("jobstore");
+	}
+
+	/**
+	 * Tests that a restarted store recovers the latest snapshot of each job, drops removed jobs, and fails the jobs that
+	 * were still running
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		LogJobStore store = createStore(Long.MAX_VALUE);
+		DataAccessor dataAccessor = createAccessor(store);
+		dataAccessor.addServiceResource(getResource("completed", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.update(getResource("completed", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.addServiceResource(getResource("running", StatusUpdate.STATUS_RUNNING));
+		dataAccessor.addServiceResource(getResource("removed", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.removeJob("removed");
+		long version = dataAccessor.getServiceResourceById("completed").getVersion();
+		store.close();
+
+		DataAccessor recovered = createAccessor(createStore(Long.MAX_VALUE));
+		assertEquals(2, recovered.size());
+		assertEquals(StatusUpdate.STATUS_SUCCESS, recovered.getServiceResourceById("completed").getStatus().getStatus());
+		assertEquals(version, recovered.getServiceResourceById("completed").getVersion().longValue());
+		assertEquals(StatusUpdate.STATUS_ERROR, recovered.getServiceResourceById("running").getStatus().getStatus());
+		assertTrue(recovered.getServiceResourceById("running").getVersion() > version);
+		assertNull(recovered.getServiceResourceById("removed"));
+	}
+
+	/**
+	 * Tests that compaction reclaims replaced snapshots, and that the compacted log is readable and recoverable
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+		LogJobStore store = createStore(0);
+		DataAccessor dataAccessor = createAccessor(store);
+		dataAccessor.addServiceResource(getResource("job", StatusUpdate.STATUS_PENDING));
+		for (int update = 0; update < 100; update++) {
+			dataAccessor.update(getResource("job", StatusUpdate.STATUS_RUNNING));
+		}
+		dataAccessor.update(getResource("job", StatusUpdate.STATUS_SUCCESS));
+		long before = store.getStoredBytes();
+		assertTrue(directory.listFiles().length > 1);
+
+		dataAccessor.compact();
+		assertTrue(store.getStoredBytes() < before / 50);
+		assertEquals(1, getSegmentFiles().length);
+		assertEquals(StatusUpdate.STATUS_SUCCESS, dataAccessor.getServiceResourceById("job").getStatus().getStatus());
+		store.close();
+
+		Collection<JobStore.Entry> recovered = createStore(0).recover();
+		assertEquals(1, recovered.size());
+		assertEquals(StatusUpdate.STATUS_SUCCESS, recovered.iterator().next().read().getStatus().getStatus());
+	}
+
+	/**
+	 * Tests that an old segment left behind by a crash during compaction is discarded at recovery, rather than bringing
+	 * back a job whose delete record the compaction dropped
+	 */
+	@Test
+	public void testCompactionSupersedesOldSegments() throws Exception {
+		LogJobStore store = createStore(0);
+		DataAccessor dataAccessor = createAccessor(store);
+		dataAccessor.addServiceResource(getResource("removed", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.addServiceResource(getResource("kept", StatusUpdate.STATUS_PENDING));
+		for (int update = 0; update < 100; update++) {
+			dataAccessor.update(getResource("kept", StatusUpdate.STATUS_RUNNING));
+		}
+		dataAccessor.update(getResource("kept", StatusUpdate.STATUS_SUCCESS));
+		dataAccessor.removeJob("removed");
+		File[] segments = getSegmentFiles();
+		assertTrue(segments.length > 1);
+		File first = segments[0];
+		byte[] firstBytes = Files.readAllBytes(first.toPath());
+
+		dataAccessor.compact();
+		store.close();
+		// As if the crash came before the deletion of the first old segment reached the disk
+		Files.write(first.toPath(), firstBytes);
+
+		DataAccessor recovered = createAccessor(createStore(0));
+		assertNotNull(recovered.getServiceResourceById("kept"));
+		assertNull(recovered.getServiceResourceById("removed"));
+		assertFalse(first.exists());
+	}
+
+	/**
+	 * Tests that snapshots and deletes written while the live snapshots are copied are carried into the compacted log
+	 */
+	@Test
+	public void testWritesDuringCompaction() throws Exception {
+		LogJobStore store = createStore(0);
+		JobStore.Entry updated = store.write(getResource("updated", StatusUpdate.STATUS_RUNNING, 1L), 0);
+		JobStore.Entry deleted = store.write(getResource("deleted", StatusUpdate.STATUS_SUCCESS, 2L), 0);
+		for (long version = 3; version < 100; version++) {
+			store.write(getResource("replaced", StatusUpdate.STATUS_RUNNING, version), 0);
+		}
+		JobStore.Entry replaced = store.write(getResource("replaced", StatusUpdate.STATUS_SUCCESS, 100L), 0);
+
+		Map<String, JobStore.Entry> moved = store.compact(() -> {
+			// Written after the store marked the start of the compaction, as if by other threads
+			store.write(getResource("updated", StatusUpdate.STATUS_SUCCESS, 101L), 0);
+			store.write(getResource("added", StatusUpdate.STATUS_SUCCESS, 102L), 0);
+			store.delete("deleted");
+			return Arrays.asList(updated, deleted, replaced);
+		});
+		assertEquals(101L, moved.get("updated").getVersion());
+		assertEquals(StatusUpdate.STATUS_SUCCESS, moved.get("updated").read().getStatus().getStatus());
+		assertEquals(102L, moved.get("added").getVersion());
+		assertEquals(100L, moved.get("replaced").getVersion());
+		assertFalse(moved.containsKey("deleted"));
+		store.close();
+
+		Map<String, JobStore.Entry> recovered = new HashMap<String, JobStore.Entry>();
+		for (JobStore.Entry entry : createStore(0).recover()) {
+			recovered.put(entry.getServiceResourceId(), entry);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("updated", "added", "replaced")), recovered.keySet());
+		assertEquals(101L, recovered.get("updated").getVersion());
+	}
+
+	/**
+	 * Tests that a record torn by a crash is discarded, along with nothing before it
+	 */
+	@Test
+	public void testTornRecord() throws Exception {
+		LogJobStore store = createStore(Long.MAX_VALUE);
+		store.write(getResource("first", StatusUpdate.STATUS_SUCCESS, 1L), 0);
+		long end = store.getStoredBytes();
+		store.write(getResource("second", StatusUpdate.STATUS_SUCCESS, 2L), 0);
+		store.close();
+
+		try (RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw")) {
+			file.seek(store.getStoredBytes() - 1);
+			file.write(file.read() ^ 0xff);
+		}
+
+		LogJobStore recoveredStore = createStore(Long.MAX_VALUE);
+		Collection<JobStore.Entry> recovered = recoveredStore.recover();
+		assertEquals(1, recovered.size());
+		assertEquals("first", recovered.iterator().next().getServiceResourceId());
+		assertEquals(end, recoveredStore.getStoredBytes());
+	}
+
+	private File[] getSegmentFiles() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+		Arrays.sort(files);
+		return files;
+	}
+
+	private LogJobStore createStore(long compactionMinBytes) {
+		return new LogJobStore(directory, SEGMENT_BYTES, 2, compactionMinBytes);
+	}
+
+	private DataAccessor createAccessor(JobStore store) {
+		DataAccessor dataAccessor = new DataAccessor();
+		ReflectionTestUtils.setField(dataAccessor, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(dataAccessor, "jobStore", store);
+		ReflectionTestUtils.setField(dataAccessor, "MAX_ENTRIES", 100);
+		ReflectionTestUtils.setField(dataAccessor, "COMPLETED_TTL_SECONDS", 3600L);
+		dataAccessor.initialize();
+		return dataAccessor;
+	}
+
+	private ServiceResource getResource(String id, String status) {
+		ServiceResource resource = new ServiceResource();
+		resource.setServiceResourceId(id);
+		resource.setStatus(new StatusUpdate(status));
+		return resource;
+	}
+
+	private ServiceResource getResource(String id, String status, Long version) {
+		ServiceResource resource = getResource(id, status);
+		resource.setVersion(version);
+		return resource;
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import exception.InvalidInputException;
+import generator.components.MemoryBudget;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests admission of crops against the heap budget
+ */
+public class MemoryBudgetTests {
+	private MemoryBudget memoryBudget = new MemoryBudget();
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	/**
+	 * Initialize a budget of 1000 bytes, with no working set factor
+	 */
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(memoryBudget, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(memoryBudget, "BUDGET_ENABLED", true);
+		ReflectionTestUtils.setField(memoryBudget, "BUDGET_BYTES", 1000L);
+		ReflectionTestUtils.setField(memoryBudget, "WORKING_SET_FACTOR", 1.0);
+		ReflectionTestUtils.setField(memoryBudget, "MAX_OVERTAKE_SECONDS", 30L);
+		memoryBudget.initialize();
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Tests that a small crop is admitted while a large one waits for room, and the large one is admitted on release
+	 */
+	@Test
+	public void testSmallCropOvertakesLarge() throws Exception {
+		MemoryBudget.Reservation running = memoryBudget.reserve(600);
+		Future<MemoryBudget.Reservation> large = executor.submit(() -> memoryBudget.reserve(800));
+		Thread.sleep(200);
+		assertFalse(large.isDone());
+
+		MemoryBudget.Reservation small = executor.submit(() -> memoryBudget.reserve(300)).get(5, TimeUnit.SECONDS);
+		assertEquals(900, memoryBudget.getReservedBytes());
+		assertFalse(large.isDone());
+
+		running.close();
+		small.close();
+		large.get(5, TimeUnit.SECONDS).close();
+		assertEquals(0, memoryBudget.getReservedBytes());
+	}
+
+	/**
+	 * Tests that once a crop has waited past the overtake limit, smaller crops queue behind it
+	 */
+	@Test
+	public void testStarvedCropIsNotOvertaken() throws Exception {
+		ReflectionTestUtils.setField(memoryBudget, "MAX_OVERTAKE_SECONDS", 0L);
+		MemoryBudget.Reservation running = memoryBudget.reserve(600);
+		Future<MemoryBudget.Reservation> large = executor.submit(() -> memoryBudget.reserve(800));
+		Thread.sleep(200);
+
+		Future<MemoryBudget.Reservation> small = executor.submit(() -> memoryBudget.reserve(300));
+		Thread.sleep(200);
+		assertFalse(small.isDone());
+
+		running.close();
+		MemoryBudget.Reservation largeReservation = large.get(5, TimeUnit.SECONDS);
+		assertFalse(small.isDone());
+		largeReservation.close();
+		small.get(5, TimeUnit.SECONDS).close();
+	}
+
+	/**
+	 * Tests that a crop larger than the whole budget, counting its buffers, is rejected rather than admitted
+	 */
+	@Test
+	public void testOversizedCropRejected() throws Exception {
+		assertFalse(memoryBudget.fits(600, 500));
+		try {
+			memoryBudget.reserve(600, 500);
+			fail("Expected the oversized crop to be rejected.");
+		} catch (InvalidInputException e) {
+			// Expected
+		}
+		assertTrue(memoryBudget.fits(500, 500));
+		MemoryBudget.Reservation reservation = memoryBudget.reserve(500, 500);
+		assertEquals(1000, reservation.getBytes());
+		reservation.close();
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.DataAccessor;
+import generator.components.MemoryJobStore;
+import generator.components.ProgressTracker;
+import generator.model.CropProgress;
+import generator.model.ServiceResource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.status.StatusUpdate;
+
+/**
+ * Tests stage-based progress, its publication into the job store and the estimate of the time remaining
+ */
+public class ProgressTrackerTests {
+	private ProgressTracker progressTracker = new ProgressTracker();
+	private DataAccessor dataAccessor = new DataAccessor();
+
+	/**
+	 * Initialize a tracker publishing into an in-memory job store
+	 */
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(dataAccessor, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(dataAccessor, "jobStore", new MemoryJobStore());
+		ReflectionTestUtils.setField(dataAccessor, "MAX_ENTRIES", 100);
+		ReflectionTestUtils.setField(dataAccessor, "COMPLETED_TTL_SECONDS", 3600L);
+		dataAccessor.initialize();
+		ReflectionTestUtils.setField(progressTracker, "dataAccessor", dataAccessor);
+		ReflectionTestUtils.setField(progressTracker, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(progressTracker, "THROUGHPUT_WINDOW", 10);
+		progressTracker.initialize();
+	}
+
+	/**
+	 * Tests that the percentage follows the counters of each stage, with decode following encode when the encoder
+	 * pulls the tiles
+	 */
+	@Test
+	public void testStageProgress() {
+		ProgressTracker.Progress progress = progressTracker.start("job");
+		assertEquals(0, (int) progressTracker.getSnapshot(progress).getPercentComplete());
+
+		progress.setStage(CropProgress.STAGE_DOWNLOAD);
+		progress.setBytesToDownload(100);
+		progress.addBytesDownloaded(50);
+		assertEquals(15, (int) progressTracker.getSnapshot(progress).getPercentComplete());
+
+		progress.setStage(CropProgress.STAGE_DECODE);
+		assertEquals(30, (int) progressTracker.getSnapshot(progress).getPercentComplete());
+
+		progress.setEncoding(1000, () -> 500);
+		CropProgress snapshot = progressTracker.getSnapshot(progress);
+		assertEquals(CropProgress.STAGE_ENCODE, snapshot.getStage());
+		assertEquals(60, (int) snapshot.getPercentComplete());
+		assertEquals(500L, (long) snapshot.getBytesEncoded());
+
+		progress.setStage(CropProgress.STAGE_UPLOAD);
+		progress.setStage(CropProgress.STAGE_DOWNLOAD);
+		assertEquals(90, (int) progressTracker.getSnapshot(progress).getPercentComplete());
+		assertEquals(100, (int) progressTracker.getCompletedSnapshot(progress).getPercentComplete());
+	}
+
+	/**
+	 * Tests that progress is published into the running job, and dropped once the job has completed
+	 */
+	@Test
+	public void testPublish() throws Exception {
+		dataAccessor.addServiceResource(getResource("job", StatusUpdate.STATUS_RUNNING));
+		ProgressTracker.Progress progress = progressTracker.start("job");
+		progress.setStage(CropProgress.STAGE_DECODE);
+
+		progressTracker.publish();
+		ServiceResource published = dataAccessor.getServiceResourceById("job");
+		assertEquals(CropProgress.STAGE_DECODE, published.getProgress().getStage());
+		assertEquals(StatusUpdate.STATUS_RUNNING, published.getStatus().getStatus());
+		assertEquals(30, (int) published.getProgress().getPercentComplete());
+
+		// Unchanged progress is not published again
+		progressTracker.publish();
+		assertEquals(published.getVersion(), dataAccessor.getServiceResourceById("job").getVersion());
+
+		dataAccessor.update(getResource("job", StatusUpdate.STATUS_SUCCESS));
+		progress.setStage(CropProgress.STAGE_UPLOAD);
+		progressTracker.publish();
+		assertEquals(StatusUpdate.STATUS_SUCCESS, dataAccessor.getServiceResourceById("job").getStatus().getStatus());
+	}
+
+	/**
+	 * Tests that the time remaining is estimated from completed jobs before a job has made progress of its own
+	 */
+	@Test
+	public void testEstimateFromThroughput() {
+		ProgressTracker.Progress progress = progressTracker.start("new");
+		progress.setWorkBytes(1000);
+		assertNull(progressTracker.getSnapshot(progress).getEstimatedSecondsRemaining());
+
+		ProgressTracker.Progress completed = progressTracker.start("completed");
+		completed.setWorkBytes(1000);
+		progressTracker.finish("completed", true);
+		assertTrue(progressTracker.getThroughput() > 0);
+
+		Long remaining = progressTracker.getSnapshot(progress).getEstimatedSecondsRemaining();
+		assertNotNull(remaining);
+		assertTrue(remaining >= 0);
+	}
+
+	private ServiceResource getResource(String id, String status) {
+		ServiceResource resource = new ServiceResource();
+		resource.setServiceResourceId(id);
+		resource.setStatus(new StatusUpdate(status));
+		return resource;
+	}
+}
@@ -15,12 +15,18 @@
  **/
 package generator;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Future;
 
+import org.geotools.geometry.GeneralEnvelope;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -33,13 +39,20 @@ import org.springframework.test.util.ReflectionTestUtils;
 import com.amazonaws.AmazonClientException;
 
 import exception.InvalidInputException;
+import generator.components.CropMetrics;
+import generator.components.CropPipeline;
 import generator.components.DataAccessor;
+import generator.components.MemoryBudget;
+import generator.components.ProgressTracker;
 import generator.components.RasterGenerator;
 import generator.components.S3FileUtility;
+import generator.components.TileCacheManager;
 import generator.model.BoundingBoxInfo;
+import generator.model.OutputOptions;
 import generator.model.RasterCropRequest;
 import generator.model.S3StoreInfo;
 import model.data.DataResource;
+import model.data.location.FileLocation;
 import model.data.type.RasterDataType;
 import util.UUIDFactory;
 
@@ -56,6 +69,8 @@ public class RasterGeneratorTests {
 	private DataAccessor dataAccessor;
 	@Mock
 	private S3FileUtility fileUtility;
+	@Mock
+	private CropMetrics cropMetrics;
 	@InjectMocks
 	private RasterGenerator rasterGenerator;
 
@@ -71,6 +86,13 @@ public class RasterGeneratorTests {
 		MockitoAnnotations.initMocks(this);
 		ReflectionTestUtils.setField(rasterGenerator, "RASTER_LOCAL_DIRECTORY", "tmp");
 		ReflectionTestUtils.setField(rasterGenerator, "SLEEP_DELAY", 1000);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILED", true);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILE_SIZE", 256);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_COMPRESSION", "DEFLATE");
+		ReflectionTestUtils.setField(rasterGenerator, "memoryBudget", new MemoryBudget());
+		ReflectionTestUtils.setField(rasterGenerator, "tileCacheManager", new TileCacheManager());
+		ReflectionTestUtils.setField(rasterGenerator, "cropPipeline", new CropPipeline());
+		ReflectionTestUtils.setField(rasterGenerator, "progressTracker", new ProgressTracker());
 
 		// Initialize common test ata
 		mockRequest.setFunction("crop");
@@ -113,7 +135,7 @@ public class RasterGeneratorTests {
 	@Test
 	@Ignore 
 	public void testCropRaster() throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
-		DataResource dataResource = rasterGenerator.cropRasterCoverage(mockRequest, "123456");
+		DataResource dataResource = rasterGenerator.cropRasterCoverage(mockRequest, "123456", CropMetrics.PATH_SYNC);
 		assertTrue(dataResource != null);
 		assertTrue(dataResource.getDataType() instanceof RasterDataType);
 		// Ensure the directory has been cleaned up
@@ -138,4 +160,114 @@ public class RasterGeneratorTests {
 	public void testAsyncRun() throws AmazonClientException, InvalidInputException, IOException, InterruptedException {
 		Future<String> future = rasterGenerator.run(mockRequest, "123456");
 	}
+
+	/**
+	 * Tests that a source file that cannot be opened as a raster is released, so it stays evictable from the cache
+	 */
+	@Test
+	public void testSourceReleasedOnFailure() throws AmazonClientException, InvalidInputException, IOException {
+		File notRaster = new File("pom.xml");
+		Mockito.doReturn(notRaster).when(fileUtility).getFileFromS3(Mockito.any(), Mockito.anyString());
+		try {
+			rasterGenerator.openSource(Mockito.mock(FileLocation.class), "123456");
+			fail("Expected the source to be rejected.");
+		} catch (InvalidInputException | RuntimeException e) {
+			// Expected
+		}
+		Mockito.verify(fileUtility).releaseFile(notRaster);
+	}
+
+	/**
+	 * Tests that a request without output options gets the server defaults
+	 */
+	@Test
+	public void testOutputOptionsDefaults() throws InvalidInputException {
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_TILED", false);
+		ReflectionTestUtils.setField(rasterGenerator, "OUTPUT_COMPRESSION", "NONE");
+		OutputOptions resolved = rasterGenerator.resolveOutputOptions(null);
+		assertFalse(resolved.getTiled());
+		assertEquals(256, resolved.getTileSize().intValue());
+		assertEquals(OutputOptions.COMPRESSION_NONE, resolved.getCompression());
+
+		assertFalse(rasterGenerator.resolveOutputOptions(new OutputOptions()).getTiled());
+	}
+
+	/**
+	 * Tests that each option set in the request overrides its default, and the others keep theirs
+	 */
+	@Test
+	public void testOutputOptionsOverride() throws InvalidInputException {
+		OutputOptions requested = new OutputOptions();
+		requested.setTileSize(512);
+		requested.setCompression("lzw");
+		OutputOptions resolved = rasterGenerator.resolveOutputOptions(requested);
+		assertTrue(resolved.getTiled());
+		assertEquals(512, resolved.getTileSize().intValue());
+		assertEquals(OutputOptions.COMPRESSION_LZW, resolved.getCompression());
+
+		requested = new OutputOptions();
+		requested.setTiled(false);
+		resolved = rasterGenerator.resolveOutputOptions(requested);
+		assertFalse(resolved.getTiled());
+		assertEquals(OutputOptions.COMPRESSION_DEFLATE, resolved.getCompression());
+	}
+
+	/**
+	 * Tests that unsupported tile sizes and compressions are rejected
+	 */
+	@Test
+	public void testOutputOptionsRejected() {
+		for (int tileSize : new int[] { 0, 8, 100, 8192 }) {
+			OutputOptions requested = new OutputOptions();
+			requested.setTileSize(tileSize);
+			assertRejected(requested);
+		}
+		OutputOptions requested = new OutputOptions();
+		requested.setCompression("JPEG2000");
+		assertRejected(requested);
+	}
+
+	/**
+	 * Tests that invalid output options fail the crop before the source is read
+	 */
+	@Test
+	public void testOutputOptionsRejectedBeforeRead() throws Exception {
+		ReflectionTestUtils.setField(rasterGenerator, "SLEEP_DELAY", 0L);
+		OutputOptions requested = new OutputOptions();
+		requested.setCompression("JPEG2000");
+		mockRequest.setOutput(requested);
+		try {
+			rasterGenerator.cropRasterCoverage(mockRequest, "123456", CropMetrics.PATH_SYNC);
+			fail("Expected the output options to be rejected.");
+		} catch (InvalidInputException e) {
+			// Expected
+		}
+		Mockito.verify(fileUtility, Mockito.never()).getFileFromS3(Mockito.any(), Mockito.anyString());
+		Mockito.verify(fileUtility, Mockito.never()).getImageInputStreamFromS3(Mockito.any());
+	}
+
+	/**
+	 * Tests that batch boxes close together share a read window, while a box far from them is read on its own
+	 */
+	@Test
+	public void testGroupByProximity() {
+		List<GeneralEnvelope> envelopes = Arrays.asList(getEnvelope(0, 0, 10, 10), getEnvelope(1000, 1000, 1010, 1010),
+				getEnvelope(10, 0, 20, 10), getEnvelope(5, 5, 15, 15));
+		List<List<Integer>> groups = RasterGenerator.groupByProximity(envelopes, 2);
+		assertEquals(Arrays.asList(Arrays.asList(0, 2, 3), Arrays.asList(1)), groups);
+		assertEquals(1, RasterGenerator.groupByProximity(envelopes, Double.MAX_VALUE).size());
+	}
+
+	private GeneralEnvelope getEnvelope(double minx, double miny, double maxx, double maxy) {
+		return new GeneralEnvelope(new double[] { minx, miny }, new double[] { maxx, maxy });
+	}
+
+	private void assertRejected(OutputOptions requested) {
+		try {
+			rasterGenerator.resolveOutputOptions(requested);
+			fail(String.format("Expected tile size %s, compression %s to be rejected.", requested.getTileSize(), requested.getCompression()));
+		} catch (InvalidInputException e) {
+			// Expected
+		}
+	}
 }
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import generator.components.MultipartImageOutputStream;
+import generator.components.RasterGenerator;
+import generator.components.S3MultipartOutputStream;
+import generator.model.OutputOptions;
+
+/**
+ * Tests the multipart S3 output stream against an in-memory S3 stand-in
+ */
+public class S3MultipartOutputStreamTests {
+	private static final int PART_SIZE = 1024;
+	private static final int ENCODE_PART_SIZE = 16384;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Mock
+	private AmazonS3 s3Client;
+
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+	private Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+	private AtomicInteger partFailures = new AtomicInteger();
+
+	/**
+	 * Stores uploaded parts by part number, failing the first upload attempts when asked to
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+		initiated.setUploadId("upload");
+		Mockito.doReturn(initiated).when(s3Client).initiateMultipartUpload(Mockito.any(InitiateMultipartUploadRequest.class));
+		Mockito.doAnswer(invocation -> {
+			UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+			if (partFailures.getAndDecrement() > 0) {
+				throw new AmazonClientException("Simulated part failure");
+			}
+			uploadedParts.put(request.getPartNumber(), IOUtils.toByteArray(request.getInputStream()));
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("etag" + request.getPartNumber());
+			return result;
+		}).when(s3Client).uploadPart(Mockito.any(UploadPartRequest.class));
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Tests that the parts reassemble into the written bytes and are completed in order, despite a failed attempt
+	 */
+	@Test
+	public void testMultipartUpload() throws IOException {
+		byte[] content = new byte[PART_SIZE * 5 + 100];
+		new Random(7).nextBytes(content);
+		partFailures.set(1);
+
+		try (S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", PART_SIZE, 2, 3, executor)) {
+			stream.write(content);
+		}
+
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		for (int partNumber = 1; partNumber <= uploadedParts.size(); partNumber++) {
+			reassembled.write(uploadedParts.get(partNumber));
+		}
+		assertArrayEquals(content, reassembled.toByteArray());
+
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		Mockito.verify(s3Client).completeMultipartUpload(complete.capture());
+		List<PartETag> eTags = complete.getValue().getPartETags();
+		assertEquals(6, eTags.size());
+		for (int index = 0; index < eTags.size(); index++) {
+			assertEquals(index + 1, eTags.get(index).getPartNumber());
+		}
+	}
+
+	/**
+	 * Tests that an output smaller than one part is sent with a single PUT
+	 */
+	@Test
+	public void testSmallOutput() throws IOException {
+		try (S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", PART_SIZE, 2, 3, executor)) {
+			stream.write(new byte[PART_SIZE / 2]);
+		}
+		Mockito.verify(s3Client).putObject(Mockito.any(PutObjectRequest.class));
+		Mockito.verify(s3Client, Mockito.never()).initiateMultipartUpload(Mockito.any(InitiateMultipartUploadRequest.class));
+		assertEquals(0, uploadedParts.size());
+	}
+
+	/**
+	 * Tests that a held first part is uploaded as part 1 after the parts written to the stream
+	 */
+	@Test
+	public void testHeldFirstPart() throws IOException {
+		byte[] content = new byte[PART_SIZE * 4 + 10];
+		new Random(11).nextBytes(content);
+
+		S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", PART_SIZE, 2, 3, executor);
+		stream.holdFirstPart();
+		stream.write(content, PART_SIZE, content.length - PART_SIZE);
+		stream.setFirstPart(content, PART_SIZE);
+		stream.close();
+
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		for (int partNumber = 1; partNumber <= uploadedParts.size(); partNumber++) {
+			reassembled.write(uploadedParts.get(partNumber));
+		}
+		assertArrayEquals(content, reassembled.toByteArray());
+		assertEquals(content.length, stream.getBytesWritten());
+	}
+
+	/**
+	 * Tests that a GeoTIFF encoded through the image stream has its later parts uploaded while it is encoded, and
+	 * reassembles into a readable GeoTIFF with the encoded pixels, untiled and uncompressed as well as tiled and
+	 * compressed
+	 */
+	@Test
+	public void testEncodeWhileUploading() throws IOException {
+		OutputOptions untiled = new OutputOptions();
+		untiled.setTiled(false);
+		untiled.setTileSize(256);
+		untiled.setCompression(OutputOptions.COMPRESSION_NONE);
+		assertEncodedWhileUploading(untiled);
+
+		OutputOptions tiled = new OutputOptions();
+		tiled.setTiled(true);
+		tiled.setTileSize(128);
+		tiled.setCompression(OutputOptions.COMPRESSION_DEFLATE);
+		assertEncodedWhileUploading(tiled);
+	}
+
+	/**
+	 * Tests that an encoder revisiting bytes already passed on to the upload is refused and reported
+	 */
+	@Test
+	public void testRewindPastFirstPart() throws IOException {
+		S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", PART_SIZE, 2, 3, executor);
+		MultipartImageOutputStream imageStream = new MultipartImageOutputStream(stream);
+		imageStream.write(new byte[PART_SIZE * 3]);
+		// Patching the first part is allowed
+		imageStream.seek(4);
+		imageStream.writeInt(42);
+		imageStream.seek(PART_SIZE * 2);
+		try {
+			imageStream.writeInt(42);
+			fail("Expected the write behind the upload to fail");
+		} catch (IOException e) {
+			assertTrue(imageStream.isRewoundPastFirstPart());
+		}
+		stream.abort();
+	}
+
+	private void assertEncodedWhileUploading(OutputOptions outputOptions) throws IOException {
+		// A fresh S3 stand-in for each encode
+		uploadedParts.clear();
+		setup();
+		BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = image.getRaster();
+		Random random = new Random(3);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				raster.setSample(x, y, 0, random.nextInt(256));
+			}
+		}
+		GridCoverage2D coverage = new GridCoverageFactory().create("encoded", image,
+				new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+
+		S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", ENCODE_PART_SIZE, 4, 3, executor);
+		MultipartImageOutputStream imageStream = new MultipartImageOutputStream(stream);
+		new RasterGenerator().encodeCoverage(coverage, imageStream, outputOptions);
+		assertFalse(imageStream.isRewoundPastFirstPart());
+		// Parts past the first were handed to the upload during encoding, before the stream is closed
+		Mockito.verify(s3Client, Mockito.timeout(5000).atLeast(5)).uploadPart(Mockito.any(UploadPartRequest.class));
+		assertFalse(uploadedParts.containsKey(1));
+		stream.close();
+
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		for (int partNumber = 1; partNumber <= uploadedParts.size(); partNumber++) {
+			reassembled.write(uploadedParts.get(partNumber));
+		}
+		File file = folder.newFile();
+		FileUtils.writeByteArrayToFile(file, reassembled.toByteArray());
+		GridCoverage2DReader reader = new GeoTiffFormat().getReader(file);
+		try {
+			Raster decoded = reader.read(null).getRenderedImage().getData();
+			for (int y = 0; y < image.getHeight(); y++) {
+				for (int x = 0; x < image.getWidth(); x++) {
+					assertEquals(raster.getSample(x, y, 0), decoded.getSample(x, y, 0));
+				}
+			}
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Tests that a part failing past its retries aborts the multipart upload
+	 */
+	@Test
+	public void testAbortOnFailure() throws IOException {
+		partFailures.set(Integer.MAX_VALUE);
+		S3MultipartOutputStream stream = new S3MultipartOutputStream(s3Client, "bucket", "key", PART_SIZE, 2, 1, executor);
+		stream.write(new byte[PART_SIZE * 2 + 1]);
+		try {
+			stream.close();
+			fail("Expected the upload to fail");
+		} catch (IOException e) {
+			Mockito.verify(s3Client).abortMultipartUpload(Mockito.any(AbortMultipartUploadRequest.class));
+			Mockito.verify(s3Client, Mockito.never()).completeMultipartUpload(Mockito.any(CompleteMultipartUploadRequest.class));
+		}
+	}
+}
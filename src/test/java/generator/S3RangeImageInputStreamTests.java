@@ -0,0 +1,119 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import generator.components.S3RangeImageInputStream;
+
+/**
+ * Tests the ranged S3 image input stream against an in-memory S3 stand-in
+ */
+public class S3RangeImageInputStreamTests {
+	private static final int OBJECT_SIZE = 1000000;
+	private static final int BLOCK_SIZE = 4096;
+
+	@Mock
+	private AmazonS3 s3Client;
+
+	private byte[] content = new byte[OBJECT_SIZE];
+
+	/**
+	 * Serves ranged GETs out of a random byte array
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		new Random(7).nextBytes(content);
+
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(OBJECT_SIZE);
+		Mockito.doReturn(metadata).when(s3Client).getObjectMetadata("bucket", "key");
+		Mockito.doAnswer(invocation -> {
+			long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+			S3Object object = new S3Object();
+			object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1)));
+			return object;
+		}).when(s3Client).getObject(Mockito.any(GetObjectRequest.class));
+	}
+
+	/**
+	 * Tests reading the whole object sequentially
+	 */
+	@Test
+	public void testSequentialRead() throws IOException {
+		try (S3RangeImageInputStream stream = new S3RangeImageInputStream(s3Client, "bucket", "key", BLOCK_SIZE, 8)) {
+			assertEquals(OBJECT_SIZE, stream.length());
+			byte[] read = new byte[OBJECT_SIZE];
+			stream.readFully(read);
+			assertArrayEquals(content, read);
+			assertEquals(-1, stream.read());
+		}
+	}
+
+	/**
+	 * Tests that seeking reads the right bytes and only fetches the blocks that are touched
+	 */
+	@Test
+	public void testSeekFetchesOnlyTouchedBlocks() throws IOException {
+		try (S3RangeImageInputStream stream = new S3RangeImageInputStream(s3Client, "bucket", "key", BLOCK_SIZE, 8)) {
+			stream.seek(OBJECT_SIZE - 10);
+			assertEquals(content[OBJECT_SIZE - 10] & 0xff, stream.read());
+
+			stream.seek(BLOCK_SIZE - 2);
+			byte[] read = new byte[4];
+			stream.readFully(read);
+			assertArrayEquals(Arrays.copyOfRange(content, BLOCK_SIZE - 2, BLOCK_SIZE + 2), read);
+
+			assertTrue(stream.getBytesFetched() <= 3 * BLOCK_SIZE);
+		}
+	}
+
+	/**
+	 * Tests that cached blocks are not fetched again, and that a run of missing blocks is fetched with one request
+	 */
+	@Test
+	public void testBlockCache() throws IOException {
+		try (S3RangeImageInputStream stream = new S3RangeImageInputStream(s3Client, "bucket", "key", BLOCK_SIZE, 8)) {
+			byte[] read = new byte[4 * BLOCK_SIZE];
+			stream.readFully(read);
+			assertEquals(1, stream.getRequestCount());
+
+			stream.seek(0);
+			stream.readFully(read);
+			assertEquals(1, stream.getRequestCount());
+			assertEquals(4 * BLOCK_SIZE, stream.getBytesFetched());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import generator.components.SourceRasterCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Tests the shared source raster disk cache
+ */
+public class SourceRasterCacheTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SourceRasterCache cache = new SourceRasterCache();
+	private MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private AtomicInteger downloads = new AtomicInteger();
+
+	/**
+	 * Initialize a cache with room for two 100 byte files
+	 */
+	@Before
+	public void setup() throws Exception {
+		ReflectionTestUtils.setField(cache, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(cache, "CACHE_ENABLED", true);
+		ReflectionTestUtils.setField(cache, "CACHE_DIRECTORY", folder.newFolder("cache").getAbsolutePath());
+		ReflectionTestUtils.setField(cache, "CACHE_MAX_BYTES", 200L);
+		cache.initialize();
+	}
+
+	/**
+	 * Tests that a second request for the same object is a hit, and a changed ETag is a miss
+	 */
+	@Test
+	public void testHitAndRevalidation() throws Exception {
+		File first = cache.acquire("bucket", "key", "etag1", this::load);
+		cache.release(first);
+		File second = cache.acquire("bucket", "key", "etag1", this::load);
+		cache.release(second);
+		assertEquals(first, second);
+		assertEquals(1, downloads.get());
+
+		File changed = cache.acquire("bucket", "key", "etag2", this::load);
+		cache.release(changed);
+		assertEquals(2, downloads.get());
+		assertEquals(1.0, meterRegistry.counter("raster.cache.hits").count(), 0);
+		assertEquals(2.0, meterRegistry.counter("raster.cache.misses").count(), 0);
+	}
+
+	/**
+	 * Tests that least recently used, unpinned entries are evicted when over budget
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		File pinned = cache.acquire("bucket", "a", "etag", this::load);
+		File b = cache.acquire("bucket", "b", "etag", this::load);
+		cache.release(b);
+		File c = cache.acquire("bucket", "c", "etag", this::load);
+		cache.release(c);
+
+		assertTrue(pinned.exists());
+		assertFalse(b.exists());
+		assertTrue(c.exists());
+		assertEquals(1.0, meterRegistry.counter("raster.cache.evictions").count(), 0);
+		cache.release(pinned);
+	}
+
+	/**
+	 * Tests that concurrent requests for the same object share one download
+	 */
+	@Test
+	public void testSingleFlight() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		SourceRasterCache.SourceLoader slowLoader = target -> {
+			started.countDown();
+			proceed.await(10, TimeUnit.SECONDS);
+			load(target);
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<File> leader = executor.submit(() -> cache.acquire("bucket", "key", "etag", slowLoader));
+			started.await(10, TimeUnit.SECONDS);
+			Future<File> follower1 = executor.submit(() -> cache.acquire("bucket", "key", "etag", slowLoader));
+			Future<File> follower2 = executor.submit(() -> cache.acquire("bucket", "key", "etag", slowLoader));
+			proceed.countDown();
+
+			assertEquals(leader.get(), follower1.get());
+			assertEquals(leader.get(), follower2.get());
+			assertEquals(1, downloads.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void load(File target) throws Exception {
+		downloads.incrementAndGet();
+		FileUtils.writeByteArrayToFile(target, new byte[100]);
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package generator;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+
+import javax.media.jai.RasterFactory;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+
+/**
+ * Writes synthetic GeoTIFFs covering the whole world, for benchmarks and load tests against sources of known size and layout
+ */
+public final class SyntheticRasters {
+	public static final String DATA_TYPE_BYTE = "byte";
+	public static final String DATA_TYPE_FLOAT = "float";
+
+	private SyntheticRasters() {
+	}
+
+	/**
+	 * Writes a square GeoTIFF filled with a smooth pattern, so that compressed outputs behave like imagery rather than
+	 * constant or random data.
+	 * 
+	 * @param file
+	 *            File to write
+	 * @param size
+	 *            Width and height in pixels
+	 * @param tileSize
+	 *            Tile width and height in pixels, or 0 for a striped layout
+	 * @param bands
+	 *            Number of bands
+	 * @param dataType
+	 *            DATA_TYPE_BYTE or DATA_TYPE_FLOAT
+	 */
+	public static void write(File file, int size, int tileSize, int bands, String dataType) throws IOException {
+		int type = DATA_TYPE_FLOAT.equals(dataType) ? DataBuffer.TYPE_FLOAT : DataBuffer.TYPE_BYTE;
+		WritableRaster raster = RasterFactory.createBandedRaster(type, size, size, bands, null);
+		double[] row = new double[size];
+		for (int band = 0; band < bands; band++) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					row[x] = 127.5 + 127.5 * Math.sin((x + band * 31) / 97.0) * Math.cos((y - band * 17) / 71.0);
+				}
+				raster.setSamples(0, y, size, 1, band, row);
+			}
+		}
+
+		GridCoverage2D coverage = new GridCoverageFactory().create("synthetic", raster,
+				new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+
+		GeoTiffFormat format = new GeoTiffFormat();
+		ParameterValueGroup params = format.getWriteParameters();
+		if (tileSize > 0) {
+			GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+			writeParams.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+			writeParams.setTiling(tileSize, tileSize);
+			params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(writeParams);
+		}
+
+		GridCoverageWriter writer = format.getWriter(file);
+		try {
+			writer.write(coverage, params.values().toArray(new GeneralParameterValue[1]));
+		} finally {
+			writer.dispose();
+			coverage.dispose(true);
+		}
+	}
+}